@@ -0,0 +1,127 @@
+package bench;
+
+import server.FanoutEngine;
+import server.RoomMember;
+import utils.EncryptionUtil;
+import utils.Message;
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FanoutBenchmark measures room fan-out throughput and per-member latency.
+ * Members are in-memory stand-ins that time when their copy is queued, so the numbers
+ * cover decrypt-once, encrypt-per-key and queue hand-off without any socket I/O.
+ *
+ * Usage: FanoutBenchmark [members] [messages] [threads] [batchSize]
+ */
+public class FanoutBenchmark {
+    private static final int WARMUP_MESSAGES = 200;
+    
+    public static void main(String[] args) throws Exception {
+        int memberCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        
+        System.out.println("=== Room fan-out benchmark ===");
+        System.out.println("members=" + memberCount + " messages=" + messageCount
+            + " threads=" + threads + " batchSize=" + batchSize);
+        
+        List<BenchMember> members = new ArrayList<>(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            members.add(new BenchMember("member" + i, EncryptionUtil.generateKey(), messageCount));
+        }
+        SecretKey senderKey = EncryptionUtil.generateKey();
+        String text = "Benchmark message with a realistic length for a chat room, around eighty chars.";
+        
+        FanoutEngine engine = new FanoutEngine(threads, batchSize);
+        try {
+            run(engine, members, senderKey, text, WARMUP_MESSAGES, null);
+            long[] starts = new long[messageCount];
+            for (BenchMember member : members) {
+                member.reset(starts);
+            }
+            
+            long begin = System.nanoTime();
+            run(engine, members, senderKey, text, messageCount, starts);
+            long elapsed = System.nanoTime() - begin;
+            
+            long deliveries = (long) messageCount * memberCount;
+            System.out.printf("Throughput: %.0f messages/s, %.0f deliveries/s%n",
+                messageCount / (elapsed / 1e9), deliveries / (elapsed / 1e9));
+            
+            long[] latencies = new long[(int) deliveries];
+            int n = 0;
+            for (BenchMember member : members) {
+                for (long latency : member.latencies) {
+                    latencies[n++] = latency;
+                }
+            }
+            Arrays.sort(latencies);
+            System.out.printf("Per-member latency (us): p50=%.1f p90=%.1f p99=%.1f max=%.1f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e3);
+        } finally {
+            engine.shutdown();
+        }
+    }
+    
+    /**
+     * Send messages the way ClientHandler does: decrypt and verify once, then fan out
+     */
+    private static void run(FanoutEngine engine, List<BenchMember> members, SecretKey senderKey,
+                            String text, int count, long[] starts) throws Exception {
+        String encrypted = EncryptionUtil.encrypt(text, senderKey);
+        for (int i = 0; i < count; i++) {
+            if (starts != null) {
+                starts[i] = System.nanoTime();
+            }
+            Message message = new Message("sender", "room", encrypted, Message.MessageType.ROOM_TEXT);
+            String plaintext = EncryptionUtil.decrypt(message.getContent(), senderKey);
+            message.setSequence(i);
+            engine.fanOut(message, plaintext, members);
+        }
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+        return sorted[index] / 1e3;
+    }
+    
+    /**
+     * A member that records how long after send each message reached its queue
+     */
+    private static class BenchMember implements RoomMember {
+        private final String username;
+        private final SecretKey key;
+        private long[] latencies;
+        private long[] starts;
+        
+        BenchMember(String username, SecretKey key, int messageCount) {
+            this.username = username;
+            this.key = key;
+            this.latencies = new long[messageCount];
+        }
+        
+        void reset(long[] starts) {
+            this.starts = starts;
+            Arrays.fill(latencies, 0);
+        }
+        
+        @Override
+        public String getUsername() { return username; }
+        
+        @Override
+        public SecretKey getSessionKey() { return key; }
+        
+        @Override
+        public void enqueue(Message message) {
+            if (starts != null) {
+                int index = (int) message.getSequence();
+                latencies[index] = System.nanoTime() - starts[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package bench;
+
+import utils.ChatSessionManager;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PairingStress hammers ChatSessionManager with concurrent connect/disconnect operations
+ * and checks that pairing stays consistent: partner sets are symmetric, every connected
+ * pair has exactly one session, and racing accepts for one pair succeed exactly once.
+ * Exits non-zero on any violation.
+ *
+ * Usage: PairingStress [threads] [operationsPerThread] [users]
+ */
+public class PairingStress {
+    
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        
+        System.out.println("=== Session pairing stress ===");
+        System.out.println("threads=" + threads + " operationsPerThread=" + operations + " users=" + users);
+        
+        ChatSessionManager manager = ChatSessionManager.getInstance();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The manager logs every pairing
+        int failures;
+        long elapsed;
+        try {
+            long start = System.nanoTime();
+            failures = racingAccepts(manager, threads, 1000);
+            failures += randomChurn(manager, threads, operations, users);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            System.setOut(console);
+            manager.shutdown();
+        }
+        
+        System.out.printf("Completed %d operations in %.0f ms%n", (long) threads * operations, elapsed / 1e6);
+        if (failures > 0) {
+            System.out.println("❌ " + failures + " consistency violation(s)");
+            System.exit(1);
+        }
+        System.out.println("✅ Pairing stayed consistent");
+    }
+    
+    /**
+     * Many threads accept the same pair at once; exactly one may win each round
+     */
+    private static int racingAccepts(ChatSessionManager manager, int threads, int rounds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int failures = 0;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                String user1 = "race" + round + "a";
+                String user2 = "race" + round + "b";
+                CountDownLatch go = new CountDownLatch(1);
+                AtomicInteger winners = new AtomicInteger();
+                List<Future<?>> pending = new ArrayList<>(threads);
+                for (int t = 0; t < threads; t++) {
+                    boolean flip = (t & 1) == 1; // Both argument orders, as both users may accept
+                    pending.add(pool.submit(() -> {
+                        go.await();
+                        if (flip ? manager.connectUsers(user2, user1) : manager.connectUsers(user1, user2)) {
+                            winners.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                go.countDown();
+                for (Future<?> future : pending) {
+                    future.get();
+                }
+                if (winners.get() != 1) {
+                    report("round " + round + ": " + winners.get() + " concurrent accepts succeeded");
+                    failures++;
+                }
+                manager.disconnectUser(user1);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        return failures;
+    }
+    
+    /**
+     * Random connects and disconnects over a small user population, then an invariant check
+     */
+    private static int randomChurn(ChatSessionManager manager, int threads, int operations, int users)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> pending = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            pending.add(pool.submit(() -> {
+                go.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    String user1 = "user" + random.nextInt(users);
+                    String user2 = "user" + random.nextInt(users);
+                    if (user1.equals(user2)) {
+                        continue;
+                    }
+                    int action = random.nextInt(10);
+                    if (action < 5) {
+                        manager.connectUsers(user1, user2);
+                    } else if (action < 9) {
+                        manager.disconnectUsers(user1, user2);
+                    } else {
+                        manager.disconnectUser(user1);
+                    }
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> future : pending) {
+            future.get();
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        
+        return checkInvariants(manager);
+    }
+    
+    private static int checkInvariants(ChatSessionManager manager) {
+        int failures = 0;
+        Map<String, Set<String>> connections = manager.getConnectedUsers();
+        Set<String> sessions = manager.getActiveSessions();
+        int pairs = 0;
+        for (Map.Entry<String, Set<String>> entry : connections.entrySet()) {
+            String user = entry.getKey();
+            for (String partner : entry.getValue()) {
+                Set<String> reverse = connections.get(partner);
+                if (reverse == null || !reverse.contains(user)) {
+                    report(user + " -> " + partner + " has no reverse link");
+                    failures++;
+                }
+                if (!sessions.contains(manager.getSessionId(user, partner))) {
+                    report(user + " <-> " + partner + " is connected without a session");
+                    failures++;
+                }
+                pairs++;
+            }
+        }
+        if (sessions.size() * 2 != pairs) {
+            report(sessions.size() + " sessions for " + pairs / 2 + " connected pairs");
+            failures++;
+        }
+        return failures;
+    }
+    
+    private static void report(String violation) {
+        System.err.println("Violation: " + violation);
+    }
+}
@@ -0,0 +1,71 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.EncryptionUtil;
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CryptoBenchmark times the AES session-key operations every relayed message goes
+ * through: the server decrypts with the sender's key and encrypts with the recipient's.
+ * Payload sizes cover a short chat line, a long message and a small file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+    @Param({"64", "1024", "65536"})
+    public int payloadBytes;
+
+    private SecretKey key;
+    private String plaintext;
+    private String ciphertext;
+    private byte[] data;
+    private byte[] encryptedData;
+
+    @Setup
+    public void setup() throws Exception {
+        key = EncryptionUtil.generateKey();
+        char[] chars = new char[payloadBytes];
+        Arrays.fill(chars, 'x');
+        plaintext = new String(chars);
+        ciphertext = EncryptionUtil.encrypt(plaintext, key);
+        data = new byte[payloadBytes];
+        Arrays.fill(data, (byte) 7);
+        encryptedData = EncryptionUtil.encryptBytes(data, key);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return EncryptionUtil.encrypt(plaintext, key);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return EncryptionUtil.decrypt(ciphertext, key);
+    }
+
+    @Benchmark
+    public byte[] encryptBytes() throws Exception {
+        return EncryptionUtil.encryptBytes(data, key);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() throws Exception {
+        return EncryptionUtil.decryptBytes(encryptedData, key);
+    }
+}
@@ -0,0 +1,98 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageSerializationBenchmark times Message round-trips through Java serialization,
+ * the wire format between clients, server and cluster nodes.
+ *
+ * roundTrip uses fresh streams, so it pays for the stream header and class descriptors
+ * every time. writeReused keeps one ObjectOutputStream and resets it after each message,
+ * as the client and cluster links do, which is the steady-state cost of a send.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSerializationBenchmark {
+    @Param({"TEXT", "FILE"})
+    public String kind;
+
+    @Param({"64", "65536"})
+    public int payloadBytes;
+
+    private Message message;
+    private byte[] serialized;
+    private ByteArrayOutputStream reusedBuffer;
+    private ObjectOutputStream reusedOutput;
+
+    @Setup
+    public void setup() throws Exception {
+        if (kind.equals("FILE")) {
+            message = new Message("alice", "bob", null, Message.MessageType.FILE);
+            byte[] data = new byte[payloadBytes];
+            Arrays.fill(data, (byte) 7);
+            message.setFileName("bench.bin");
+            message.setFileData(data);
+        } else {
+            char[] chars = new char[payloadBytes];
+            Arrays.fill(chars, 'x');
+            message = new Message("alice", "bob", new String(chars), Message.MessageType.TEXT);
+        }
+        serialized = write(message);
+        reusedBuffer = new ByteArrayOutputStream();
+        reusedOutput = new ObjectOutputStream(reusedBuffer);
+    }
+
+    @Benchmark
+    public Message roundTrip() throws Exception {
+        return read(write(message));
+    }
+
+    @Benchmark
+    public Message readOnly() throws Exception {
+        return read(serialized);
+    }
+
+    @Benchmark
+    public int writeReused() throws Exception {
+        reusedBuffer.reset();
+        reusedOutput.writeObject(message);
+        reusedOutput.reset();
+        reusedOutput.flush();
+        return reusedBuffer.size();
+    }
+
+    private static byte[] write(Message message) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(buffer)) {
+            output.writeObject(message);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Message read(byte[] bytes) throws Exception {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Message) input.readObject();
+        }
+    }
+}
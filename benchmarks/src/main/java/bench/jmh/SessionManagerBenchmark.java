@@ -0,0 +1,138 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ChatSessionManager;
+import utils.Message;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionManagerBenchmark times ChatSessionManager under contention.
+ *
+ * The chat group runs writers appending to one session while a reader copies its
+ * messages out, as a busy conversation does while history is requested. Each writer
+ * clears the session after every historySize appends, so reads copy a bounded history
+ * and the clear is amortized into the append time. Pairing
+ * runs threads connecting and disconnecting random pairs from a small user pool,
+ * so they keep colliding on the same lock stripes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionManagerBenchmark {
+
+    /**
+     * One session shared by the chat group, recreated for every iteration
+     */
+    @State(Scope.Group)
+    public static class SharedSession {
+        @Param({"100", "1000"})
+        public int historySize;
+
+        ChatSessionManager manager;
+        ChatSessionManager.ChatSession session;
+        String sessionId;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            manager = ChatSessionManager.getInstance();
+            manager.connectUsers("alice", "bob");
+            sessionId = manager.getSessionId("alice", "bob");
+            session = manager.getSession("alice", "bob");
+            for (int i = 0; i < historySize; i++) {
+                manager.addMessage(session, new Message("alice", "bob", "history " + i, Message.MessageType.TEXT));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            manager.disconnectUsers("alice", "bob");
+        }
+    }
+
+    /**
+     * Each writer thread reuses one message, so the benchmark measures the session, not allocation
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        Message message;
+        int sent;
+
+        @Setup
+        public void setup() {
+            message = new Message("alice", "bob", "Benchmark message", Message.MessageType.TEXT);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class UserPool {
+        @Param({"16"})
+        public int users;
+
+        ChatSessionManager manager;
+        String[] names;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            manager = ChatSessionManager.getInstance();
+            names = new String[users];
+            for (int i = 0; i < users; i++) {
+                names[i] = "user" + i;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (String name : names) {
+                manager.disconnectUser(name);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("chat")
+    @GroupThreads(3)
+    public void addMessage(SharedSession shared, Writer writer) {
+        shared.manager.addMessage(shared.session, writer.message);
+        if (++writer.sent % shared.historySize == 0) {
+            shared.manager.clearSession(shared.sessionId);
+        }
+    }
+
+    @Benchmark
+    @Group("chat")
+    @GroupThreads(1)
+    public List<Message> getSessionMessages(SharedSession shared) {
+        return shared.manager.getSessionMessages(shared.sessionId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean connectDisconnect(UserPool pool) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String user1 = pool.names[random.nextInt(pool.names.length)];
+        String user2 = pool.names[random.nextInt(pool.names.length)];
+        if (user1.equals(user2)) {
+            return false;
+        }
+        return pool.manager.connectUsers(user1, user2) && pool.manager.disconnectUsers(user1, user2);
+    }
+}
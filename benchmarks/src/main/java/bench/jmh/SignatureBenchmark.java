@@ -0,0 +1,49 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.DigitalSignatureUtil;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SignatureBenchmark times RSA signing on the client and verification on the server,
+ * which runs for every signed text and room message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureBenchmark {
+    private static final String USER = "bench-signer";
+    private static final String TEXT = "Benchmark message with a realistic length for a chat, around eighty characters.";
+
+    private byte[] signature;
+    private String publicKey;
+
+    @Setup
+    public void setup() throws Exception {
+        DigitalSignatureUtil.generateKeyPair(USER);
+        signature = DigitalSignatureUtil.signMessage(TEXT, USER);
+        publicKey = DigitalSignatureUtil.getUserPublicKeyString(USER);
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return DigitalSignatureUtil.signMessage(TEXT, USER);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return DigitalSignatureUtil.verifySignature(TEXT, signature, publicKey);
+    }
+}
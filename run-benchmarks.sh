@@ -0,0 +1,54 @@
+#!/bin/bash
+
+# Secure Chat Application - Benchmark Script
+echo "=== Running Secure Chat Benchmarks ==="
+
+# Usage: ./run-benchmarks.sh [fanout|pairing|jmh] [harness arguments]
+HARNESS=${1:-fanout}
+shift
+
+if [ "$HARNESS" = "jmh" ]; then
+    # JMH micro-benchmarks, built from benchmarks/pom.xml; extra arguments go to JMH (e.g. a name filter)
+    mvn -B -q -f benchmarks/pom.xml package
+    if [ $? -ne 0 ]; then
+        echo "❌ Benchmark build failed!"
+        exit 1
+    fi
+    
+    # JSON results, one file per run, so runs can be compared to spot regressions
+    mkdir -p bench-results
+    RESULTS="bench-results/jmh-$(date +%Y%m%d-%H%M%S).json"
+    java -jar benchmarks/target/benchmarks.jar -rf json -rff "$RESULTS" "$@" || exit 1
+    echo "📁 Results written to $RESULTS"
+    exit 0
+fi
+
+# Check if compiled classes exist
+if [ ! -f "build/server/ChatServer.class" ]; then
+    echo "❌ Server classes not found!"
+    echo "Please run ./compile.sh to compile the application."
+    exit 1
+fi
+
+# Compile the benchmark harnesses against the application classes
+mkdir -p build/bench
+javac -d build/bench -cp build benchmarks/src/main/java/bench/*.java
+if [ $? -ne 0 ]; then
+    echo "❌ Benchmark compilation failed!"
+    exit 1
+fi
+
+case "$HARNESS" in
+    fanout)
+        # Room fan-out: [members] [messages] [threads] [batchSize]
+        java -cp build:build/bench bench.FanoutBenchmark "$@"
+        ;;
+    pairing)
+        # Session pairing stress: [threads] [operationsPerThread] [users]
+        java -cp build:build/bench bench.PairingStress "$@"
+        ;;
+    *)
+        echo "Unknown harness: $HARNESS (expected fanout or pairing)"
+        exit 1
+        ;;
+esac
@@ -0,0 +1,52 @@
+#!/bin/bash
+
+# Secure Chat Application - Local Cluster Script
+echo "=== Starting Secure Chat Cluster ==="
+
+# Check if compiled classes exist
+if [ ! -f "build/server/ChatServer.class" ]; then
+    echo "❌ Server classes not found!"
+    echo "Please run ./compile.sh to compile the application."
+    exit 1
+fi
+
+# Usage: ./run-cluster.sh [nodes] [cluster secret]
+# Node i listens for clients on 12345+i and for peer nodes on 13345+i
+NODES=${1:-3}
+SECRET=${2:-${SECURECHAT_CLUSTER_SECRET:-change-me}}
+BASE_PORT=12345
+BASE_CLUSTER_PORT=13345
+
+mkdir -p files cluster
+PIDS=()
+
+for ((i = 0; i < NODES; i++)); do
+    # Every node links to every other node
+    PEERS=""
+    for ((j = 0; j < NODES; j++)); do
+        if [ $j -ne $i ]; then
+            PEERS="$PEERS${PEERS:+,}localhost:$((BASE_CLUSTER_PORT + j))"
+        fi
+    done
+
+    # Each node keeps its own offline queue and history directories
+    (cd build && exec java \
+        -Dsecurechat.nodeId=$i \
+        -Dsecurechat.port=$((BASE_PORT + i)) \
+        -Dsecurechat.cluster.port=$((BASE_CLUSTER_PORT + i)) \
+        -Dsecurechat.cluster.peers=$PEERS \
+        -Dsecurechat.cluster.secret=$SECRET \
+        -Dsecurechat.offline.dir=../cluster/node$i/offline \
+        -Dsecurechat.history.dir=../cluster/node$i/history \
+        server.ChatServer > ../cluster/node$i.log 2>&1) &
+    PIDS+=($!)
+    echo "🚀 Node $i: clients on port $((BASE_PORT + i)), peers on port $((BASE_CLUSTER_PORT + i)) (log: cluster/node$i.log)"
+done
+
+echo ""
+echo "Connect clients to any node, e.g.: cd build && java -Dsecurechat.port=$((BASE_PORT + 1)) client.ChatClient"
+echo "Press Ctrl+C to stop the cluster"
+echo "========================================"
+
+trap 'kill "${PIDS[@]}" 2>/dev/null' INT TERM
+wait
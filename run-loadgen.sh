@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Secure Chat Application - Load Generator Script
+echo "=== Starting Secure Chat Load Generator ==="
+
+# Check if compiled classes exist
+if [ ! -f "build/client/LoadGenerator.class" ]; then
+    echo "❌ Load generator classes not found!"
+    echo "Please run ./compile.sh to compile the application."
+    exit 1
+fi
+
+echo "🔗 Make sure the server is running first"
+echo "💡 The server's rate limits apply to simulated users too; raise them for capacity runs, e.g."
+echo "   -Dsecurechat.rate.global=200000/400000 -Dsecurechat.rate.TEXT=1000/2000"
+echo ""
+
+# Usage: ./run-loadgen.sh [--users N] [--rate R] [--duration S] ... (--help for all options)
+# Thousands of users need a thread and a socket each; raise the open file limit if needed
+ulimit -n 65536 2>/dev/null
+cd build
+java -Xss256k client.LoadGenerator "$@"
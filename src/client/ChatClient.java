@@ -17,8 +17,8 @@ import java.util.concurrent.TimeUnit;
  * ChatClient provides GUI interface for the secure chat application
  */
 public class ChatClient extends JFrame {
-    private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 12345;
+    private static final String SERVER_HOST = System.getProperty("securechat.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("securechat.port", 12345);
     
     // Modern cybersecurity color scheme
     private static final Color DARK_MATRIX = new Color(0, 20, 20);           // Very dark teal
@@ -38,11 +38,13 @@ public class ChatClient extends JFrame {
     private ObjectInputStream input;
     private ObjectOutputStream output;
     private SecretKey sessionKey;
+    private Compressor textCompressor; // Negotiated at JOIN; null sends payloads raw
+    private Compressor fileCompressor;
     
     // GUI components
     private JTextField usernameField;
     private JTextField recipientField;
-    private JTextArea chatArea;
+    private TranscriptView chatArea;
     private JTextField messageField;
     private JButton connectButton;
     private JButton sendButton;
@@ -61,33 +63,41 @@ public class ChatClient extends JFrame {
     private String username;
     private boolean isConnected;
     private ScheduledExecutorService heartbeatScheduler;
+    private volatile long lastReceivedMillis;
     private JLabel timerLabel; // For showing countdown
     
     // New features
     private JLabel typingIndicatorLabel; // For showing typing status
-    private java.util.Map<String, String> deliveryStatus; // Track message delivery status
+    private java.util.Map<Long, String> deliveryStatus; // Track message delivery status
+    private java.util.Map<Long, String> awaitingReceipt; // Partner each sent TEXT went to, until its receipt arrives
     private javax.swing.Timer typingTimer; // Timer for typing indicator
     
-    // File download history
-    private java.util.List<ReceivedFile> receivedFiles; // Track received files
+    // Open 1:1 sessions; the recipient field picks which one messages go to
+    private java.util.Set<String> partners;
+    
+    // History paging
+    private static final int HISTORY_PAGE_SIZE = 50;
+    
+    // Fraction of sent messages that carry a latency trace
+    private static final double TRACE_SAMPLE_RATE = Double.parseDouble(System.getProperty("securechat.trace.sampleRate", "0.02"));
+    
+    // Offer payload compression at JOIN unless -Dsecurechat.compression=false
+    private static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("securechat.compression", "true"));
+    
+    // Transcript lines kept in memory; older ones go to encrypted scrollback (-Dsecurechat.transcript.lines)
+    private static final int TRANSCRIPT_LINES = Integer.getInteger("securechat.transcript.lines", 2000);
+    private java.util.Map<String, Long> lastSeenSequence; // Latest session sequence seen per partner
+    private volatile int historyPageRemaining; // HISTORY messages still expected for the page in flight
+    private volatile String historyPartner; // Partner whose history page is in flight
+    
+    // File download history: received files spooled encrypted to disk, created on the first file
+    private volatile FileSpool fileSpool;
     private JButton downloadHistoryButton; // Button to show download history
     
-    // Inner class for received file tracking
-    private static class ReceivedFile {
-        String fileName;
-        String sender;
-        byte[] fileData;
-        java.time.LocalDateTime receivedTime;
-        boolean downloaded;
-        
-        ReceivedFile(String fileName, String sender, byte[] fileData) {
-            this.fileName = fileName;
-            this.sender = sender;
-            this.fileData = fileData;
-            this.receivedTime = java.time.LocalDateTime.now();
-            this.downloaded = false;
-        }
-    }
+    // Updates for the EDT, drained once per frame; typing and countdown render only their latest state
+    private final UiInbox inbox = new UiInbox(lines -> chatArea.append(lines));
+    private final UiInbox.Latest<String> typingState = inbox.latest(this::renderTypingIndicator);
+    private final UiInbox.Latest<Long> timerState = inbox.latest(this::renderTimer);
     
     public ChatClient() {
         // Set custom theme
@@ -97,7 +107,9 @@ public class ChatClient extends JFrame {
         this.isConnected = false;
         this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
         this.deliveryStatus = new java.util.concurrent.ConcurrentHashMap<>();
-        this.receivedFiles = new java.util.ArrayList<>();
+        this.awaitingReceipt = new java.util.concurrent.ConcurrentHashMap<>();
+        this.lastSeenSequence = new java.util.concurrent.ConcurrentHashMap<>();
+        this.partners = new java.util.LinkedHashSet<>();
     }
     
     /**
@@ -461,15 +473,8 @@ public class ChatClient extends JFrame {
         chatPanel.setBackground(CARD_DARK);
         chatPanel.setBorder(BorderFactory.createLineBorder(BORDER_NEON, 2));
         
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setFont(new Font("Consolas", Font.PLAIN, 13));
-        chatArea.setBackground(DARK_MATRIX);
-        chatArea.setForeground(MATRIX_GREEN);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setCaretColor(NEON_CYAN);
-        chatArea.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        chatArea = new TranscriptView(TRANSCRIPT_LINES, new Font("Consolas", Font.PLAIN, 13),
+            DARK_MATRIX, MATRIX_GREEN, CARD_DARK);
         
         JScrollPane scrollPane = new JScrollPane(chatArea);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
@@ -712,8 +717,10 @@ public class ChatClient extends JFrame {
             
             // Send join message
             Message joinMessage = new Message(username, "", "JOIN", Message.MessageType.JOIN);
-            output.writeObject(joinMessage);
-            output.flush();
+            if (COMPRESSION_ENABLED) {
+                joinMessage.setCodec(Compression.offer());
+            }
+            send(joinMessage);
             
             // Wait for acknowledgment
             Message ackMessage = (Message) input.readObject();
@@ -736,6 +743,9 @@ public class ChatClient extends JFrame {
                 // Positive acknowledgment - proceed with connection
                 this.username = username;
                 this.isConnected = true;
+                PayloadCodec codec = Compression.negotiate(ackMessage.getCodec());
+                textCompressor = codec != null ? new Compressor(codec, () -> Compression.DEFAULT_MIN_BYTES) : null;
+                fileCompressor = codec != null ? new Compressor(codec, () -> Compression.DEFAULT_MIN_BYTES) : null;
                 
                 // Update window title with username
                 setTitle("SecureChat - " + username + " [SELF-DESTRUCTIVE]");
@@ -773,6 +783,10 @@ public class ChatClient extends JFrame {
         try {
             while (isConnected && !socket.isClosed()) {
                 Message message = (Message) input.readObject();
+                if (message.getTrace() != null) {
+                    message.getTrace().setClientReceiveMicros(MessageTrace.wallMicros());
+                }
+                lastReceivedMillis = System.currentTimeMillis();
                 handleIncomingMessage(message);
             }
         } catch (Exception e) {
@@ -784,116 +798,188 @@ public class ChatClient extends JFrame {
     }
     
     /**
-     * Handle incoming messages from server
+     * Handle incoming messages from server. Runs on the listener thread: decryption, signature
+     * checks, file spooling and replies to the server all happen here, and only finished
+     * transcript lines and changes to Swing state are handed to the EDT.
      */
     private void handleIncomingMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                switch (message.getType()) {
-                    case TEXT:
-                        String decryptedText = EncryptionUtil.decrypt(message.getContent(), sessionKey);
-                        
-                        // Verify digital signature if present
-                        String signatureStatus = "";
-                        if (message.getDigitalSignature() != null && message.getSignerPublicKey() != null) {
-                            boolean signatureValid = DigitalSignatureUtil.verifySignature(
-                                decryptedText, message.getDigitalSignature(), message.getSignerPublicKey());
-                            signatureStatus = signatureValid ? " ✅" : " ⚠️";
-                        }
-                        
-                        appendToChatArea(message.getSender() + ": " + decryptedText + signatureStatus);
-                        
-                        // Send read receipt
-                        sendReadReceipt(message.getMessageId(), message.getSender());
-                        break;
-                        
-                    case FILE:
-                        byte[] decryptedFile = EncryptionUtil.decryptBytes(message.getFileData(), sessionKey);
-                        handleIncomingFile(message.getSender(), message.getFileName(), decryptedFile);
-                        break;
-                        
-                    case SYSTEM:
-                        String systemMessage = message.getContent();
-                        appendToChatArea("[SYSTEM] " + systemMessage);
-                        
-                        // Check for connection status changes
-                        if (systemMessage.contains("You can now start chatting!")) {
-                            // Extract the connected user's name
-                            String connectedUser = "";
-                            if (systemMessage.contains("Connected to ")) {
-                                connectedUser = systemMessage.substring(systemMessage.indexOf("Connected to ") + 13, 
-                                    systemMessage.indexOf(". You can now start chatting!"));
-                            } else if (systemMessage.contains(" accepted your request")) {
-                                connectedUser = systemMessage.substring(0, systemMessage.indexOf(" accepted your request"));
-                            }
-                            setConnectionStatus(true, connectedUser);
-                        } else if (systemMessage.contains("disconnected") || systemMessage.contains("has left")) {
-                            setConnectionStatus(false, "");
+        try {
+            switch (message.getType()) {
+                case TEXT:
+                    String decryptedText = Compression.openText(message, sessionKey, Compression.DEFAULT_MAX_BYTES);
+                    
+                    // Verify digital signature if present
+                    String signatureStatus = "";
+                    if (message.getDigitalSignature() != null && message.getSignerPublicKey() != null) {
+                        boolean signatureValid = DigitalSignatureUtil.verifySignature(
+                            decryptedText, message.getDigitalSignature(), message.getSignerPublicKey());
+                        signatureStatus = signatureValid ? " ✅" : " ⚠️";
+                    }
+                    
+                    appendToChatArea(message.getSender() + ": " + decryptedText + signatureStatus);
+                    recordSequence(message.getSender(), message.getSequence());
+                    
+                    // Send read receipt
+                    sendReadReceipt(message.getReceiptId(), message.getSender());
+                    sendTraceReport(message);
+                    break;
+                
+                case HISTORY:
+                    if (!acceptHistory(message.getSequence())) {
+                        break; // Already shown live or by an earlier page
+                    }
+                    String historyText = EncryptionUtil.decrypt(message.getContent(), sessionKey);
+                    String sentAt = message.getTimestamp().format(
+                        java.time.format.DateTimeFormatter.ofPattern("MMM dd, HH:mm"));
+                    String historySender = username.equals(message.getSender()) ? "You" : message.getSender();
+                    appendToChatArea("[HISTORY " + sentAt + "] " + historySender + ": " + historyText);
+                    break;
+                
+                case ROOM_TEXT:
+                    String roomText = EncryptionUtil.decrypt(message.getContent(), sessionKey);
+                    String roomSignature = "";
+                    if (message.getDigitalSignature() != null && message.getSignerPublicKey() != null) {
+                        boolean signatureValid = DigitalSignatureUtil.verifySignature(
+                            roomText, message.getDigitalSignature(), message.getSignerPublicKey());
+                        roomSignature = signatureValid ? " ✅" : " ⚠️";
+                    }
+                    appendToChatArea("[" + message.getReceiver() + "] " + message.getSender() + ": " + roomText + roomSignature);
+                    break;
+                
+                case PRESENCE_LIST:
+                    String found = message.getContent();
+                    appendToChatArea(found == null || found.isEmpty()
+                        ? "[SYSTEM] No matching users online."
+                        : "[SYSTEM] Online: " + found.replace("\n", ", "));
+                    break;
+                
+                case PRESENCE_UPDATE:
+                    for (String change : message.getContent().split("\n")) {
+                        if (change.length() > 1) {
+                            appendToChatArea(change.charAt(0) == '+'
+                                ? "🟢 " + change.substring(1) + " is online"
+                                : "⚫ " + change.substring(1) + " went offline");
                         }
-                        break;
-                        
-                    case CONNECT_REQUEST:
-                        handleConnectionRequest(message);
-                        break;
-                        
-                    case CLEAR_LOCAL_CHAT:
-                        if ("CLEAR_CHAT_AREA".equals(message.getContent())) {
-                            // Clear local chat area when other user clears for both
-                            chatArea.setText("");
-                            appendToChatArea("Chat history cleared by " + message.getSender());
+                    }
+                    break;
+                
+                case FILE:
+                    byte[] decryptedFile = Compression.openFile(message, sessionKey, Compression.DEFAULT_MAX_BYTES);
+                    handleIncomingFile(message.getSender(), message.getFileName(), decryptedFile);
+                    sendTraceReport(message);
+                    break;
+                    
+                case SYSTEM:
+                    String systemMessage = message.getContent();
+                    appendToChatArea("[SYSTEM] " + systemMessage);
+                    
+                    // Check for connection status changes
+                    if (systemMessage.contains("You can now start chatting!")) {
+                        // Extract the connected user's name
+                        String connectedUser;
+                        if (systemMessage.contains("Connected to ")) {
+                            connectedUser = systemMessage.substring(systemMessage.indexOf("Connected to ") + 13, 
+                                systemMessage.indexOf(". You can now start chatting!"));
+                        } else if (systemMessage.contains(" accepted your request")) {
+                            connectedUser = systemMessage.substring(0, systemMessage.indexOf(" accepted your request"));
                         } else {
-                            appendToChatArea("[SYSTEM] " + message.getContent());
+                            connectedUser = "";
                         }
-                        break;
-                        
-                    case DESTROY_CHAT:
-                        if ("CLOSE_APPLICATION".equals(message.getContent())) {
-                            appendToChatArea("[SYSTEM] Chat session destroyed. Application will close.");
-                            // Close the application after a short delay
-                            Timer timer = new Timer(2000, e -> {
-                                disconnect();
-                                System.exit(0);
-                            });
-                            timer.setRepeats(false);
-                            timer.start();
-                        }
-                        break;
-                        
-                    case TIMER_UPDATE:
-                        handleTimerUpdate(message);
-                        break;
-                        
-                    case TIMER_EXPIRED:
-                        handleTimerExpired(message);
-                        break;
-                        
-                    case HEARTBEAT:
-                        // Heartbeat acknowledged
-                        break;
-                        
-                    case TYPING_START:
-                        showTypingIndicator(message.getSender());
-                        break;
-                        
-                    case TYPING_STOP:
-                        hideTypingIndicator();
-                        break;
-                        
-                    case DELIVERY_RECEIPT:
-                        handleDeliveryReceipt(message);
-                        break;
-                        
-                    case READ_RECEIPT:
-                        handleReadReceipt(message);
-                        break;
-                        
-                    default:
-                        appendToChatArea("[UNKNOWN] " + message.getContent());
-                }
-            } catch (Exception e) {
-                appendToChatArea("[ERROR] Failed to process message: " + e.getMessage());
+                        inbox.post(() -> setConnectionStatus(true, connectedUser));
+                    } else if (systemMessage.contains("disconnected") || systemMessage.contains("has left")) {
+                        String endedWith = parseEndedPartner(systemMessage);
+                        inbox.post(() -> {
+                            if (endedWith != null) {
+                                endConversation(endedWith);
+                            } else {
+                                setConnectionStatus(false, "");
+                            }
+                        });
+                    }
+                    break;
+                    
+                case CONNECT_REQUEST:
+                    inbox.post(() -> handleConnectionRequest(message));
+                    break;
+                
+                case CLEAR_LOCAL_CHAT:
+                    if ("CLEAR_CHAT_AREA".equals(message.getContent())) {
+                        // Clear local chat area when other user clears for both
+                        inbox.post(chatArea::clear);
+                        appendToChatArea("Chat history cleared by " + message.getSender());
+                    } else {
+                        appendToChatArea("[SYSTEM] " + message.getContent());
+                    }
+                    break;
+                
+                case DESTROY_CHAT:
+                    if ("CLOSE_APPLICATION".equals(message.getContent())) {
+                        inbox.post(() -> handleChatDestroyed(message.getSender()));
+                    }
+                    break;
+                
+                case TIMER_UPDATE:
+                    handleTimerUpdate(message);
+                    break;
+                
+                case TIMER_EXPIRED:
+                    handleTimerExpired(message);
+                    break;
+                
+                case HEARTBEAT:
+                    // Heartbeat acknowledged
+                    break;
+                
+                case PING:
+                    // Echo the server's keepalive at once so it can time the round trip
+                    Message pong = new Message(username, "SERVER", null, Message.MessageType.PONG);
+                    pong.setSequence(message.getSequence());
+                    send(pong);
+                    break;
+                
+                case TYPING_START:
+                    showTypingIndicator(message.getSender());
+                    break;
+                
+                case TYPING_STOP:
+                    hideTypingIndicator();
+                    break;
+                
+                case DELIVERY_RECEIPT:
+                    handleDeliveryReceipt(message);
+                    break;
+                
+                case READ_RECEIPT:
+                    handleReadReceipt(message);
+                    break;
+                
+                default:
+                    appendToChatArea("[UNKNOWN] " + message.getContent());
             }
+        } catch (Exception e) {
+            appendToChatArea("[ERROR] Failed to process message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * End the session with partner after the server destroyed it; the application closes
+     * unless other sessions are still open. Runs on the EDT.
+     */
+    private void handleChatDestroyed(String partner) {
+        if (hasOtherPartners(partner)) {
+            // Other sessions are still open, so only this one ends
+            appendToChatArea("[SYSTEM] Chat with " + partner + " destroyed.");
+            endConversation(partner);
+            return;
+        }
+        appendToChatArea("[SYSTEM] Chat session destroyed. Application will close.");
+        // Close the application after a short delay
+        Timer timer = new Timer(2000, e -> {
+            disconnect();
+            System.exit(0);
         });
+        timer.setRepeats(false);
+        timer.start();
     }
     
     /**
@@ -914,8 +1000,7 @@ public class ChatClient extends JFrame {
         try {
             Message connectRequest = new Message(username, recipient, 
                 "CONNECTION_REQUEST", Message.MessageType.CONNECT_REQUEST);
-            output.writeObject(connectRequest);
-            output.flush();
+            send(connectRequest);
             
             appendToChatArea("Sending connection request to " + recipient + "...");
             
@@ -929,13 +1014,13 @@ public class ChatClient extends JFrame {
      */
     private void disconnectFromUser() {
         try {
-            Message disconnectRequest = new Message(username, "", 
+            String partner = recipientField.getText().trim();
+            Message disconnectRequest = new Message(username, partner, 
                 "DISCONNECT_REQUEST", Message.MessageType.DISCONNECT_REQUEST);
-            output.writeObject(disconnectRequest);
-            output.flush();
+            send(disconnectRequest);
             
             // Update UI
-            setConnectionStatus(false, "");
+            endConversation(partner);
             
         } catch (Exception e) {
             appendToChatArea("[ERROR] Failed to disconnect: " + e.getMessage());
@@ -960,8 +1045,7 @@ public class ChatClient extends JFrame {
                 // Accept the connection
                 Message acceptMessage = new Message(username, requester,
                     "ACCEPT", Message.MessageType.CONNECT_ACCEPT);
-                output.writeObject(acceptMessage);
-                output.flush();
+                send(acceptMessage);
                 
                 // Update UI for connection
                 setConnectionStatus(true, requester);
@@ -971,8 +1055,7 @@ public class ChatClient extends JFrame {
                 // Reject the connection
                 Message rejectMessage = new Message(username, requester,
                     "REJECT", Message.MessageType.CONNECT_REJECT);
-                output.writeObject(rejectMessage);
-                output.flush();
+                send(rejectMessage);
                 
                 appendToChatArea("Rejected connection request from " + requester);
             }
@@ -986,10 +1069,8 @@ public class ChatClient extends JFrame {
      */
     private void setConnectionStatus(boolean connected, String connectedTo) {
         if (connected && !connectedTo.isEmpty()) {
-            connectionStatusLabel.setText("🔐 Securely connected to " + connectedTo);
-            connectionStatusLabel.setForeground(SUCCESS_GREEN);
-            recipientField.setText(connectedTo);
-            recipientField.setEditable(false);
+            partners.add(connectedTo);
+            showActivePartner(connectedTo);
             
             // Enable chat controls
             messageField.setEnabled(true);
@@ -1000,11 +1081,18 @@ public class ChatClient extends JFrame {
             setTimerButton.setEnabled(true);
             downloadHistoryButton.setEnabled(true);
             
-            // Update connection buttons
-            connectToUserButton.setEnabled(false);
+            // Update connection buttons (more sessions can be opened alongside this one)
+            connectToUserButton.setEnabled(true);
             disconnectButton.setEnabled(true);
             
+            // Catch up on what was said since we last talked to this partner
+            Long lastSeen = lastSeenSequence.get(connectedTo);
+            if (lastSeen != null) {
+                requestHistory(connectedTo, lastSeen);
+            }
+        
         } else {
+            partners.clear();
             connectionStatusLabel.setText("🔓 Not connected to anyone");
             connectionStatusLabel.setForeground(DANGER_RED);
             recipientField.setText("");
@@ -1024,10 +1112,63 @@ public class ChatClient extends JFrame {
             disconnectButton.setEnabled(false);
             
             // Clear chat area
-            chatArea.setText("");
+            inbox.post(chatArea::clear);
         }
     }
 
+    /**
+     * Make partner the session messages go to and show it in the status bar
+     */
+    private void showActivePartner(String partner) {
+        String others = partners.size() > 1 ? " (+" + (partners.size() - 1) + " more)" : "";
+        connectionStatusLabel.setText("🔐 Securely connected to " + partner + others);
+        connectionStatusLabel.setForeground(SUCCESS_GREEN);
+        recipientField.setText(partner);
+        recipientField.setEditable(true); // Type another partner's name to switch sessions
+    }
+    
+    /**
+     * Forget a session that ended; switch to another open one if there is one
+     */
+    private void endConversation(String partner) {
+        partners.remove(partner);
+        if (partners.isEmpty()) {
+            setConnectionStatus(false, "");
+            return;
+        }
+        
+        String active = recipientField.getText().trim();
+        if (!partners.contains(active)) {
+            String latest = null;
+            for (String open : partners) {
+                latest = open;
+            }
+            active = latest;
+        }
+        showActivePartner(active);
+    }
+    
+    /**
+     * Check if sessions other than the one with partner are open
+     */
+    private boolean hasOtherPartners(String partner) {
+        return partners.size() > (partners.contains(partner) ? 1 : 0);
+    }
+    
+    /**
+     * Extract who a session ended with from the server's disconnect notices
+     */
+    private String parseEndedPartner(String systemMessage) {
+        if (systemMessage.startsWith("You have disconnected from ")) {
+            return systemMessage.substring(27, systemMessage.length() - 1);
+        }
+        int end = systemMessage.indexOf(" has disconnected from the chat.");
+        if (end < 0) {
+            end = systemMessage.indexOf(" has left the chat.");
+        }
+        return end > 0 ? systemMessage.substring(0, end) : null;
+    }
+    
     /**
      * Send text message
      */
@@ -1038,7 +1179,17 @@ public class ChatClient extends JFrame {
         String recipient = recipientField.getText().trim();
         String messageText = messageField.getText().trim();
         
-        if (recipient.isEmpty() || messageText.isEmpty()) {
+        if (messageText.isEmpty()) {
+            return;
+        }
+        
+        // Commands don't need a recipient
+        if (messageText.startsWith("/") && (handleRoomCommand(messageText) || handlePresenceCommand(messageText))) {
+            messageField.setText("");
+            return;
+        }
+        
+        if (recipient.isEmpty()) {
             return;
         }
         
@@ -1046,11 +1197,9 @@ public class ChatClient extends JFrame {
             // Stop typing indicator
             sendTypingStop();
             
-            // Encrypt message
-            String encryptedText = EncryptionUtil.encrypt(messageText, sessionKey);
-            
-            // Create message with digital signature
-            Message message = new Message(username, recipient, encryptedText, Message.MessageType.TEXT);
+            // Create message, compressed if worthwhile and encrypted, with digital signature
+            Message message = new Message(username, recipient, null, Message.MessageType.TEXT);
+            Compression.sealText(message, messageText, sessionKey, textCompressor);
             
             // Add digital signature
             try {
@@ -1064,9 +1213,12 @@ public class ChatClient extends JFrame {
             
             // Track delivery status
             deliveryStatus.put(message.getMessageId(), "SENT");
+            awaitingReceipt.put(message.getMessageId(), recipient);
             
-            output.writeObject(message);
-            output.flush();
+            if (MessageTrace.sample(TRACE_SAMPLE_RATE)) {
+                message.setTrace(MessageTrace.start());
+            }
+            send(message);
             
             // Display in chat area with delivery status
             appendToChatArea("You: " + messageText + " ✓");
@@ -1077,6 +1229,75 @@ public class ChatClient extends JFrame {
         }
     }
     
+    /**
+     * Handle the group room commands: /join room, /leave room and /room room message.
+     * Returns false if the text is not a room command.
+     */
+    private boolean handleRoomCommand(String text) {
+        String[] parts = text.split("\\s+", 3);
+        String command = parts[0];
+        if (!command.equals("/join") && !command.equals("/leave") && !command.equals("/room")) {
+            return false;
+        }
+        if (parts.length < 2 || (command.equals("/room") && parts.length < 3)) {
+            appendToChatArea("[SYSTEM] Usage: /join <room>, /leave <room>, /room <room> <message>");
+            return true;
+        }
+        
+        String room = parts[1];
+        try {
+            Message message;
+            if (command.equals("/join")) {
+                message = new Message(username, room, null, Message.MessageType.ROOM_JOIN);
+            } else if (command.equals("/leave")) {
+                message = new Message(username, room, null, Message.MessageType.ROOM_LEAVE);
+            } else {
+                message = new Message(username, room, EncryptionUtil.encrypt(parts[2], sessionKey), Message.MessageType.ROOM_TEXT);
+                try {
+                    message.setDigitalSignature(DigitalSignatureUtil.signMessage(parts[2], username));
+                    message.setSignerPublicKey(DigitalSignatureUtil.getUserPublicKeyString(username));
+                } catch (Exception e) {
+                    System.err.println("Warning: Could not sign message: " + e.getMessage());
+                }
+                deliveryStatus.put(message.getMessageId(), "SENT");
+                appendToChatArea("[" + room + "] You: " + parts[2]);
+            }
+            send(message);
+        } catch (Exception e) {
+            appendToChatArea("[ERROR] Failed to send room command: " + e.getMessage());
+        }
+        return true;
+    }
+    
+    /**
+     * Handle /who [prefix], /watch <users> and /unwatch <users> (users separated by commas)
+     */
+    private boolean handlePresenceCommand(String text) {
+        String[] parts = text.split("\\s+", 2);
+        String command = parts[0];
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+        Message message;
+        if (command.equals("/who")) {
+            message = new Message(username, null, argument, Message.MessageType.PRESENCE_QUERY);
+        } else if (command.equals("/watch") || command.equals("/unwatch")) {
+            if (argument.isEmpty()) {
+                appendToChatArea("[SYSTEM] Usage: /who [prefix], /watch <user,user...>, /unwatch <user,user...>");
+                return true;
+            }
+            message = new Message(username, null, argument, command.equals("/watch")
+                ? Message.MessageType.PRESENCE_SUBSCRIBE : Message.MessageType.PRESENCE_UNSUBSCRIBE);
+        } else {
+            return false;
+        }
+        
+        try {
+            send(message);
+        } catch (Exception e) {
+            appendToChatArea("[ERROR] Failed to send presence command: " + e.getMessage());
+        }
+        return true;
+    }
+    
     /**
      * Send file
      */
@@ -1099,17 +1320,16 @@ public class ChatClient extends JFrame {
                 byte[] fileData = fis.readAllBytes();
                 fis.close();
                 
-                // Encrypt file data
-                byte[] encryptedFile = EncryptionUtil.encryptBytes(fileData, sessionKey);
-                
-                // Create and send file message
+                // Create and send file message, compressed if worthwhile and encrypted
                 Message fileMessage = new Message(username, recipient, "FILE_TRANSFER", Message.MessageType.FILE);
                 fileMessage.setFileName(selectedFile.getName());
-                fileMessage.setFileData(encryptedFile);
+                Compression.sealFile(fileMessage, fileData, sessionKey, fileCompressor);
                 fileMessage.setFileSize(fileData.length);
+                if (MessageTrace.sample(TRACE_SAMPLE_RATE)) {
+                    fileMessage.setTrace(MessageTrace.start());
+                }
                 
-                output.writeObject(fileMessage);
-                output.flush();
+                send(fileMessage);
                 
                 appendToChatArea("You sent file: " + selectedFile.getName() + 
                     " (" + fileData.length + " bytes)");
@@ -1121,15 +1341,32 @@ public class ChatClient extends JFrame {
     }
     
     /**
-     * Handle incoming file
+     * Handle incoming file: spool it here, on the listener thread, and prompt on the EDT
      */
     private void handleIncomingFile(String sender, String fileName, byte[] fileData) {
         appendToChatArea(sender + " sent file: " + fileName + " (" + fileData.length + " bytes)");
         
-        // Add to received files history
-        ReceivedFile receivedFile = new ReceivedFile(fileName, sender, fileData);
-        receivedFiles.add(receivedFile);
+        // Add to received files history; only the spool keeps the contents
+        FileSpool.Entry receivedFile = null;
+        try {
+            if (fileSpool == null) {
+                fileSpool = new FileSpool();
+            }
+            receivedFile = fileSpool.add(fileName, sender, fileData);
+        } catch (IOException e) {
+            appendToChatArea("[ERROR] Could not keep file in history: " + e.getMessage());
+        }
         
+        // The prompt holds on to the data only if the spool could not take it
+        FileSpool.Entry spooled = receivedFile;
+        byte[] unspooled = spooled == null ? fileData : null;
+        inbox.post(() -> offerToSaveFile(sender, fileName, spooled, unspooled));
+    }
+    
+    /**
+     * Ask whether to save a received file now, from the spool or else from its data
+     */
+    private void offerToSaveFile(String sender, String fileName, FileSpool.Entry spooled, byte[] unspooled) {
         int option = JOptionPane.showConfirmDialog(this, 
             "Save file '" + fileName + "' from " + sender + " now?\n(You can also download it later from File History)", 
             "File Received", JOptionPane.YES_NO_OPTION);
@@ -1142,12 +1379,13 @@ public class ChatClient extends JFrame {
             if (result == JFileChooser.APPROVE_OPTION) {
                 try {
                     File saveFile = fileChooser.getSelectedFile();
-                    FileOutputStream fos = new FileOutputStream(saveFile);
-                    fos.write(fileData);
-                    fos.close();
-                    
-                    // Mark as downloaded
-                    receivedFile.downloaded = true;
+                    if (spooled != null) {
+                        fileSpool.saveTo(spooled, saveFile.toPath()); // Marks it downloaded
+                    } else {
+                        try (FileOutputStream fos = new FileOutputStream(saveFile)) {
+                            fos.write(unspooled);
+                        }
+                    }
                     
                     appendToChatArea("File saved: " + saveFile.getAbsolutePath());
                 } catch (Exception e) {
@@ -1208,11 +1446,10 @@ public class ChatClient extends JFrame {
             try {
                 Message clearMessage = new Message(username, recipient, 
                     "CLEAR_CHAT", Message.MessageType.CLEAR_CHAT);
-                output.writeObject(clearMessage);
-                output.flush();
+                send(clearMessage);
                 
                 // Clear local chat area
-                chatArea.setText("");
+                inbox.post(chatArea::clear);
                 appendToChatArea("Chat history cleared for both users");
                 
             } catch (Exception e) {
@@ -1238,11 +1475,10 @@ public class ChatClient extends JFrame {
                 // Send message to server for logging
                 Message clearMessage = new Message(username, recipient, 
                     "CLEAR_LOCAL_CHAT", Message.MessageType.CLEAR_LOCAL_CHAT);
-                output.writeObject(clearMessage);
-                output.flush();
+                send(clearMessage);
                 
                 // Clear only local chat area
-                chatArea.setText("");
+                inbox.post(chatArea::clear);
                 appendToChatArea("Your local chat history cleared");
                 
             } catch (Exception e) {
@@ -1273,8 +1509,7 @@ public class ChatClient extends JFrame {
             try {
                 Message destroyMessage = new Message(username, recipient, 
                     "DESTROY_CHAT", Message.MessageType.DESTROY_CHAT);
-                output.writeObject(destroyMessage);
-                output.flush();
+                send(destroyMessage);
             } catch (Exception e) {
                 appendToChatArea("[ERROR] Failed to destroy chat: " + e.getMessage());
             }
@@ -1368,8 +1603,7 @@ public class ChatClient extends JFrame {
                     "SET_TIMER", Message.MessageType.SET_TIMER);
                 timerMessage.setTimerDuration(totalSeconds); // Store in seconds
                 
-                output.writeObject(timerMessage);
-                output.flush();
+                send(timerMessage);
                 
                 timerDialog.dispose();
                 
@@ -1390,10 +1624,12 @@ public class ChatClient extends JFrame {
     }
     
     /**
-     * Show download history dialog with received files
+     * Show download history dialog with received files. The list reads entries from the spool
+     * as rows scroll into view and paints them with one shared renderer, so it opens just as
+     * fast with hundreds of files.
      */
     private void showDownloadHistory() {
-        if (receivedFiles.isEmpty()) {
+        if (fileSpool == null || fileSpool.getEntries().isEmpty()) {
             JOptionPane.showMessageDialog(this, 
                 "No files received yet in this session", 
                 "File History Empty", JOptionPane.INFORMATION_MESSAGE);
@@ -1411,65 +1647,49 @@ public class ChatClient extends JFrame {
         mainPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
         
         // Header
-        JLabel headerLabel = new JLabel("📁 Received Files History");
+        JLabel headerLabel = new JLabel("📁 Received Files History (" + fileSpool.getEntries().size() + ")");
         headerLabel.setFont(new Font("Segoe UI", Font.BOLD, 16));
         headerLabel.setForeground(MATRIX_GREEN);
         headerLabel.setHorizontalAlignment(SwingConstants.CENTER);
         mainPanel.add(headerLabel, BorderLayout.NORTH);
         
-        // Files list panel
-        JPanel filesPanel = new JPanel();
-        filesPanel.setLayout(new BoxLayout(filesPanel, BoxLayout.Y_AXIS));
-        filesPanel.setBackground(DARK_MATRIX);
-        
-        for (ReceivedFile file : receivedFiles) {
-            JPanel fileRowPanel = new JPanel(new BorderLayout());
-            fileRowPanel.setBackground(DARK_MATRIX);
-            fileRowPanel.setBorder(BorderFactory.createCompoundBorder(
-                BorderFactory.createLineBorder(MATRIX_GREEN, 1),
-                BorderFactory.createEmptyBorder(8, 12, 8, 12)
-            ));
-            fileRowPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 60));
-            
-            // File info
-            String statusIcon = file.downloaded ? "✅" : "📁";
-            String statusText = file.downloaded ? " (Downloaded)" : " (Not Downloaded)";
-            
-            JLabel fileInfoLabel = new JLabel(statusIcon + " " + file.fileName + statusText);
-            fileInfoLabel.setForeground(NEON_CYAN);
-            fileInfoLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
-            
-            JLabel detailsLabel = new JLabel("From: " + file.sender + " | " + 
-                file.receivedTime.format(java.time.format.DateTimeFormatter.ofPattern("MMM dd, HH:mm")));
-            detailsLabel.setForeground(MATRIX_GREEN);
-            detailsLabel.setFont(new Font("Segoe UI", Font.PLAIN, 10));
-            
-            JPanel infoPanel = new JPanel(new BorderLayout());
-            infoPanel.setBackground(DARK_MATRIX);
-            infoPanel.add(fileInfoLabel, BorderLayout.NORTH);
-            infoPanel.add(detailsLabel, BorderLayout.SOUTH);
-            
-            // Download button
-            JButton downloadBtn = createCyberButton("💾 Download", SUCCESS_GREEN);
-            downloadBtn.addActionListener(e -> downloadFile(file, historyDialog));
-            
-            fileRowPanel.add(infoPanel, BorderLayout.CENTER);
-            fileRowPanel.add(downloadBtn, BorderLayout.EAST);
-            
-            filesPanel.add(fileRowPanel);
-            filesPanel.add(Box.createVerticalStrut(5));
-        }
+        // Files list, backed directly by the spool's entries
+        java.util.List<FileSpool.Entry> entries = fileSpool.getEntries();
+        JList<FileSpool.Entry> filesList = new JList<>(new AbstractListModel<FileSpool.Entry>() {
+            @Override
+            public int getSize() { return entries.size(); }
+            @Override
+            public FileSpool.Entry getElementAt(int index) { return entries.get(index); }
+        });
+        filesList.setBackground(DARK_MATRIX);
+        filesList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        filesList.setFixedCellHeight(52); // No per-row measuring
+        filesList.setCellRenderer(new ReceivedFileRenderer());
+        filesList.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                if (e.getClickCount() == 2 && filesList.getSelectedValue() != null) {
+                    downloadFile(filesList.getSelectedValue(), historyDialog, filesList);
+                }
+            }
+        });
         
-        JScrollPane scrollPane = new JScrollPane(filesPanel);
+        JScrollPane scrollPane = new JScrollPane(filesList);
         scrollPane.setBackground(DARK_MATRIX);
         scrollPane.getViewport().setBackground(DARK_MATRIX);
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
         mainPanel.add(scrollPane, BorderLayout.CENTER);
         
-        // Close button
+        // Download and close buttons
         JPanel buttonPanel = new JPanel(new FlowLayout());
         buttonPanel.setBackground(DARK_MATRIX);
         
+        JButton downloadBtn = createCyberButton("💾 Download", SUCCESS_GREEN);
+        downloadBtn.setEnabled(false);
+        filesList.addListSelectionListener(e -> downloadBtn.setEnabled(filesList.getSelectedValue() != null));
+        downloadBtn.addActionListener(e -> downloadFile(filesList.getSelectedValue(), historyDialog, filesList));
+        buttonPanel.add(downloadBtn);
+        
         JButton closeButton = createCyberButton("❌ Close", DANGER_RED);
         closeButton.addActionListener(e -> historyDialog.dispose());
         buttonPanel.add(closeButton);
@@ -1480,10 +1700,46 @@ public class ChatClient extends JFrame {
         historyDialog.setVisible(true);
     }
     
+    /**
+     * One row of the file history: name and download status over sender and time
+     */
+    private class ReceivedFileRenderer extends JPanel implements ListCellRenderer<FileSpool.Entry> {
+        private static final long serialVersionUID = 1L;
+        
+        private final JLabel fileInfoLabel = new JLabel();
+        private final JLabel detailsLabel = new JLabel();
+        
+        ReceivedFileRenderer() {
+            super(new BorderLayout());
+            fileInfoLabel.setForeground(NEON_CYAN);
+            fileInfoLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
+            detailsLabel.setForeground(MATRIX_GREEN);
+            detailsLabel.setFont(new Font("Segoe UI", Font.PLAIN, 10));
+            add(fileInfoLabel, BorderLayout.NORTH);
+            add(detailsLabel, BorderLayout.SOUTH);
+        }
+        
+        @Override
+        public Component getListCellRendererComponent(JList<? extends FileSpool.Entry> list, FileSpool.Entry file,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            String statusIcon = file.downloaded ? "✅" : "📁";
+            String statusText = file.downloaded ? " (Downloaded)" : " (Not Downloaded)";
+            fileInfoLabel.setText(statusIcon + " " + file.fileName + statusText);
+            detailsLabel.setText("From: " + file.sender + " | " + (file.size / 1024) + " KB | " +
+                file.receivedTime.format(java.time.format.DateTimeFormatter.ofPattern("MMM dd, HH:mm")));
+            setBackground(isSelected ? CARD_DARK : DARK_MATRIX);
+            setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(isSelected ? NEON_CYAN : MATRIX_GREEN, 1),
+                BorderFactory.createEmptyBorder(8, 12, 8, 12)
+            ));
+            return this;
+        }
+    }
+    
     /**
      * Download a file from history
      */
-    private void downloadFile(ReceivedFile file, JDialog parentDialog) {
+    private void downloadFile(FileSpool.Entry file, JDialog parentDialog, JList<FileSpool.Entry> filesList) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setSelectedFile(new File(file.fileName));
         
@@ -1491,20 +1747,14 @@ public class ChatClient extends JFrame {
         if (result == JFileChooser.APPROVE_OPTION) {
             try {
                 File saveFile = fileChooser.getSelectedFile();
-                FileOutputStream fos = new FileOutputStream(saveFile);
-                fos.write(file.fileData);
-                fos.close();
-                
-                // Mark as downloaded
-                file.downloaded = true;
+                fileSpool.saveTo(file, saveFile.toPath());
                 
                 JOptionPane.showMessageDialog(parentDialog, 
                     "File saved successfully to:\n" + saveFile.getAbsolutePath(),
                     "Download Complete", JOptionPane.INFORMATION_MESSAGE);
                 
-                // Refresh the dialog to show updated status
-                parentDialog.dispose();
-                showDownloadHistory();
+                // Show the updated status
+                filesList.repaint();
                 
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(parentDialog,
@@ -1515,16 +1765,15 @@ public class ChatClient extends JFrame {
     }
     
     /**
-     * Start heartbeat to keep connection alive
+     * Start heartbeat to keep connection alive; it is only sent after 30 seconds without server traffic
      */
     private void startHeartbeat() {
         heartbeatScheduler.scheduleAtFixedRate(() -> {
-            if (isConnected) {
+            if (isConnected && System.currentTimeMillis() - lastReceivedMillis >= 30000) {
                 try {
                     Message heartbeat = new Message(username, "SERVER", 
                         "HEARTBEAT", Message.MessageType.HEARTBEAT);
-                    output.writeObject(heartbeat);
-                    output.flush();
+                    send(heartbeat);
                 } catch (Exception e) {
                     appendToChatArea("[ERROR] Heartbeat failed: " + e.getMessage());
                 }
@@ -1532,14 +1781,22 @@ public class ChatClient extends JFrame {
         }, 30, 30, TimeUnit.SECONDS);
     }
     
+    /**
+     * Write a message to the server. The EDT, the listener and the heartbeat all send,
+     * so writes are serialized on the stream.
+     */
+    private void send(Message message) throws IOException {
+        synchronized (output) {
+            output.writeObject(message);
+            output.flush();
+        }
+    }
+    
     /**
      * Append message to chat area
      */
     private void appendToChatArea(String message) {
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append("[" + java.time.LocalTime.now().toString() + "] " + message + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        inbox.appendLine("[" + java.time.LocalTime.now().toString() + "] " + message);
     }
     
     /**
@@ -1568,64 +1825,71 @@ public class ChatClient extends JFrame {
      * Handle timer countdown updates
      */
     private void handleTimerUpdate(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                long remainingSeconds = message.getTimerDuration();
+        long remainingSeconds = message.getTimerDuration();
+        timerState.set(remainingSeconds);
+        
+        // Show system message for significant time markers
+        if (remainingSeconds == 60 || remainingSeconds == 30 || (remainingSeconds > 0 && remainingSeconds <= 10)) {
+            String warningMsg = String.format("⚠️ DESTRUCTION WARNING: Chat will be destroyed in %02d:%02d",
+                remainingSeconds / 60, remainingSeconds % 60);
+            appendToChatArea("[SYSTEM] " + warningMsg);
+        }
+    }
+    
+    /**
+     * Show the latest countdown, or hide it once it reaches zero
+     */
+    private void renderTimer(Long remainingSeconds) {
+        if (remainingSeconds > 0) {
+            // Format time display
+            long minutes = remainingSeconds / 60;
+            long seconds = remainingSeconds % 60;
+            String timeDisplay = String.format("⏱️ %02d:%02d", minutes, seconds);
+            
+            // Update timer label
+            timerLabel.setText(timeDisplay);
+            timerLabel.setVisible(true);
+            
+            // Add warning color based on remaining time
+            if (remainingSeconds <= 10) {
+                timerLabel.setForeground(DANGER_RED);
+                // Blink effect for last 10 seconds
+                Timer blinkTimer = new Timer(500, e -> {
+                    timerLabel.setVisible(!timerLabel.isVisible());
+                });
+                blinkTimer.setRepeats(false);
+                blinkTimer.start();
                 
-                if (remainingSeconds > 0) {
-                    // Format time display
-                    long minutes = remainingSeconds / 60;
-                    long seconds = remainingSeconds % 60;
-                    String timeDisplay = String.format("⏱️ %02d:%02d", minutes, seconds);
-                    
-                    // Update timer label
-                    timerLabel.setText(timeDisplay);
+                Timer showTimer = new Timer(1000, e -> {
                     timerLabel.setVisible(true);
-                    
-                    // Add warning color based on remaining time
-                    if (remainingSeconds <= 10) {
-                        timerLabel.setForeground(DANGER_RED);
-                        // Blink effect for last 10 seconds
-                        Timer blinkTimer = new Timer(500, e -> {
-                            timerLabel.setVisible(!timerLabel.isVisible());
-                        });
-                        blinkTimer.setRepeats(false);
-                        blinkTimer.start();
-                        
-                        Timer showTimer = new Timer(1000, e -> {
-                            timerLabel.setVisible(true);
-                        });
-                        showTimer.setRepeats(false);
-                        showTimer.start();
-                        
-                    } else if (remainingSeconds <= 30) {
-                        timerLabel.setForeground(WARNING_AMBER); // Orange
-                    } else {
-                        timerLabel.setForeground(DANGER_RED);
-                    }
-                    
-                    // Show system message for significant time markers
-                    if (remainingSeconds == 60 || remainingSeconds == 30 || remainingSeconds <= 10) {
-                        String warningMsg = "⚠️ DESTRUCTION WARNING: Chat will be destroyed in " + timeDisplay.substring(2);
-                        appendToChatArea("[SYSTEM] " + warningMsg);
-                    }
-                } else {
-                    timerLabel.setVisible(false);
-                }
+                });
+                showTimer.setRepeats(false);
+                showTimer.start();
                 
-            } catch (Exception e) {
-                System.err.println("Error handling timer update: " + e.getMessage());
+            } else if (remainingSeconds <= 30) {
+                timerLabel.setForeground(WARNING_AMBER); // Orange
+            } else {
+                timerLabel.setForeground(DANGER_RED);
             }
-        });
+        } else {
+            timerLabel.setVisible(false);
+        }
     }
     
     /**
      * Handle timer expiration
      */
     private void handleTimerExpired(Message message) {
-        SwingUtilities.invokeLater(() -> {
+        inbox.post(() -> {
             // Hide timer label
-            timerLabel.setVisible(false);
+            timerState.set(0L);
+            
+            // With other sessions still open only this one ends
+            if (hasOtherPartners(message.getSender())) {
+                appendToChatArea("[SYSTEM] 💥 TIMER EXPIRED! Chat with " + message.getSender() + " destroyed.");
+                endConversation(message.getSender());
+                return;
+            }
             
             // Show dramatic expiration message
             appendToChatArea("[SYSTEM] 💥 TIMER EXPIRED! Chat session is being destroyed...");
@@ -1667,8 +1931,7 @@ public class ChatClient extends JFrame {
             
             // Send typing start notification
             Message typingMsg = new Message(username, recipient, "TYPING_START", Message.MessageType.TYPING_START);
-            output.writeObject(typingMsg);
-            output.flush();
+            send(typingMsg);
             
             // Set timer to automatically stop typing after 3 seconds
             typingTimer = new Timer(3000, e -> sendTypingStop());
@@ -1691,8 +1954,7 @@ public class ChatClient extends JFrame {
         
         try {
             Message typingStopMsg = new Message(username, recipient, "TYPING_STOP", Message.MessageType.TYPING_STOP);
-            output.writeObject(typingStopMsg);
-            output.flush();
+            send(typingStopMsg);
         } catch (Exception e) {
             System.err.println("Error sending typing stop notification: " + e.getMessage());
         }
@@ -1702,50 +1964,115 @@ public class ChatClient extends JFrame {
      * Show typing indicator in the chat area
      */
     private void showTypingIndicator(String sender) {
-        SwingUtilities.invokeLater(() -> {
-            typingIndicatorLabel.setText("💬 " + sender + " is typing...");
-            typingIndicatorLabel.setVisible(true);
-        });
+        typingState.set(sender);
     }
     
     /**
      * Hide typing indicator
      */
     private void hideTypingIndicator() {
-        SwingUtilities.invokeLater(() -> {
-            typingIndicatorLabel.setVisible(false);
-        });
+        typingState.set(null);
+    }
+    
+    /**
+     * Show who is typing, or hide the indicator for null
+     */
+    private void renderTypingIndicator(String sender) {
+        if (sender != null) {
+            typingIndicatorLabel.setText("💬 " + sender + " is typing...");
+        }
+        typingIndicatorLabel.setVisible(sender != null);
     }
     
     /**
      * Send read receipt for received message
      */
-    private void sendReadReceipt(String messageId, String originalSender) {
+    private void sendReadReceipt(long messageId, String originalSender) {
         try {
-            Message readReceipt = new Message(username, originalSender, 
-                "READ:" + messageId, Message.MessageType.READ_RECEIPT);
-            output.writeObject(readReceipt);
-            output.flush();
+            Message readReceipt = new Message(username, originalSender, null, Message.MessageType.READ_RECEIPT);
+            readReceipt.setReceiptFor(messageId);
+            send(readReceipt);
         } catch (Exception e) {
             System.err.println("Error sending read receipt: " + e.getMessage());
         }
     }
     
+    /**
+     * Return a traced message's timestamps to the server, which records the end-to-end latency
+     */
+    private void sendTraceReport(Message message) {
+        if (message.getTrace() == null) {
+            return;
+        }
+        try {
+            Message report = new Message(username, "SERVER", null, Message.MessageType.TRACE_REPORT);
+            report.setTrace(message.getTrace());
+            send(report);
+        } catch (Exception e) {
+            System.err.println("Error sending trace report: " + e.getMessage());
+        }
+    }
+    
     /**
      * Handle delivery receipt from server
      */
     private void handleDeliveryReceipt(Message message) {
-        String content = message.getContent();
-        if (content.startsWith("DELIVERED:")) {
-            String messageId = content.substring(10);
-            deliveryStatus.put(messageId, "DELIVERED");
-            
-            // Update UI to show delivery status (could update specific message)
-            SwingUtilities.invokeLater(() -> {
-                // For simplicity, just show in chat area
-                // In a full implementation, you'd update the specific message
-                System.out.println("📬 Message delivered: " + messageId);
-            });
+        long messageId = message.getReceiptFor();
+        deliveryStatus.put(messageId, "DELIVERED");
+        // File the sequence under the partner the message went to, not whoever is selected now
+        recordSequence(awaitingReceipt.remove(messageId), message.getSequence());
+        
+        // Only logged for now, so nothing to post to the EDT
+        // In a full implementation, you'd update the specific message
+        System.out.println("📬 Message delivered: " + messageId);
+    }
+    
+    /**
+     * Remember the latest session sequence seen with a partner, to resume history after reconnecting
+     */
+    private void recordSequence(String partner, long sequence) {
+        if (sequence > 0 && partner != null && !partner.isEmpty()) {
+            lastSeenSequence.put(partner, sequence);
+        }
+    }
+    
+    /**
+     * Decide whether a HISTORY message is new to this client, and ask for the next page
+     * once the current one has been fully received
+     */
+    private boolean acceptHistory(long sequence) {
+        String partner = historyPartner;
+        if (partner == null) {
+            return true; // Not a page this client asked for
+        }
+        boolean isNew = true;
+        if (sequence > 0) {
+            Long lastSeen = lastSeenSequence.get(partner);
+            isNew = lastSeen == null || sequence > lastSeen;
+            if (isNew) {
+                lastSeenSequence.put(partner, sequence);
+            }
+        }
+        
+        if (historyPageRemaining > 0 && --historyPageRemaining == 0) {
+            requestHistory(partner, lastSeenSequence.getOrDefault(partner, 0L));
+        }
+        return isNew;
+    }
+    
+    /**
+     * Ask the server for the session messages after a sequence number
+     */
+    private void requestHistory(String partner, long afterSequence) {
+        try {
+            Message request = new Message(username, partner, "AFTER", Message.MessageType.HISTORY_REQUEST);
+            request.setSequence(afterSequence);
+            request.setPageSize(HISTORY_PAGE_SIZE);
+            historyPageRemaining = HISTORY_PAGE_SIZE;
+            historyPartner = partner;
+            send(request);
+        } catch (Exception e) {
+            System.err.println("Error requesting history: " + e.getMessage());
         }
     }
     
@@ -1753,17 +2080,11 @@ public class ChatClient extends JFrame {
      * Handle read receipt from server
      */
     private void handleReadReceipt(Message message) {
-        String content = message.getContent();
-        if (content.startsWith("READ:")) {
-            String messageId = content.substring(5);
-            deliveryStatus.put(messageId, "READ");
-            
-            // Update UI to show read status
-            SwingUtilities.invokeLater(() -> {
-                // For simplicity, just show in chat area
-                System.out.println("👁️  Message read: " + messageId + " by " + message.getSender());
-            });
-        }
+        long messageId = message.getReceiptFor();
+        deliveryStatus.put(messageId, "READ");
+        
+        // Only logged for now, so nothing to post to the EDT
+        System.out.println("👁️  Message read: " + messageId + " by " + message.getSender());
     }
     
     /**
@@ -0,0 +1,131 @@
+package client;
+
+import utils.EncryptionUtil;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * FileSpool keeps received files out of the heap. Each file is encrypted under a key that
+ * exists only in this process and written to a temporary file; only its metadata stays in
+ * memory. Saving a file memory-maps its spool file and decrypts it in chunks straight to the
+ * destination, so even a large file never needs a heap copy. The spool directory is
+ * deleted at exit, and without the key anything left behind is unreadable.
+ */
+class FileSpool {
+    private static final int CHUNK_BYTES = 64 * 1024;
+    
+    /**
+     * A spooled file: what the history list shows, and where its encrypted copy is
+     */
+    static final class Entry {
+        final String fileName;
+        final String sender;
+        final long size;
+        final LocalDateTime receivedTime;
+        private final Path path;
+        volatile boolean downloaded;
+        
+        Entry(String fileName, String sender, long size, Path path) {
+            this.fileName = fileName;
+            this.sender = sender;
+            this.size = size;
+            this.receivedTime = LocalDateTime.now();
+            this.path = path;
+        }
+    }
+    
+    private final Path directory;
+    private final SecretKey key;
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    
+    FileSpool() throws IOException {
+        this.directory = Files.createTempDirectory("securechat-files");
+        try {
+            this.key = EncryptionUtil.generateKey();
+        } catch (Exception e) {
+            throw new IOException("Could not generate spool key: " + e.getMessage(), e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deleteAll, "file-spool-cleanup"));
+    }
+    
+    /**
+     * Encrypt a received file to the spool and record it; the caller can drop the data afterwards
+     */
+    Entry add(String fileName, String sender, byte[] data) throws IOException {
+        Path file = Files.createTempFile(directory, "received", ".bin");
+        try (OutputStream out = new CipherOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), CHUNK_BYTES), cipher(Cipher.ENCRYPT_MODE))) {
+            out.write(data);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Entry entry = new Entry(fileName, sender, data.length, file);
+        entries.add(entry);
+        return entry;
+    }
+    
+    /**
+     * Decrypt a spooled file to the target path
+     */
+    void saveTo(Entry entry, Path target) throws IOException {
+        Cipher cipher = cipher(Cipher.DECRYPT_MODE);
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+             OutputStream out = Files.newOutputStream(target)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] chunk = new byte[CHUNK_BYTES];
+            while (mapped.hasRemaining()) {
+                int length = Math.min(chunk.length, mapped.remaining());
+                mapped.get(chunk, 0, length);
+                byte[] plain = cipher.update(chunk, 0, length);
+                if (plain != null) {
+                    out.write(plain);
+                }
+            }
+            out.write(cipher.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt spooled file: " + e.getMessage(), e);
+        }
+        entry.downloaded = true;
+    }
+    
+    /**
+     * Every spooled file, oldest first
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+    
+    private Cipher cipher(int mode) throws IOException {
+        try {
+            return EncryptionUtil.getCipher(mode, key);
+        } catch (Exception e) {
+            throw new IOException("Cipher unavailable: " + e.getMessage(), e);
+        }
+    }
+    
+    private void deleteAll() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // Temporary directory; the OS will clear it eventually
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package client;
+
+import utils.Compression;
+import utils.Compressor;
+import utils.DigitalSignatureUtil;
+import utils.EncryptionUtil;
+import utils.LatencyHistogram;
+import utils.Message;
+import utils.MessageTrace;
+import utils.PayloadCodec;
+import javax.crypto.SecretKey;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadGenerator drives a ChatServer with simulated users over the real wire protocol,
+ * without any GUI. Users join, pair up through CONNECT_REQUEST/CONNECT_ACCEPT, then each
+ * sends TEXT to its partner at a fixed rate, optionally with typing notifications, file
+ * transfers and a destruction timer per pair.
+ *
+ * Every text and file carries its send time, so the partner can record end-to-end latency;
+ * all users live in this process, so the clocks agree. Progress is printed every few
+ * seconds, and a summary with throughput, latency percentiles, connection setup time and
+ * error counts at the end.
+ *
+ * Usage: LoadGenerator [--option value ...], see {@link #usage()}
+ */
+public class LoadGenerator {
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+    private static final int READER_STACK_BYTES = 256 * 1024;
+    
+    // Options
+    private String host = System.getProperty("securechat.host", "localhost");
+    private int port = Integer.getInteger("securechat.port", 12345);
+    private int users = 100;
+    private double rate = 1.0;
+    private int durationSeconds = 60;
+    private int textBytes = 100;
+    private int fileIntervalSeconds;
+    private int fileBytes = 16 * 1024;
+    private boolean typing;
+    private int timerSeconds;
+    private boolean sign;
+    private double traceRate;
+    private String codecOffer = Compression.offer(); // null to offer none
+    private int setupThreads = 32;
+    private int senderThreads = Runtime.getRuntime().availableProcessors();
+    private String prefix = "load" + (System.currentTimeMillis() % 100000) + "_";
+    
+    // Results
+    private final LatencyHistogram setupLatency = new LatencyHistogram();
+    private final LatencyHistogram pairingLatency = new LatencyHistogram();
+    private final LatencyHistogram textLatency = new LatencyHistogram();
+    private final LatencyHistogram fileLatency = new LatencyHistogram();
+    private final LongAdder textsSent = new LongAdder();
+    private final LongAdder textsReceived = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder receipts = new LongAdder();
+    private final LongAdder typingEvents = new LongAdder();
+    private final LongAdder timerUpdates = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder pairingErrors = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    
+    private volatile boolean running = true;
+    private long setupMillis;
+    
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            usage();
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println("❌ " + e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        generator.run();
+        System.exit(0);
+    }
+    
+    private void run() throws Exception {
+        System.out.println("=== Secure Chat load generator ===");
+        System.out.printf("server=%s:%d users=%d rate=%.2f msg/s/user duration=%ds textBytes=%d " +
+                "fileEvery=%ds fileBytes=%d typing=%b timer=%ds sign=%b traceRate=%.3f compression=%s%n",
+            host, port, users, rate, durationSeconds, textBytes, fileIntervalSeconds, fileBytes,
+            typing, timerSeconds, sign, traceRate, codecOffer != null ? codecOffer : "none");
+        
+        // Phase 1: connect and join
+        List<SimUser> joined = connectAll();
+        System.out.printf("Connected %d/%d users in %.1f s, setup %s%n",
+            joined.size(), users, setupMillis / 1000.0, millis(setupLatency));
+        
+        // Phase 2: pair up neighbours
+        List<SimUser[]> pairs = pairAll(joined);
+        System.out.printf("Paired %d pairs, pairing %s%n", pairs.size(), millis(pairingLatency));
+        if (pairs.isEmpty()) {
+            System.out.println("❌ No pairs formed; nothing to measure");
+            shutdown(joined, null);
+            return;
+        }
+        
+        // Phase 3: steady load
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(senderThreads, daemonThreads("loadgen-sender"));
+        startLoad(pairs, senders);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(REPORT_INTERVAL_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long now = System.nanoTime();
+            long sent = textsSent.sum();
+            long received = textsReceived.sum();
+            double seconds = (now - lastReport) / 1e9;
+            System.out.printf("[%3.0fs] sent %.0f msg/s, received %.0f msg/s, e2e p50=%.2f p99=%.2f ms, errors=%d%n",
+                (now - start) / 1e9, (sent - lastSent) / seconds, (received - lastReceived) / seconds,
+                textLatency.getPercentileNanos(50) / 1e6, textLatency.getPercentileNanos(99) / 1e6, totalErrors());
+            lastSent = sent;
+            lastReceived = received;
+            lastReport = now;
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        // Let messages in flight arrive before counting
+        running = false;
+        senders.shutdownNow();
+        Thread.sleep(1000);
+        report(joined.size(), pairs.size(), elapsed);
+        shutdown(joined, senders);
+    }
+    
+    private List<SimUser> connectAll() throws InterruptedException {
+        List<SimUser> joined = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService setup = Executors.newFixedThreadPool(Math.max(1, setupThreads), daemonThreads("loadgen-setup"));
+        long begin = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            String name = prefix + i;
+            int index = i;
+            setup.execute(() -> {
+                try {
+                    SimUser user = new SimUser(name, index);
+                    user.connect();
+                    joined.add(user);
+                } catch (Exception e) {
+                    connectErrors.increment();
+                    System.err.println("Connect failed for " + name + ": " + e.getMessage());
+                }
+            });
+        }
+        setup.shutdown();
+        setup.awaitTermination(1, TimeUnit.HOURS);
+        setupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        joined.sort((a, b) -> Integer.compare(a.index, b.index));
+        return new ArrayList<>(joined);
+    }
+    
+    /**
+     * Pair users two by two: the first sends a request, the second accepts it from its reader
+     */
+    private List<SimUser[]> pairAll(List<SimUser> joined) throws InterruptedException {
+        List<SimUser[]> pairs = new ArrayList<>();
+        for (int i = 0; i + 1 < joined.size(); i += 2) {
+            pairs.add(new SimUser[] {joined.get(i), joined.get(i + 1)});
+        }
+        CountDownLatch paired = new CountDownLatch(pairs.size());
+        for (SimUser[] pair : pairs) {
+            pair[0].requestPair(pair[1], paired);
+        }
+        if (!paired.await(Math.max(30, pairs.size() / 50), TimeUnit.SECONDS)) {
+            System.err.println("Timed out waiting for " + paired.getCount() + " pairs");
+        }
+        
+        List<SimUser[]> ready = new ArrayList<>();
+        for (SimUser[] pair : pairs) {
+            if (pair[0].paired) {
+                ready.add(pair);
+            } else {
+                pairingErrors.increment();
+            }
+        }
+        return ready;
+    }
+    
+    private void startLoad(List<SimUser[]> pairs, ScheduledExecutorService senders) {
+        long textPeriod = rate > 0 ? (long) (1e9 / rate) : 0;
+        long filePeriod = TimeUnit.SECONDS.toNanos(fileIntervalSeconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (SimUser[] pair : pairs) {
+            if (timerSeconds > 0) {
+                pair[0].setTimer(timerSeconds);
+            }
+            for (SimUser user : pair) {
+                // Random phase, so users don't send in lockstep
+                if (textPeriod > 0) {
+                    senders.scheduleAtFixedRate(user::sendText, random.nextLong(textPeriod), textPeriod, TimeUnit.NANOSECONDS);
+                }
+                if (filePeriod > 0) {
+                    senders.scheduleAtFixedRate(user::sendFile, random.nextLong(filePeriod), filePeriod, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
+    
+    private void report(int joined, int pairs, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println("=== Load test summary ===");
+        System.out.printf("Users:        %d joined of %d, %d pairs%n", joined, users, pairs);
+        System.out.printf("Setup:        %s (connect to welcome, incl. server key generation)%n", millis(setupLatency));
+        System.out.printf("Pairing:      %s%n", millis(pairingLatency));
+        System.out.printf("Texts:        %d sent, %d received, %d receipts%n", textsSent.sum(), textsReceived.sum(), receipts.sum());
+        System.out.printf("Throughput:   %.0f msg/s sent, %.0f msg/s delivered%n",
+            textsSent.sum() / seconds, textsReceived.sum() / seconds);
+        System.out.printf("Latency e2e:  p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms%n",
+            textLatency.getPercentileNanos(50) / 1e6, textLatency.getPercentileNanos(99) / 1e6,
+            textLatency.getPercentileNanos(99.9) / 1e6, textLatency.getMaxNanos() / 1e6);
+        if (fileIntervalSeconds > 0) {
+            System.out.printf("Files:        %d sent, %d received, e2e %s%n", filesSent.sum(), filesReceived.sum(), millis(fileLatency));
+        }
+        if (typing) {
+            System.out.printf("Typing:       %d notifications received%n", typingEvents.sum());
+        }
+        if (timerSeconds > 0) {
+            System.out.printf("Timers:       %d updates received%n", timerUpdates.sum());
+        }
+        if (codecOffer != null) {
+            System.out.printf("Compression:  offered %s, compressed payloads sent at %d%% of raw size%n",
+                codecOffer, Compression.getRatioPercent());
+        }
+        System.out.printf("Errors:       connect=%d pairing=%d send=%d server=%d disconnects=%d%n",
+            connectErrors.sum(), pairingErrors.sum(), sendErrors.sum(), serverErrors.sum(), disconnects.sum());
+    }
+    
+    private void shutdown(List<SimUser> joined, ScheduledExecutorService senders) {
+        running = false;
+        if (senders != null) {
+            senders.shutdownNow();
+        }
+        for (SimUser user : joined) {
+            user.close();
+        }
+    }
+    
+    private long totalErrors() {
+        return connectErrors.sum() + pairingErrors.sum() + sendErrors.sum() + serverErrors.sum() + disconnects.sum();
+    }
+    
+    private static String millis(LatencyHistogram histogram) {
+        return String.format("p50=%.1f ms p99=%.1f ms max=%.1f ms",
+            histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6, histogram.getMaxNanos() / 1e6);
+    }
+    
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * Payload of the given size starting with the send time, so the receiver can measure latency
+     */
+    private static String stampedText(int size) {
+        StringBuilder text = new StringBuilder(Math.max(size, 24)).append(System.nanoTime()).append(':');
+        while (text.length() < size) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+    
+    private static long stampOf(String text) {
+        int colon = text.indexOf(':');
+        return colon > 0 ? Long.parseLong(text.substring(0, colon)) : -1;
+    }
+    
+    /**
+     * One simulated user: a connection, its session key, and a reader thread reacting to the server
+     */
+    private class SimUser {
+        final String name;
+        final int index;
+        private Socket socket;
+        private ObjectOutputStream output;
+        private ObjectInputStream input;
+        private SecretKey sessionKey;
+        private Compressor textCompressor;
+        private Compressor fileCompressor;
+        private final Object writeLock = new Object();
+        private final byte[] fileData = new byte[Math.max(fileBytes, Long.BYTES)];
+        private volatile SimUser partner;
+        private volatile boolean paired;
+        private volatile CountDownLatch pairedLatch;
+        private volatile long pairRequestedNanos;
+        
+        SimUser(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+        
+        void connect() throws Exception {
+            long start = System.nanoTime();
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            output = new ObjectOutputStream(socket.getOutputStream());
+            input = new ObjectInputStream(socket.getInputStream());
+            
+            Message keyMessage = (Message) input.readObject();
+            sessionKey = EncryptionUtil.stringToKey(keyMessage.getContent());
+            Message join = new Message(name, "", "JOIN", Message.MessageType.JOIN);
+            join.setCodec(codecOffer);
+            send(join);
+            Message ack = (Message) input.readObject();
+            if (ack.getType() != Message.MessageType.SYSTEM || ack.getContent().contains("already taken")) {
+                socket.close();
+                throw new IllegalStateException("join refused: " + ack.getContent());
+            }
+            PayloadCodec codec = Compression.negotiate(ack.getCodec());
+            if (codec != null) {
+                textCompressor = new Compressor(codec, () -> Compression.DEFAULT_MIN_BYTES);
+                fileCompressor = new Compressor(codec, () -> Compression.DEFAULT_MIN_BYTES);
+            }
+            setupLatency.record(System.nanoTime() - start);
+            if (sign) {
+                DigitalSignatureUtil.generateKeyPair(name);
+            }
+            
+            Thread reader = new Thread(null, this::readLoop, "loadgen-" + name, READER_STACK_BYTES);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        
+        void requestPair(SimUser other, CountDownLatch latch) {
+            partner = other;
+            other.partner = this;
+            pairedLatch = latch;
+            pairRequestedNanos = System.nanoTime();
+            try {
+                send(new Message(name, other.name, "CONNECTION_REQUEST", Message.MessageType.CONNECT_REQUEST));
+            } catch (Exception e) {
+                sendErrors.increment();
+            }
+        }
+        
+        void setTimer(int seconds) {
+            try {
+                Message timer = new Message(name, partner.name, "SET_TIMER", Message.MessageType.SET_TIMER);
+                timer.setTimerDuration(seconds);
+                send(timer);
+            } catch (Exception e) {
+                sendErrors.increment();
+            }
+        }
+        
+        void sendText() {
+            if (!running || partner == null) {
+                return;
+            }
+            try {
+                if (typing) {
+                    send(new Message(name, partner.name, "TYPING_START", Message.MessageType.TYPING_START));
+                    send(new Message(name, partner.name, "TYPING_STOP", Message.MessageType.TYPING_STOP));
+                }
+                String text = stampedText(textBytes);
+                Message message = new Message(name, partner.name, null, Message.MessageType.TEXT);
+                Compression.sealText(message, text, sessionKey, textCompressor);
+                if (sign) {
+                    message.setDigitalSignature(DigitalSignatureUtil.signMessage(text, name));
+                    message.setSignerPublicKey(DigitalSignatureUtil.getUserPublicKeyString(name));
+                }
+                if (MessageTrace.sample(traceRate)) {
+                    message.setTrace(MessageTrace.start());
+                }
+                send(message);
+                textsSent.increment();
+            } catch (Exception e) {
+                sendErrors.increment();
+            }
+        }
+        
+        void sendFile() {
+            if (!running || partner == null) {
+                return;
+            }
+            try {
+                ByteBuffer.wrap(fileData).putLong(0, System.nanoTime());
+                Message message = new Message(name, partner.name, "FILE_TRANSFER", Message.MessageType.FILE);
+                message.setFileName("load-" + index + ".bin");
+                Compression.sealFile(message, fileData, sessionKey, fileCompressor);
+                if (MessageTrace.sample(traceRate)) {
+                    message.setTrace(MessageTrace.start());
+                }
+                send(message);
+                filesSent.increment();
+            } catch (Exception e) {
+                sendErrors.increment();
+            }
+        }
+        
+        private void send(Message message) throws Exception {
+            synchronized (writeLock) {
+                output.writeObject(message);
+                output.flush();
+                output.reset();
+            }
+        }
+        
+        private void readLoop() {
+            try {
+                while (true) {
+                    Message message = (Message) input.readObject();
+                    if (message.getTrace() != null) {
+                        message.getTrace().setClientReceiveMicros(MessageTrace.wallMicros());
+                    }
+                    handle(message);
+                }
+            } catch (Exception e) {
+                if (running) {
+                    disconnects.increment();
+                }
+            } finally {
+                close(); // As the chat client does, so a draining server sees the end of our stream
+            }
+        }
+        
+        private void handle(Message message) throws Exception {
+            switch (message.getType()) {
+                case TEXT:
+                    long stamp = stampOf(Compression.openText(message, sessionKey, Compression.DEFAULT_MAX_BYTES));
+                    if (stamp > 0) {
+                        textLatency.record(System.nanoTime() - stamp);
+                    }
+                    textsReceived.increment();
+                    reportTrace(message);
+                    break;
+                case FILE:
+                    byte[] data = Compression.openFile(message, sessionKey, Compression.DEFAULT_MAX_BYTES);
+                    fileLatency.record(System.nanoTime() - ByteBuffer.wrap(data).getLong(0));
+                    filesReceived.increment();
+                    reportTrace(message);
+                    break;
+                case DELIVERY_RECEIPT:
+                    receipts.increment();
+                    break;
+                case CONNECT_REQUEST:
+                    // The second user of each pair accepts whoever asks
+                    send(new Message(name, message.getSender(), "ACCEPT", Message.MessageType.CONNECT_ACCEPT));
+                    break;
+                case TYPING_START:
+                case TYPING_STOP:
+                    typingEvents.increment();
+                    break;
+                case TIMER_UPDATE:
+                    timerUpdates.increment();
+                    break;
+                case PING:
+                    Message pong = new Message(name, "SERVER", null, Message.MessageType.PONG);
+                    pong.setSequence(message.getSequence());
+                    send(pong);
+                    break;
+                case SYSTEM:
+                    handleSystem(message.getContent());
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        private void reportTrace(Message message) throws Exception {
+            if (message.getTrace() != null) {
+                Message report = new Message(name, "SERVER", null, Message.MessageType.TRACE_REPORT);
+                report.setTrace(message.getTrace());
+                send(report);
+            }
+        }
+        
+        private void handleSystem(String content) {
+            if (content == null) {
+                return;
+            }
+            if (content.contains("accepted your request")) {
+                paired = true;
+                pairingLatency.record(System.nanoTime() - pairRequestedNanos);
+                CountDownLatch latch = pairedLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+            } else if (content.contains("dropped") || content.contains("not connected")
+                || content.contains("failed") || content.contains("not online")) {
+                serverErrors.increment();
+            }
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // Already closed
+            }
+        }
+    }
+    
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length && !option.equals("--typing") && !option.equals("--sign")) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            switch (option) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--users": users = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--duration": durationSeconds = Integer.parseInt(args[++i]); break;
+                case "--text-bytes": textBytes = Integer.parseInt(args[++i]); break;
+                case "--file-every": fileIntervalSeconds = Integer.parseInt(args[++i]); break;
+                case "--file-bytes": fileBytes = Integer.parseInt(args[++i]); break;
+                case "--timer": timerSeconds = Integer.parseInt(args[++i]); break;
+                case "--setup-threads": setupThreads = Integer.parseInt(args[++i]); break;
+                case "--sender-threads": senderThreads = Integer.parseInt(args[++i]); break;
+                case "--prefix": prefix = args[++i]; break;
+                case "--typing": typing = true; break;
+                case "--sign": sign = true; break;
+                case "--trace-rate": traceRate = Double.parseDouble(args[++i]); break;
+                case "--compression": codecOffer = "none".equals(args[++i]) ? null : args[i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (users < 2) {
+            throw new IllegalArgumentException("--users must be at least 2");
+        }
+    }
+    
+    private static void usage() {
+        System.out.println(String.join("\n", Arrays.asList(
+            "Usage: LoadGenerator [options]",
+            "  --host HOST            server host (default localhost, or -Dsecurechat.host)",
+            "  --port PORT            server port (default 12345, or -Dsecurechat.port)",
+            "  --users N              simulated users, paired two by two (default 100)",
+            "  --rate R               texts per second per user (default 1)",
+            "  --duration S           seconds of steady load after setup (default 60)",
+            "  --text-bytes N         text payload size (default 100)",
+            "  --file-every S         send a file every S seconds per user (default off)",
+            "  --file-bytes N         file size (default 16384)",
+            "  --typing               send typing start/stop around every text",
+            "  --timer S              set an S-second destruction timer on every pair",
+            "                         (pairs are destroyed when it expires; later sends count as errors)",
+            "  --sign                 sign every text, as the GUI client does",
+            "  --trace-rate R         fraction of texts and files carrying a hop-by-hop latency trace,",
+            "                         reported back to the server's trace.* metrics (default 0)",
+            "  --compression C        payload codecs to offer at JOIN, comma-separated, or none",
+            "                         (default: every registered codec)",
+            "  --setup-threads N      concurrent connection setups (default 32)",
+            "  --sender-threads N     threads sending on behalf of users (default: cores)",
+            "  --prefix P             username prefix (default load<random>_)")));
+    }
+}
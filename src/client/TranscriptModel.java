@@ -0,0 +1,253 @@
+package client;
+
+import utils.EncryptionUtil;
+import javax.crypto.SecretKey;
+import javax.swing.AbstractListModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * TranscriptModel holds the newest lines of the chat transcript, at most a fixed number of
+ * them once trimmed. Older lines are evicted in chunks to an encrypted scrollback file and
+ * brought back, newest chunk first, when the reader scrolls up to them. The file is a stack:
+ * loading a chunk truncates it off the end, so the file only holds what is not in memory.
+ *
+ * Only touched on the Event Dispatch Thread.
+ */
+class TranscriptModel extends AbstractListModel<TranscriptModel.Line> {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * One transcript line, with the height it wrapped to at the width it was last measured at
+     */
+    static final class Line {
+        final String text;
+        int measuredWidth = -1;
+        int measuredHeight;
+        
+        Line(String text) {
+            this.text = text;
+        }
+        
+        @Override
+        public String toString() {
+            return text; // What the list copies to the clipboard
+        }
+    }
+    
+    // Position of an evicted chunk in the scrollback file
+    private static final class Chunk {
+        final long offset;
+        final int length;
+        final int lines;
+        
+        Chunk(long offset, int length, int lines) {
+            this.offset = offset;
+            this.length = length;
+            this.lines = lines;
+        }
+    }
+    
+    private final int capacity;
+    private final List<Line> lines = new ArrayList<>();
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+    private int scrollbackLines;
+    
+    private Path scrollbackFile;
+    private FileChannel scrollback;
+    private SecretKey key;
+    
+    TranscriptModel(int capacity) {
+        this.capacity = Math.max(capacity, 100);
+    }
+    
+    @Override
+    public int getSize() {
+        return lines.size();
+    }
+    
+    @Override
+    public Line getElementAt(int index) {
+        return lines.get(index);
+    }
+    
+    void append(List<String> texts) {
+        int first = lines.size();
+        for (String text : texts) {
+            lines.add(new Line(text));
+        }
+        fireIntervalAdded(this, first, lines.size() - 1);
+    }
+    
+    /**
+     * Whether more than capacity lines are in memory, after new lines or loaded scrollback
+     */
+    boolean isOverCapacity() {
+        return lines.size() > capacity;
+    }
+    
+    /**
+     * Whether lines have grown so far past capacity that they must be trimmed even while
+     * the reader is scrolled back
+     */
+    boolean isFarOverCapacity() {
+        return lines.size() > capacity * 4;
+    }
+    
+    /**
+     * Evict the oldest lines to scrollback, down to three quarters of capacity so the next
+     * eviction is a quarter of capacity away
+     *
+     * @return the number of lines removed from the front
+     */
+    int trim() throws IOException {
+        int evict = getTrimCount();
+        if (evict == 0) {
+            return 0;
+        }
+        List<Line> oldest = lines.subList(0, evict);
+        writeChunk(oldest);
+        oldest.clear();
+        fireIntervalRemoved(this, 0, evict - 1);
+        return evict;
+    }
+    
+    /**
+     * Number of lines {@link #trim()} would evict now
+     */
+    int getTrimCount() {
+        return Math.max(0, lines.size() - capacity * 3 / 4);
+    }
+    
+    /**
+     * Number of lines in scrollback, not in memory
+     */
+    int getScrollbackLines() {
+        return scrollbackLines;
+    }
+    
+    /**
+     * Bring back the most recently evicted chunk in front of the current lines
+     *
+     * @return the number of lines added at the front
+     */
+    int loadEarlier() throws IOException {
+        Chunk chunk = chunks.pollLast();
+        if (chunk == null) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(chunk.length);
+        while (buffer.hasRemaining()) {
+            if (scrollback.read(buffer, chunk.offset + buffer.position()) < 0) {
+                throw new IOException("Scrollback file is truncated");
+            }
+        }
+        scrollback.truncate(chunk.offset);
+        scrollbackLines -= chunk.lines;
+        
+        List<Line> earlier = readChunk(buffer.array(), chunk.lines);
+        lines.addAll(0, earlier);
+        fireIntervalAdded(this, 0, earlier.size() - 1);
+        return earlier.size();
+    }
+    
+    /**
+     * Drop every line, including scrollback
+     */
+    void clear() {
+        int size = lines.size();
+        lines.clear();
+        chunks.clear();
+        scrollbackLines = 0;
+        if (scrollback != null) {
+            try {
+                scrollback.truncate(0);
+            } catch (IOException e) {
+                // Unreadable without the key; the file is deleted at exit regardless
+            }
+        }
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+    
+    private void writeChunk(List<Line> evicted) throws IOException {
+        openScrollback();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Line line : evicted) {
+                byte[] text = line.text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        }
+        byte[] sealed;
+        try {
+            sealed = EncryptionUtil.encryptBytes(bytes.toByteArray(), key);
+        } catch (Exception e) {
+            throw new IOException("Could not encrypt scrollback: " + e.getMessage(), e);
+        }
+        
+        long offset = scrollback.size();
+        ByteBuffer buffer = ByteBuffer.wrap(sealed);
+        while (buffer.hasRemaining()) {
+            scrollback.write(buffer, offset + buffer.position());
+        }
+        chunks.addLast(new Chunk(offset, sealed.length, evicted.size()));
+        scrollbackLines += evicted.size();
+    }
+    
+    private List<Line> readChunk(byte[] sealed, int count) throws IOException {
+        byte[] plain;
+        try {
+            plain = EncryptionUtil.decryptBytes(sealed, key);
+        } catch (Exception e) {
+            throw new IOException("Could not decrypt scrollback: " + e.getMessage(), e);
+        }
+        List<Line> result = new ArrayList<>(count);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+            for (int i = 0; i < count; i++) {
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                result.add(new Line(new String(text, StandardCharsets.UTF_8)));
+            }
+        }
+        return result;
+    }
+    
+    private void openScrollback() throws IOException {
+        if (scrollback != null) {
+            return;
+        }
+        try {
+            key = EncryptionUtil.generateKey();
+        } catch (Exception e) {
+            throw new IOException("Could not generate scrollback key: " + e.getMessage(), e);
+        }
+        scrollbackFile = Files.createTempFile("securechat-scrollback", ".bin");
+        scrollback = FileChannel.open(scrollbackFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deleteScrollback, "scrollback-cleanup"));
+    }
+    
+    private void deleteScrollback() {
+        try {
+            scrollback.close();
+            Files.deleteIfExists(scrollbackFile);
+        } catch (IOException e) {
+            // Temporary file; the OS will clear it eventually
+        }
+    }
+}
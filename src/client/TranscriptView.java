@@ -0,0 +1,252 @@
+package client;
+
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Toolkit;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TranscriptView shows the chat transcript as a list of wrapped lines. Only rows in view are
+ * painted, and each line's wrapped height is measured once per width and cached on the line,
+ * so an append costs the same however long the chat has run. The view follows new lines
+ * while scrolled to the bottom; scrolling up to the top loads the previous chunk of
+ * scrollback without moving what is on screen.
+ *
+ * Only touched on the Event Dispatch Thread.
+ */
+class TranscriptView extends JList<TranscriptModel.Line> {
+    private static final long serialVersionUID = 1L;
+    private static final int ROW_GAP = 2;
+    
+    private final TranscriptModel transcript;
+    private JScrollPane scrollPane;
+    private int laidOutWidth;
+    
+    TranscriptView(int capacity, Font font, Color background, Color foreground, Color selection) {
+        this(new TranscriptModel(capacity), font, background, foreground, selection);
+    }
+    
+    private TranscriptView(TranscriptModel transcript, Font font, Color background, Color foreground, Color selection) {
+        super(transcript);
+        this.transcript = transcript;
+        setFont(font);
+        setBackground(background);
+        setForeground(foreground);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION); // Ctrl+C copies the selected lines
+        setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        setCellRenderer(new LineRenderer(selection));
+        
+        // Rows were measured for the old width; make the list ask for their heights again
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (getWidth() != laidOutWidth) {
+                    laidOutWidth = getWidth();
+                    setFixedCellHeight(1);
+                    setFixedCellHeight(-1);
+                }
+            }
+        });
+    }
+    
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true; // Wrap to the viewport instead of scrolling sideways
+    }
+    
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        JScrollPane enclosing = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+        if (enclosing != null && enclosing != scrollPane) {
+            scrollPane = enclosing;
+            scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+                if (!e.getValueIsAdjusting() && e.getValue() == 0 && transcript.getScrollbackLines() > 0) {
+                    SwingUtilities.invokeLater(this::loadEarlier);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Add lines, following them into view if the reader was at the bottom
+     */
+    void append(List<String> texts) {
+        if (texts.isEmpty()) {
+            return;
+        }
+        boolean following = isFollowing();
+        transcript.append(texts);
+        try {
+            if (following) {
+                if (transcript.isOverCapacity()) {
+                    transcript.trim();
+                }
+                if (scrollPane != null) {
+                    scrollPane.validate(); // Size the list for the new lines before scrolling to them
+                }
+                ensureIndexIsVisible(transcript.getSize() - 1);
+            } else if (transcript.isFarOverCapacity()) {
+                // Trimming under a reader who scrolled back: keep their lines where they are
+                int removed = transcript.getTrimCount();
+                int removedHeight = getCellBounds(0, removed - 1).height;
+                transcript.trim();
+                shiftView(-removedHeight);
+            }
+        } catch (IOException e) {
+            System.err.println("Transcript scrollback unavailable: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Remove every line, including scrollback
+     */
+    void clear() {
+        transcript.clear();
+    }
+    
+    private void loadEarlier() {
+        try {
+            int added = transcript.loadEarlier();
+            if (added > 0) {
+                shiftView(getCellBounds(0, added - 1).height);
+            }
+        } catch (IOException e) {
+            System.err.println("Transcript scrollback unavailable: " + e.getMessage());
+        }
+    }
+    
+    private boolean isFollowing() {
+        if (scrollPane == null) {
+            return true;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - getFont().getSize() * 2;
+    }
+    
+    /**
+     * Move the view by the height of rows added (positive) or removed (negative) at the front
+     */
+    private void shiftView(int height) {
+        if (scrollPane == null) {
+            return;
+        }
+        JViewport viewport = scrollPane.getViewport();
+        Point position = viewport.getViewPosition();
+        scrollPane.validate(); // Size the list for its new rows before moving over them
+        viewport.setViewPosition(new Point(position.x, Math.max(0, position.y + height)));
+    }
+    
+    /**
+     * Paints one line, wrapped at word boundaries to the list's width
+     */
+    private static class LineRenderer extends JComponent implements ListCellRenderer<TranscriptModel.Line> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Color selection;
+        private TranscriptModel.Line line;
+        private boolean selected;
+        private int width;
+        
+        LineRenderer(Color selection) {
+            this.selection = selection;
+        }
+        
+        @Override
+        public Component getListCellRendererComponent(JList<? extends TranscriptModel.Line> list, TranscriptModel.Line value,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            Insets insets = list.getInsets();
+            this.line = value;
+            this.selected = isSelected;
+            this.width = Math.max(list.getWidth() - insets.left - insets.right, 100);
+            setFont(list.getFont());
+            setForeground(list.getForeground());
+            setBackground(list.getBackground());
+            
+            if (value.measuredWidth != width) {
+                FontMetrics metrics = getFontMetrics(getFont());
+                value.measuredHeight = wrap(value.text, metrics, width).size() * metrics.getHeight() + ROW_GAP;
+                value.measuredWidth = width;
+            }
+            return this;
+        }
+        
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(width, line != null ? line.measuredHeight : 0);
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints instanceof Map) {
+                ((Graphics2D) g).addRenderingHints((Map<?, ?>) hints); // Antialias like the platform's text
+            }
+            g.setColor(selected ? selection : getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            g.setColor(getForeground());
+            g.setFont(getFont());
+            FontMetrics metrics = g.getFontMetrics();
+            int y = metrics.getAscent();
+            for (String row : wrap(line.text, metrics, getWidth())) {
+                g.drawString(row, 0, y);
+                y += metrics.getHeight();
+            }
+        }
+    }
+    
+    /**
+     * Break text into rows no wider than width, at spaces where possible
+     */
+    private static List<String> wrap(String text, FontMetrics metrics, int width) {
+        List<String> rows = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            int start = 0;
+            while (start < paragraph.length()) {
+                int end = start;
+                int lastSpace = -1;
+                int rowWidth = 0;
+                while (end < paragraph.length()) {
+                    rowWidth += metrics.charWidth(paragraph.charAt(end));
+                    if (rowWidth > width && end > start) {
+                        break;
+                    }
+                    if (paragraph.charAt(end) == ' ') {
+                        lastSpace = end;
+                    }
+                    end++;
+                }
+                if (end < paragraph.length() && lastSpace > start) {
+                    end = lastSpace + 1; // Break after the last space that fit
+                }
+                rows.add(paragraph.substring(start, end));
+                start = end;
+            }
+            if (paragraph.isEmpty()) {
+                rows.add("");
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,141 @@
+package client;
+
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * UiInbox carries updates from the network and scheduler threads to the Event Dispatch
+ * Thread without posting a task per update. Any thread publishes into a lock-free queue,
+ * and the EDT drains it at most once per frame: transcript lines are handed over in one
+ * batch and other tasks run in the order they were published. State where only the newest
+ * value matters, such as the typing indicator or the countdown, goes in a {@link Latest}
+ * slot, so a burst of updates renders once.
+ */
+class UiInbox {
+    // About one frame at 60 Hz
+    private static final int FRAME_MILLIS = 16;
+    // Items handled per frame, so a flood cannot stall painting; the rest wait for the next frame
+    private static final int MAX_ITEMS_PER_FRAME = 1000;
+    
+    private final Queue<Object> items = new ConcurrentLinkedQueue<>(); // Line strings and Runnables
+    private final List<Latest<?>> slots = new CopyOnWriteArrayList<>();
+    private final Consumer<List<String>> transcript;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer frame;
+    
+    /**
+     * @param transcript receives each frame's new transcript lines, on the EDT
+     */
+    UiInbox(Consumer<List<String>> transcript) {
+        this.transcript = transcript;
+        this.frame = new Timer(FRAME_MILLIS, e -> drain());
+        this.frame.setRepeats(false);
+    }
+    
+    /**
+     * Queue a line for the transcript
+     */
+    void appendLine(String line) {
+        items.add(line);
+        schedule();
+    }
+    
+    /**
+     * Queue a task to run on the EDT after everything published before it
+     */
+    void post(Runnable task) {
+        items.add(task);
+        schedule();
+    }
+    
+    /**
+     * Create a slot whose newest value is rendered once per frame
+     */
+    <T> Latest<T> latest(Consumer<T> renderer) {
+        Latest<T> slot = new Latest<>(renderer);
+        slots.add(slot);
+        return slot;
+    }
+    
+    /**
+     * Holds the newest value published for one piece of UI state until the next frame renders it
+     */
+    final class Latest<T> {
+        private final Object none = new Object();
+        private final AtomicReference<Object> pending = new AtomicReference<>(none);
+        private final Consumer<T> renderer;
+        
+        private Latest(Consumer<T> renderer) {
+            this.renderer = renderer;
+        }
+        
+        /**
+         * Replace any value not yet rendered; null is a value too
+         */
+        void set(T value) {
+            pending.set(value);
+            schedule();
+        }
+        
+        @SuppressWarnings("unchecked")
+        private void render() {
+            Object value = pending.getAndSet(none);
+            if (value != none) {
+                renderer.accept((T) value);
+            }
+        }
+    }
+    
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            frame.start();
+        }
+    }
+    
+    private void drain() {
+        scheduled.set(false); // Anything published from here on gets the next frame
+        
+        List<String> lines = new ArrayList<>();
+        Object item;
+        for (int handled = 0; handled < MAX_ITEMS_PER_FRAME && (item = items.poll()) != null; handled++) {
+            if (item instanceof String) {
+                lines.add((String) item);
+                continue;
+            }
+            // Lines published before the task must show before it runs
+            flush(lines);
+            try {
+                ((Runnable) item).run();
+            } catch (RuntimeException e) {
+                System.err.println("Error updating UI: " + e.getMessage());
+            }
+        }
+        flush(lines);
+        
+        for (Latest<?> slot : slots) {
+            try {
+                slot.render();
+            } catch (RuntimeException e) {
+                System.err.println("Error updating UI: " + e.getMessage());
+            }
+        }
+        
+        if (!items.isEmpty()) {
+            schedule();
+        }
+    }
+    
+    private void flush(List<String> lines) {
+        if (!lines.isEmpty()) {
+            transcript.accept(lines);
+            lines.clear();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+import utils.Compressor;
+import utils.Message;
+import java.util.List;
+
+/**
+ * ChatEndpoint is where messages for an online user go: a local connection,
+ * or a user on another cluster node reached through the inter-node link
+ */
+public interface ChatEndpoint extends RoomMember {
+    
+    /**
+     * Send a message to the user, flushing it immediately
+     */
+    void sendMessage(Message message);
+    
+    /**
+     * Send several messages back to back
+     */
+    void sendMessages(List<Message> messages);
+    
+    /**
+     * Check if the user can still be reached here
+     */
+    boolean isConnected();
+    
+    /**
+     * Get the compressor for TEXT or FILE payloads sent to the user, or null to send them raw
+     */
+    default Compressor getCompressor(Message.MessageType type) {
+        return null;
+    }
+}
@@ -1,24 +1,48 @@
 package server;
 
 import utils.ChatSessionManager;
+import utils.Log;
+import utils.MessageIdGenerator;
+import utils.MetricsRegistry;
+import utils.ServerConfig;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ChatServer is the main server class that handles client connections
  */
 public class ChatServer {
-    private static final int SOCKET_PORT = 12345;
+    private static final int SOCKET_PORT = ServerConfig.PORT.intValue();
+    private static final long IDLE_HANDLER_SECONDS = 60;
+    private static final long HANDLER_EXIT_SECONDS = 2;
     
     private ServerSocket serverSocket;
-    private ExecutorService clientThreadPool;
-    private boolean isRunning;
+    private ClusterNode clusterNode;
+    private ThreadPoolExecutor clientThreadPool;
+    private volatile boolean isRunning;
+    private boolean shutDown;
     
     public ChatServer() {
-        this.clientThreadPool = Executors.newCachedThreadPool();
+        // A handler thread serves one connection for its lifetime, so the pool's maximum is the
+        // connection limit; core threads stay warm for reconnects, the rest retire when idle
+        int maxConnections = ServerConfig.MAX_CONNECTIONS.intValue();
+        this.clientThreadPool = new ThreadPoolExecutor(
+            Math.min(ServerConfig.HANDLER_CORE_THREADS.intValue(), maxConnections), maxConnections,
+            IDLE_HANDLER_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>());
+        ServerConfig.HANDLER_CORE_THREADS.onChange(core ->
+            clientThreadPool.setCorePoolSize((int) Math.min(core, clientThreadPool.getMaximumPoolSize())));
+        ServerConfig.MAX_CONNECTIONS.onChange(max -> {
+            int limit = (int) max;
+            if (limit < clientThreadPool.getCorePoolSize()) {
+                clientThreadPool.setCorePoolSize(limit);
+            }
+            clientThreadPool.setMaximumPoolSize(limit);
+        });
         this.isRunning = false;
     }
     
@@ -26,46 +50,76 @@ public class ChatServer {
      * Start the chat server
      */
     public void start() {
+        // Message IDs are only unique across servers when each has its own node ID
+        long node = ServerConfig.NODE_ID.longValue();
+        if (node < 0) {
+            Log.error("No node ID set; give this server one (NODE_ID or -Dsecurechat.nodeId, 0-1023) unique in its cluster");
+            return;
+        }
+        MessageIdGenerator.configureNode(node);
+        
         try {
             // Start socket server
             serverSocket = new ServerSocket(SOCKET_PORT);
             isRunning = true;
             
-            System.out.println("=== Secure Chat Server Started ===");
-            System.out.println("Socket Server listening on port: " + SOCKET_PORT);
-            System.out.println("Server is ready to accept connections...");
-            System.out.println("=====================================");
+            // Join the cluster, if configured, before accepting users
+            clusterNode = ClusterNode.fromSystemProperties();
+            if (clusterNode != null) {
+                clusterNode.start();
+                ClientHandler.attachCluster(clusterNode);
+            }
+            
+            // Publish pipeline latencies and connection state over JMX
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            ClientHandler.registerMetrics(metrics);
+            metrics.gauge("log.dropped", Log::getDroppedCount);
+            metrics.registerMBean("securechat:type=Metrics");
+            ServerConfig.getInstance().registerMBean("securechat:type=Config");
+            
+            Log.info("=== Secure Chat Server started, listening on port {} (log level {}) ===", SOCKET_PORT, Log.getLevel());
             
             // Accept client connections
             while (isRunning && !serverSocket.isClosed()) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connection from: " + 
-                        clientSocket.getInetAddress().getHostAddress());
+                    Log.debug("New client connection from: {}", clientSocket.getInetAddress().getHostAddress());
                     
                     // Create new client handler thread
                     ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    clientThreadPool.execute(clientHandler);
+                    try {
+                        clientThreadPool.execute(clientHandler);
+                    } catch (RejectedExecutionException e) {
+                        Log.warn("Connection limit of {} reached, closing connection from {}",
+                            clientThreadPool.getMaximumPoolSize(), clientSocket.getInetAddress().getHostAddress());
+                        clientHandler.disconnect();
+                    }
                     
                 } catch (IOException e) {
                     if (isRunning) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        Log.error("Error accepting client connection: {}", e.getMessage());
                     }
                 }
             }
             
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
+            Log.error("Error starting server: {}", e.getMessage());
         } finally {
             shutdown();
         }
     }
     
     /**
-     * Shutdown the server gracefully
+     * Shutdown the server gracefully: stop accepting, drain every connection in parallel
+     * within SHUTDOWN_DRAIN_TIMEOUT, then stop the pools. Safe to call more than once; a
+     * second caller (the shutdown hook racing the accept loop) waits for the first to finish.
      */
-    public void shutdown() {
-        System.out.println("Shutting down server...");
+    public synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        Log.info("Shutting down server...");
         isRunning = false;
         
         try {
@@ -74,19 +128,48 @@ public class ChatServer {
                 serverSocket.close();
             }
             
-            // Shutdown thread pool
+            // Flush and close connections while the pools they write through are still running
+            ClientHandler.drainAll(ServerConfig.DRAIN_TIMEOUT_MILLIS.longValue());
+            
+            // Shutdown thread pool; handler threads end as their sockets close
             if (clientThreadPool != null) {
                 clientThreadPool.shutdown();
+                try {
+                    if (!clientThreadPool.awaitTermination(HANDLER_EXIT_SECONDS, TimeUnit.SECONDS)) {
+                        Log.warn("{} connection handlers still running", clientThreadPool.getActiveCount());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            // Leave the cluster
+            if (clusterNode != null) {
+                clusterNode.shutdown();
             }
             
             // Shutdown session manager
             ChatSessionManager.getInstance().shutdown();
             
-            System.out.println("Server shutdown complete");
+            // Stop the offline queue and wipe its spill files
+            ClientHandler.getOfflineQueue().shutdown();
+            
+            // Finish pending file writes
+            ClientHandler.getFileStore().shutdown();
+            
+            // Stop group room delivery
+            ClientHandler.shutdownDelivery();
+            
+            Log.info("Rate limiting (admitted/throttled/rejected): {}", ClientHandler.getRateLimiter().getStats());
+            Log.info("File store: {}", ClientHandler.getFileStore().getStats());
+            Log.info("Metrics:\n{}", MetricsRegistry.getInstance().getReport().trim());
+            
+            Log.info("Server shutdown complete");
             
         } catch (IOException e) {
-            System.err.println("Error during server shutdown: " + e.getMessage());
+            Log.error("Error during server shutdown: {}", e.getMessage());
         }
+        Log.flush(1000);
     }
     
     /**
@@ -97,7 +180,7 @@ public class ChatServer {
         
         // Add shutdown hook for graceful shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\nReceived shutdown signal...");
+            Log.info("Received shutdown signal...");
             server.shutdown();
         }));
         
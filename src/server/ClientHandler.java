@@ -3,26 +3,120 @@ package server;
 import utils.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import javax.crypto.SecretKey;
 
 /**
  * ClientHandler handles individual client connections in separate threads
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ChatEndpoint {
+    /**
+     * Connection lifecycle, which only moves forward. OPEN reads and writes. DRAINING is out
+     * of routing, discards what it reads and flushes what is already queued, then half-closes
+     * so the client sees the end of the stream. CLOSED has released the socket.
+     */
+    public enum State { OPEN, DRAINING, CLOSED }
+    
     private Socket clientSocket;
     private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private FrameOutputStream output;
     private String username;
-    private boolean isConnected;
+    private final AtomicReference<State> state = new AtomicReference<>(State.OPEN);
     private SecretKey sessionKey;
+    private final Object writeLock = new Object();
+    
+    // Payload compression negotiated at JOIN, one adaptive compressor per payload kind; null sends raw
+    private volatile Compressor textCompressor;
+    private volatile Compressor fileCompressor;
+    
+    // Outbound queue for fan-out deliveries, drained on the shared delivery pool
+    private final Queue<Message> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    
+    // Closes a draining connection outright if the client hasn't finished by the deadline
+    private volatile ScheduledFuture<?> drainDeadline;
+    
+    // Sessions bound to this connection by partner, so the text path skips the session and client lookups
+    private final Map<String, SessionBinding> bindings = new ConcurrentHashMap<>();
+    private volatile SessionBinding lastBinding;
+    
+    // Keepalive: last inbound activity, unanswered pings and smoothed round-trip time
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile int missedPings;
+    private volatile long pingSentNanos;
+    private volatile long smoothedRttNanos = -1;
+    
+    // Inbound rate limiting: this connection's buckets and the byte count already charged
+    private final RateLimiter.Account rateAccount = rateLimiter.newAccount();
+    private CountingInputStream inputCounter;
+    private long bytesCharged;
+    private long lastLimitNoticeNanos;
+    
+    // When the message being handled finished reading, for latency traces
+    private long readCompleteNanos;
+    
+    // Default history page size for HISTORY_REQUEST; the cap is ServerConfig.HISTORY_MAX_PAGE
+    private static final int DEFAULT_HISTORY_PAGE = 50;
+    
+    // Per-user and global admission limits, checked before a message is decrypted or verified
+    private static final RateLimiter rateLimiter = new RateLimiter();
+    private static final long LIMIT_NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
     
     // Static map to keep track of all connected clients
     private static final Map<String, ClientHandler> connectedClients = new ConcurrentHashMap<>();
+    // Usernames a join is claiming across the cluster, so two local joins cannot both win
+    private static final Set<String> joiningUsernames = ConcurrentHashMap.newKeySet();
+    
+    // Every connection not yet CLOSED, joined or not, so shutdown can drain them all
+    private static final Set<ClientHandler> openConnections = ConcurrentHashMap.newKeySet();
+    private static final LongAdder drainedConnections = MetricsRegistry.getInstance().counter("connections.drained");
+    private static final LongAdder drainsCutOff = MetricsRegistry.getInstance().counter("connections.drainCutOff");
+    private static final int MAX_DRAIN_THREADS = 256;
+    
+    // Store-and-forward queue for recipients who are offline
+    private static final OfflineMessageQueue offlineQueue = new OfflineMessageQueue();
+    
+    // Group room delivery: parallel encoding, then per-connection outbound queues
+    private static final FanoutEngine fanoutEngine = new FanoutEngine();
+    private static final ThreadPoolExecutor deliveryPool = FanoutEngine.fixedPool(
+        ServerConfig.DELIVERY_THREADS, "delivery");
+    private static final int MAX_ROOM_NAME_LENGTH = 64;
+    
+    // Received files: encrypted data may exceed MAX_FILE_SIZE by one AES block of padding
+    private static final int ENCRYPTION_OVERHEAD_BYTES = 16;
+    private static final FileStore fileStore = new FileStore(ChatSessionManager.getInstance());
+    
+    // Online directory and contact presence subscriptions
+    private static final PresenceService presence = new PresenceService(connectedClients::get);
+    
+    // Pings connections that have gone quiet and evicts those that stay silent
+    private static final KeepaliveMonitor keepalive = new KeepaliveMonitor(connectedClients.values());
+    
+    // Links to the other nodes when running as a cluster, otherwise null
+    private static volatile ClusterNode cluster;
+    
+    // Running destruction countdowns by session ID, all ticking on one resizable scheduler
+    private static final Map<String, Countdown> sessionTimers = new ConcurrentHashMap<>();
+    private static final ScheduledThreadPoolExecutor timerScheduler = FanoutEngine.scheduledPool(
+        ServerConfig.TIMER_THREADS, "session-timer");
     
     // Typing status tracking
     private static final Map<String, Boolean> typingStatus = new ConcurrentHashMap<>();
@@ -30,12 +124,14 @@ public class ClientHandler implements Runnable {
     
     public ClientHandler(Socket clientSocket) {
         this.clientSocket = clientSocket;
-        this.isConnected = true;
+        openConnections.add(this);
         
         try {
             // Initialize streams
-            this.output = new ObjectOutputStream(clientSocket.getOutputStream());
-            this.input = new ObjectInputStream(clientSocket.getInputStream());
+            int bufferBytes = ServerConfig.SOCKET_BUFFER_BYTES.intValue();
+            this.output = new FrameOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), bufferBytes));
+            this.inputCounter = new CountingInputStream(new BufferedInputStream(clientSocket.getInputStream(), bufferBytes));
+            this.input = new ObjectInputStream(inputCounter);
             
             // Generate session key for this client
             this.sessionKey = EncryptionUtil.generateKey();
@@ -46,7 +142,7 @@ public class ClientHandler implements Runnable {
             sendMessage(keyMessage);
             
         } catch (Exception e) {
-            System.err.println("Error initializing client handler: " + e.getMessage());
+            Log.error("Error initializing client handler: {}", e.getMessage());
             disconnect();
         }
     }
@@ -54,65 +150,173 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            // Handle client authentication
+            // Handle client authentication; a connection that never joins is dropped
+            clientSocket.setSoTimeout(ServerConfig.JOIN_TIMEOUT_MILLIS.intValue());
             Message authMessage = (Message) input.readObject();
+            clientSocket.setSoTimeout(0);
             if (authMessage.getType() == Message.MessageType.JOIN) {
                 String requestedUsername = authMessage.getSender();
                 
-                // Check if username is already taken
-                if (connectedClients.containsKey(requestedUsername)) {
+                // Check if username is already taken, here or on any cluster node
+                if (!takeUsername(requestedUsername)) {
                     // Username is already taken, send error and close connection
                     Message errorMessage = new Message("SERVER", requestedUsername, 
                         "Username '" + requestedUsername + "' is already taken. Please try another username.", 
                         Message.MessageType.SYSTEM);
-                    sendMessage(errorMessage);
+                    Log.info("Connection rejected: Username '{}' already in use", requestedUsername);
                     
-                    System.out.println("Connection rejected: Username '" + requestedUsername + "' already in use");
+                    // Close once the client has read the error; the loop below discards until then
+                    drainAndClose(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.DRAIN_TIMEOUT_MILLIS.longValue()), errorMessage);
+                } else {
+                    // Username is available, proceed with connection
+                    this.username = requestedUsername;
+                    if (cluster != null) {
+                        cluster.userJoined(username);
+                    }
+                    presence.userOnline(username);
                     
-                    // Close connection after sending error
-                    disconnect();
-                    return;
+                    // Initialize digital signature keys for the user
+                    DigitalSignatureUtil.initializeUserKeys(username);
+                    
+                    Log.info("User {} connected", username);
+                    
+                    // Send acknowledgment, naming the payload codec picked from the client's offer
+                    Message ackMessage = new Message("SERVER", username, 
+                        "Welcome to Secure Chat!", Message.MessageType.SYSTEM);
+                    PayloadCodec codec = Compression.negotiate(authMessage.getCodec());
+                    if (codec != null) {
+                        textCompressor = new Compressor(codec, ServerConfig.COMPRESSION_MIN_BYTES::intValue);
+                        fileCompressor = new Compressor(codec, ServerConfig.COMPRESSION_MIN_BYTES::intValue);
+                        ackMessage.setCodec(codec.getName());
+                        Log.debug("Payload codec for {}: {}", username, codec.getName());
+                    }
+                    sendMessage(ackMessage);
+                    
+                    // Forward anything that arrived while the user was offline
+                    deliverOfflineMessages(username, this);
                 }
-                
-                // Username is available, proceed with connection
-                this.username = requestedUsername;
-                connectedClients.put(username, this);
-                
-                // Initialize digital signature keys for the user
-                DigitalSignatureUtil.initializeUserKeys(username);
-                
-                System.out.println("User " + username + " connected");
-                
-                // Send acknowledgment
-                Message ackMessage = new Message("SERVER", username, 
-                    "Welcome to Secure Chat!", Message.MessageType.SYSTEM);
-                sendMessage(ackMessage);
             }
             
-            // Main message handling loop
-            while (isConnected && !clientSocket.isClosed()) {
+            // Main message handling loop; while draining, input is read only to find the end of the stream
+            while (state.get() != State.CLOSED) {
                 try {
+                    long readStart = System.nanoTime();
                     Message message = (Message) input.readObject();
-                    handleMessage(message);
+                    if (state.get() != State.OPEN) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (message != null) {
+                        // Time from the last wait for data, so idle time between messages isn't counted
+                        long arrived = Math.max(readStart, inputCounter.getArrivalNanos());
+                        PipelineMetrics.record(PipelineMetrics.Stage.READ, message.getType(), arrived);
+                    }
+                    readCompleteNanos = now;
+                    lastReadNanos = now; // Any traffic proves the connection is alive
+                    missedPings = 0;
+                    if (admit(message, now)) {
+                        handleMessage(message);
+                    }
+                } catch (EOFException e) {
+                    break; // Client closed its end
                 } catch (Exception e) {
-                    System.err.println("Error reading message from " + username + ": " + e.getMessage());
+                    if (state.get() == State.OPEN) {
+                        Log.error("Error reading message from {}: {}", username, e.getMessage());
+                    }
                     break;
                 }
             }
             
         } catch (Exception e) {
-            System.err.println("Error in client handler: " + e.getMessage());
+            if (state.get() == State.OPEN) {
+                Log.error("Error in client handler: {}", e.getMessage());
+            }
         } finally {
             disconnect();
         }
     }
     
+    /**
+     * Register this connection under a username nobody on this node or any cluster node holds
+     */
+    private boolean takeUsername(String name) throws InterruptedException {
+        if (connectedClients.containsKey(name) || !joiningUsernames.add(name)) {
+            return false;
+        }
+        try {
+            if (cluster != null && !cluster.claimUsername(name)) {
+                return false;
+            }
+            if (connectedClients.putIfAbsent(name, this) != null) {
+                if (cluster != null) {
+                    cluster.releaseClaim(name);
+                }
+                return false;
+            }
+            return true;
+        } finally {
+            joiningUsernames.remove(name);
+        }
+    }
+    
+    /**
+     * Charge a message against the rate limits. Waits out a small overrun, which slows the
+     * client down through TCP; drops the message if it is over by more than that.
+     */
+    private boolean admit(Message message, long now) throws InterruptedException {
+        long count = inputCounter.getCount();
+        long bytes = count - bytesCharged;
+        bytesCharged = count;
+        if (message == null || message.getType() == null) {
+            return true; // handleMessage reports it
+        }
+        
+        return waitOrDrop(rateLimiter.admit(rateAccount, message.getType(), bytes, now), message, now);
+    }
+    
+    /**
+     * Charge the bytes a compressed payload gained on decompression, which admit() could not
+     * see on the wire, so compression cannot multiply the sender's byte allowance
+     */
+    private boolean admitInflated(Message message, long wireBytes, long plainBytes) throws InterruptedException {
+        if (plainBytes <= wireBytes) {
+            return true;
+        }
+        long now = System.nanoTime();
+        return waitOrDrop(rateLimiter.chargeBytes(rateAccount, message.getType(), plainBytes - wireBytes, now), message, now);
+    }
+    
+    private boolean waitOrDrop(long wait, Message message, long now) throws InterruptedException {
+        if (wait >= 0) {
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            return true;
+        }
+        
+        // Tell the client once a second at most, so a flood doesn't become a flood of notices
+        if (now - lastLimitNoticeNanos >= LIMIT_NOTICE_INTERVAL_NANOS) {
+            lastLimitNoticeNanos = now;
+            String reason = wait == RateLimiter.OVERLOADED ? "Server busy" : "Rate limit exceeded for " + message.getType();
+            Log.warn("{}: dropping messages from {}", reason, username);
+            enqueue(new Message("SERVER", username, reason + ", message dropped. Please slow down.",
+                Message.MessageType.SYSTEM));
+        }
+        return false;
+    }
+    
     /**
      * Handle different types of messages
      */
     private void handleMessage(Message message) {
         try {
-            switch (message.getType()) {
+            Message.MessageType type = message.getType();
+            if (type == Message.MessageType.TEXT || type == Message.MessageType.FILE || type == Message.MessageType.ROOM_TEXT) {
+                // Client IDs are unique only within the client; keep it for receipts and stamp our own
+                message.setClientMessageId(message.getMessageId());
+                message.setMessageId(MessageIdGenerator.nextId());
+            }
+            switch (type) {
                 case TEXT:
                     handleTextMessage(message);
                     break;
@@ -152,6 +356,12 @@ public class ClientHandler implements Runnable {
                 case HEARTBEAT:
                     handleHeartbeat(message);
                     break;
+                case TRACE_REPORT:
+                    MessageTracer.reported(message);
+                    break;
+                case PONG:
+                    handlePong(message);
+                    break;
                 case TYPING_START:
                     handleTypingStart(message);
                     break;
@@ -164,11 +374,32 @@ public class ClientHandler implements Runnable {
                 case READ_RECEIPT:
                     handleReadReceipt(message);
                     break;
+                case HISTORY_REQUEST:
+                    handleHistoryRequest(message);
+                    break;
+                case ROOM_JOIN:
+                    handleRoomJoin(message);
+                    break;
+                case ROOM_LEAVE:
+                    handleRoomLeave(message);
+                    break;
+                case ROOM_TEXT:
+                    handleRoomText(message);
+                    break;
+                case PRESENCE_QUERY:
+                    handlePresenceQuery(message);
+                    break;
+                case PRESENCE_SUBSCRIBE:
+                    handlePresenceSubscribe(message);
+                    break;
+                case PRESENCE_UNSUBSCRIBE:
+                    presence.unsubscribe(username, parseUserList(message.getContent()));
+                    break;
                 default:
-                    System.out.println("Unknown message type: " + message.getType());
+                    Log.warn("Unknown message type: {}", message.getType());
             }
         } catch (Exception e) {
-            System.err.println("Error handling message: " + e.getMessage());
+            Log.error("Error handling message: {}", e.getMessage());
         }
     }
     
@@ -180,25 +411,16 @@ public class ClientHandler implements Runnable {
         String requester = message.getSender();
         String target = message.getReceiver();
         
-        // Check if requester is already connected
-        if (sessionManager.isUserConnected(requester)) {
-            Message errorMsg = new Message("SERVER", requester,
-                "You are already connected to " + sessionManager.getConnectedUser(requester) + 
-                ". Disconnect first to connect to someone else.", Message.MessageType.SYSTEM);
-            sendMessage(errorMsg);
-            return;
-        }
-        
-        // Check if target is already connected
-        if (sessionManager.isUserConnected(target)) {
+        // Users can hold several sessions, but only one with the same partner
+        if (sessionManager.isConnectedTo(requester, target)) {
             Message errorMsg = new Message("SERVER", requester,
-                target + " is already in a chat with someone else.", Message.MessageType.SYSTEM);
+                "You are already connected to " + target + ".", Message.MessageType.SYSTEM);
             sendMessage(errorMsg);
             return;
         }
         
         // Send connection request to target user
-        ClientHandler targetClient = connectedClients.get(target);
+        ChatEndpoint targetClient = endpointFor(target);
         if (targetClient != null) {
             Message requestMsg = new Message("SERVER", target,
                 requester + " wants to start a chat with you. Accept?", 
@@ -234,21 +456,120 @@ public class ClientHandler implements Runnable {
                 Message.MessageType.SYSTEM);
             sendMessage(acceptMsg);
             
-            ClientHandler requesterClient = connectedClients.get(requester);
+            ChatEndpoint requesterClient = endpointFor(requester);
+            if (requesterClient instanceof ClientHandler) {
+                ((ClientHandler) requesterClient).bind(accepter);
+                replayHistory((ClientHandler) requesterClient, accepter);
+            } else {
+                // The requester's node pairs them too, and replays their history
+                mirrorToPartner(ClusterFrame.Kind.PAIR, accepter, requester);
+            }
             if (requesterClient != null) {
                 Message connectedMsg = new Message("SERVER", requester,
                     accepter + " accepted your request. You can now start chatting!", 
                     Message.MessageType.SYSTEM);
                 requesterClient.sendMessage(connectedMsg);
             }
+            bind(requester);
+            
+            // Replay persisted history so both users pick up where they left off
+            replayHistory(this, requester);
         } else {
             Message errorMsg = new Message("SERVER", accepter,
-                "Failed to establish connection. One of you may already be connected to someone else.", 
+                "Failed to establish connection. You are already connected to " + requester + ".", 
                 Message.MessageType.SYSTEM);
             sendMessage(errorMsg);
         }
     }
     
+    /**
+     * Send the latest persisted messages of a re-established session to one of its users
+     */
+    private static void replayHistory(ClientHandler client, String partner) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        if (!sessionManager.isHistoryPersistent()) {
+            return;
+        }
+        
+        String sessionId = sessionManager.getSessionId(client.username, partner);
+        List<Message> replay = sessionManager.getReplayMessages(sessionId);
+        if (replay.isEmpty()) {
+            return;
+        }
+        
+        try {
+            client.sendMessages(toHistoryMessages(replay, client.username, client.sessionKey));
+            Log.debug("Replayed {} messages to {} for session: {}", replay.size(), client.username, sessionId);
+        } catch (Exception e) {
+            Log.error("Error replaying history for session {}: {}", sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Handle a request for one page of session history.
+     * The message's sequence is the cursor, its page size the limit and its content the direction
+     * (AFTER or BEFORE). The page is sent oldest first as one burst of HISTORY messages.
+     */
+    private void handleHistoryRequest(Message message) throws Exception {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        // History is only ever this connection's own, whatever sender the client claims
+        String user = username;
+        String connectedTo = message.getReceiver();
+        if (user == null || !user.equals(message.getSender())) {
+            Log.warn("Rejected history request from {} claiming to be {}", user, message.getSender());
+            sendMessage(new Message("SERVER", user,
+                "History request rejected.", Message.MessageType.SYSTEM));
+            return;
+        }
+        if (!sessionManager.isConnectedTo(user, connectedTo)) {
+            sendMessage(new Message("SERVER", user,
+                "You are not connected to " + connectedTo + ".", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        int limit = message.getPageSize() > 0 ? Math.min(message.getPageSize(), ServerConfig.HISTORY_MAX_PAGE.intValue()) : DEFAULT_HISTORY_PAGE;
+        String sessionId = sessionManager.getSessionId(user, connectedTo);
+        List<Message> page;
+        if ("BEFORE".equals(message.getContent())) {
+            long cursor = message.getSequence() > 0 ? message.getSequence() : Long.MAX_VALUE;
+            page = sessionManager.getMessagesBefore(sessionId, cursor, limit).getMessages();
+            Collections.reverse(page);
+        } else {
+            page = sessionManager.getMessages(sessionId, message.getSequence(), limit).getMessages();
+        }
+        
+        if (!page.isEmpty()) {
+            sendMessages(toHistoryMessages(page, user, sessionKey));
+        }
+    }
+    
+    /**
+     * Build HISTORY copies of stored messages encrypted for one recipient
+     */
+    private static List<Message> toHistoryMessages(List<Message> stored, String recipient, SecretKey recipientKey) throws Exception {
+        List<Message> history = new ArrayList<>(stored.size());
+        for (Message message : stored) {
+            history.add(toHistoryMessage(message, recipient, recipientKey));
+        }
+        return history;
+    }
+    
+    /**
+     * Build a HISTORY copy of a stored message encrypted for one recipient.
+     * Files are not re-sent, only a note that they were shared.
+     */
+    private static Message toHistoryMessage(Message stored, String recipient, SecretKey recipientKey) throws Exception {
+        String text = stored.getType() == Message.MessageType.FILE
+            ? "📎 Shared file: " + stored.getFileName()
+            : stored.getContent();
+        Message history = new Message(stored.getSender(), recipient,
+            EncryptionUtil.encrypt(text, recipientKey), Message.MessageType.HISTORY);
+        history.setTimestamp(stored.getTimestamp());
+        history.setMessageId(stored.getMessageId());
+        history.setSequence(stored.getSequence());
+        return history;
+    }
+    
     /**
      * Handle connection reject
      */
@@ -257,7 +578,7 @@ public class ClientHandler implements Runnable {
         String requester = message.getReceiver();
         
         // Notify the requester of rejection
-        ClientHandler requesterClient = connectedClients.get(requester);
+        ChatEndpoint requesterClient = endpointFor(requester);
         if (requesterClient != null) {
             Message rejectMsg = new Message("SERVER", requester,
                 rejecter + " declined your connection request.", 
@@ -278,24 +599,35 @@ public class ClientHandler implements Runnable {
     private void handleDisconnectRequest(Message message) {
         ChatSessionManager sessionManager = ChatSessionManager.getInstance();
         String user = message.getSender();
-        String connectedTo = sessionManager.getConnectedUser(user);
+        String partner = message.getReceiver();
         
-        if (connectedTo != null) {
-            // Disconnect the users
-            sessionManager.disconnectUser(user);
-            
-            // Notify both users
-            Message disconnectMsg = new Message("SERVER", user,
-                "You have disconnected from " + connectedTo + ".", 
-                Message.MessageType.SYSTEM);
-            sendMessage(disconnectMsg);
-            
-            ClientHandler otherClient = connectedClients.get(connectedTo);
-            if (otherClient != null) {
-                Message otherDisconnectMsg = new Message("SERVER", connectedTo,
-                    user + " has disconnected from the chat.", 
+        // A named partner ends that session only; no partner ends all of them
+        List<String> disconnected = new ArrayList<>();
+        if (partner == null || partner.isEmpty()) {
+            disconnected.addAll(sessionManager.disconnectUser(user));
+        } else if (sessionManager.disconnectUsers(user, partner)) {
+            disconnected.add(partner);
+        }
+        
+        if (!disconnected.isEmpty()) {
+            for (String connectedTo : disconnected) {
+                cancelSessionTimer(sessionManager.getSessionId(user, connectedTo));
+                unbindPair(user, connectedTo);
+                mirrorToPartner(ClusterFrame.Kind.UNPAIR, user, connectedTo);
+                
+                // Notify both users
+                Message disconnectMsg = new Message("SERVER", user,
+                    "You have disconnected from " + connectedTo + ".", 
                     Message.MessageType.SYSTEM);
-                otherClient.sendMessage(otherDisconnectMsg);
+                sendMessage(disconnectMsg);
+                
+                ChatEndpoint otherClient = endpointFor(connectedTo);
+                if (otherClient != null) {
+                    Message otherDisconnectMsg = new Message("SERVER", connectedTo,
+                        user + " has disconnected from the chat.", 
+                        Message.MessageType.SYSTEM);
+                    otherClient.sendMessage(otherDisconnectMsg);
+                }
             }
         } else {
             Message errorMsg = new Message("SERVER", user,
@@ -309,11 +641,16 @@ public class ClientHandler implements Runnable {
      * Handle text messages with digital signature verification and delivery receipts
      */
     private void handleTextMessage(Message message) throws Exception {
-        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        MessageTrace trace = MessageTracer.begin(message, readCompleteNanos);
+        
+        // Connected partners resolve through the binding; anyone else takes the lookup path
+        long start = System.nanoTime();
+        SessionBinding binding = bindingFor(message.getReceiver());
+        ChatEndpoint recipient = binding != null ? binding.partnerEndpoint : endpointFor(message.getReceiver());
+        long routeNanos = System.nanoTime() - start;
         
-        // Check if sender is connected to the receiver
-        String connectedTo = sessionManager.getConnectedUser(message.getSender());
-        if (connectedTo == null || !connectedTo.equals(message.getReceiver())) {
+        // Check if sender is connected to the receiver (offline recipients get store-and-forward)
+        if (binding == null && recipient != null) {
             Message errorMsg = new Message("SERVER", message.getSender(),
                 "You are not connected to " + message.getReceiver() + 
                 ". Send a connection request first.", Message.MessageType.SYSTEM);
@@ -321,295 +658,856 @@ public class ClientHandler implements Runnable {
             return;
         }
         
-        // Decrypt message content
-        String decryptedContent = EncryptionUtil.decrypt(message.getContent(), sessionKey);
+        // Decrypt (and decompress) message content; compressed text is checked against the limit as it expands
+        start = System.nanoTime();
+        String decryptedContent = openBoundedText(message);
+        if (decryptedContent == null) {
+            return;
+        }
+        PipelineMetrics.record(PipelineMetrics.Stage.DECRYPT, message.getType(), start);
         
         // Verify digital signature if present
         if (message.getDigitalSignature() != null && message.getSignerPublicKey() != null) {
-            boolean signatureValid = DigitalSignatureUtil.verifySignature(
-                decryptedContent, message.getDigitalSignature(), message.getSignerPublicKey());
+            boolean signatureValid = verifyTimed(message, decryptedContent);
             
             if (!signatureValid) {
-                System.err.println("⚠️  Digital signature verification failed for message from " + message.getSender());
+                Log.warn("Digital signature verification failed for message from {}", message.getSender());
                 Message warningMsg = new Message("SERVER", message.getSender(),
                     "⚠️  Message signature verification failed. Message may have been tampered with.", 
                     Message.MessageType.SYSTEM);
                 sendMessage(warningMsg);
                 return;
             } else {
-                System.out.println("✅ Digital signature verified for message from " + message.getSender());
+                Log.trace("Digital signature verified for message from {}", message.getSender());
             }
         }
         
         message.setContent(decryptedContent);
+        message.setCodec(null);
+        MessageTracer.verified(trace);
         
-        // Store message in session
-        String sessionId = sessionManager.getOrCreateSession(
-            message.getSender(), message.getReceiver()).getSessionId();
-        sessionManager.addMessage(sessionId, message);
-        
-        // Forward to recipient
-        ClientHandler recipient = connectedClients.get(message.getReceiver());
-        if (recipient != null) {
-            // Re-encrypt for recipient
-            String encryptedForRecipient = EncryptionUtil.encrypt(
-                decryptedContent, recipient.sessionKey);
-            message.setContent(encryptedForRecipient);
-            
-            // Set delivery status and send message
-            message.setDeliveryStatus(Message.DeliveryStatus.DELIVERED);
-            message.setDeliveredAt(java.time.LocalDateTime.now());
-            recipient.sendMessage(message);
-            
-            // Send delivery receipt back to sender
-            Message deliveryReceipt = new Message("SERVER", message.getSender(),
-                "DELIVERED:" + message.getMessageId(), Message.MessageType.DELIVERY_RECEIPT);
-            sendMessage(deliveryReceipt);
-            
-        } else {
-            // Send message that recipient is offline
-            Message offlineMsg = new Message("SERVER", message.getSender(),
-                "User " + message.getReceiver() + " is offline", 
-                Message.MessageType.SYSTEM);
-            sendMessage(offlineMsg);
+        if (binding == null) {
+            queueForOfflineRecipient(message);
+            Log.debug("Text message queued: {} -> {}", message.getSender(), message.getReceiver());
+            return;
         }
         
-        System.out.println("Text message: " + message.getSender() + 
-            " -> " + message.getReceiver() + ": " + decryptedContent);
+        // Store message in the bound session
+        start = System.nanoTime();
+        ChatSessionManager.getInstance().addMessage(binding.session, message);
+        PipelineMetrics.record(PipelineMetrics.Stage.ROUTE, message.getType(), start - routeNanos);
+        
+        // Forward a copy to recipient, re-encrypted with their key (the stored message stays plaintext)
+        start = System.nanoTime();
+        Message forward = message.copy();
+        Compression.sealText(forward, decryptedContent, recipient.getSessionKey(), recipient.getCompressor(Message.MessageType.TEXT));
+        PipelineMetrics.record(PipelineMetrics.Stage.ENCRYPT, message.getType(), start);
+        forward.setTrace(trace);
+        MessageTracer.encrypted(trace);
+        
+        // Set delivery status and send message
+        forward.setDeliveryStatus(Message.DeliveryStatus.DELIVERED);
+        forward.setDeliveredAt(java.time.LocalDateTime.now());
+        recipient.sendMessage(forward);
+        
+        // Send delivery receipt back to sender, with the sequence so it can resume history from there
+        Message deliveryReceipt = newDeliveryReceipt(message);
+        deliveryReceipt.setSequence(message.getSequence());
+        sendMessage(deliveryReceipt);
+        
+        if (Log.isDebugEnabled()) {
+            Log.debug("Text message: {} -> {}: {}", message.getSender(), message.getReceiver(), Log.content(decryptedContent));
+        }
     }
     
     /**
      * Handle file transfer messages
      */
     private void handleFileMessage(Message message) throws Exception {
-        // Decrypt file data
-        byte[] decryptedFile = EncryptionUtil.decryptBytes(message.getFileData(), sessionKey);
+        long maxFileBytes = ServerConfig.MAX_FILE_BYTES.longValue();
+        if (message.getFileData() == null || message.getFileData().length > maxFileBytes + ENCRYPTION_OVERHEAD_BYTES) {
+            sendMessage(new Message("SERVER", username, "File " + message.getFileName() + " is larger than the "
+                + (maxFileBytes / 1024) + " KB limit and was not sent.", Message.MessageType.SYSTEM));
+            return;
+        }
+        MessageTrace trace = MessageTracer.begin(message, readCompleteNanos);
+        
+        // Like TEXT: online recipients must be paired first (offline recipients get store-and-forward)
+        long start = System.nanoTime();
+        SessionBinding binding = bindingFor(message.getReceiver());
+        ChatEndpoint recipient = binding != null ? binding.partnerEndpoint : endpointFor(message.getReceiver());
+        long routeNanos = System.nanoTime() - start;
+        if (binding == null && recipient != null) {
+            sendMessage(new Message("SERVER", message.getSender(),
+                "You are not connected to " + message.getReceiver() +
+                ". Send a connection request first.", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        // Decrypt (and decompress) file data; compressed data is checked against the limit as it expands
+        start = System.nanoTime();
+        byte[] decryptedFile;
+        try {
+            decryptedFile = Compression.openFile(message, sessionKey, (int) maxFileBytes);
+        } catch (IOException e) {
+            sendMessage(new Message("SERVER", username, "File " + message.getFileName() + " was rejected: "
+                + e.getMessage(), Message.MessageType.SYSTEM));
+            return;
+        }
+        if (message.getCodec() != null && !admitInflated(message, message.getFileData().length, decryptedFile.length)) {
+            return;
+        }
         message.setFileData(decryptedFile);
+        message.setCodec(null);
+        PipelineMetrics.record(PipelineMetrics.Stage.DECRYPT, message.getType(), start);
+        MessageTracer.verified(trace);
         
-        // Store message in session
+        if (binding == null) {
+            queueForOfflineRecipient(message);
+            Log.debug("File transfer queued: {} -> {}: {}", message.getSender(), message.getReceiver(), message.getFileName());
+            return;
+        }
+        
+        // Store the file's metadata in the bound session; the content goes to the file store
+        start = System.nanoTime();
+        String digest = FileStore.digest(decryptedFile);
+        message.setFileDigest(digest);
+        message.setFileData(null);
         ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-        String sessionId = sessionManager.getOrCreateSession(
-            message.getSender(), message.getReceiver()).getSessionId();
-        sessionManager.addMessage(sessionId, message);
+        ChatSessionManager.ChatSession session = binding.session;
+        sessionManager.addMessage(session, message);
+        PipelineMetrics.record(PipelineMetrics.Stage.ROUTE, message.getType(), start - routeNanos);
         
-        // Forward to recipient
-        ClientHandler recipient = connectedClients.get(message.getReceiver());
-        if (recipient != null) {
-            // Re-encrypt file for recipient
-            byte[] encryptedForRecipient = EncryptionUtil.encryptBytes(
-                decryptedFile, recipient.sessionKey);
-            message.setFileData(encryptedForRecipient);
-            recipient.sendMessage(message);
-            
-            // Save file to server's file directory
-            saveFile(message.getFileName(), decryptedFile);
-        } else {
-            Message offlineMsg = new Message("SERVER", message.getSender(),
-                "User " + message.getReceiver() + " is offline", 
-                Message.MessageType.SYSTEM);
-            sendMessage(offlineMsg);
-        }
+        // Re-encrypt file for recipient and forward a copy
+        start = System.nanoTime();
+        Message forward = message.copy();
+        Compression.sealFile(forward, decryptedFile, recipient.getSessionKey(), recipient.getCompressor(Message.MessageType.FILE));
+        PipelineMetrics.record(PipelineMetrics.Stage.ENCRYPT, message.getType(), start);
+        forward.setTrace(trace);
+        MessageTracer.encrypted(trace);
+        recipient.sendMessage(forward);
+        
+        // Keep a copy in the file store, written on its I/O pool and dropped with the session
+        fileStore.store(session.getSessionId(), message.getFileName(), digest, decryptedFile);
         
-        System.out.println("File transfer: " + message.getSender() + 
-            " -> " + message.getReceiver() + ": " + message.getFileName());
+        Log.debug("File transfer: {} -> {}: {}", message.getSender(), message.getReceiver(), message.getFileName());
     }
     
     /**
-     * Handle clear chat request (only clear messages, keep session)
+     * Get this connection's binding to a partner. The last partner written to is checked
+     * first, so a steady conversation costs one string comparison; a stale or missing
+     * binding is re-resolved. Returns null unless the partner is online and connected.
      */
-    private void handleClearChatMessage(Message message) {
+    private SessionBinding bindingFor(String partner) {
+        if (partner == null) {
+            return null;
+        }
+        SessionBinding binding = lastBinding;
+        if (binding == null || !binding.partner.equals(partner)) {
+            binding = bindings.get(partner);
+        }
+        if (binding == null || !binding.isValid()) {
+            binding = bind(partner);
+        }
+        lastBinding = binding;
+        return binding;
+    }
+    
+    /**
+     * Resolve and bind the session with a partner, or drop the binding if they are not connected
+     */
+    private SessionBinding bind(String partner) {
         ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-        String sessionId = sessionManager.getOrCreateSession(
-            message.getSender(), message.getReceiver()).getSessionId();
-        
-        if (sessionManager.clearSession(sessionId)) {
-            // Notify both users that chat was cleared
-            Message clearNotification = new Message("SERVER", message.getSender(),
-                "Chat history cleared for both users", Message.MessageType.SYSTEM);
-            sendMessage(clearNotification);
-            
-            ClientHandler otherUser = connectedClients.get(message.getReceiver());
-            if (otherUser != null) {
-                Message otherNotification = new Message("SERVER", message.getReceiver(),
-                    "Chat history cleared by " + message.getSender(), 
-                    Message.MessageType.SYSTEM);
-                otherUser.sendMessage(otherNotification);
-                
-                // Send signal to other user to clear their local chat area
-                Message clearSignal = new Message("SERVER", message.getReceiver(),
-                    "CLEAR_CHAT_AREA", Message.MessageType.CLEAR_LOCAL_CHAT);
-                otherUser.sendMessage(clearSignal);
-            }
+        ChatSessionManager.ChatSession session = sessionManager.getSession(username, partner);
+        ChatEndpoint partnerEndpoint = endpointFor(partner);
+        if (session == null || partnerEndpoint == null || !sessionManager.isConnectedTo(username, partner)) {
+            unbind(partner);
+            return null;
+        }
+        SessionBinding binding = new SessionBinding(partner, session, partnerEndpoint);
+        bindings.put(partner, binding);
+        return binding;
+    }
+    
+    private void unbind(String partner) {
+        bindings.remove(partner);
+        SessionBinding last = lastBinding;
+        if (last != null && last.partner.equals(partner)) {
+            lastBinding = null;
         }
     }
     
     /**
-     * Handle clear local chat request (only clear sender's chat area)
+     * Drop both connections' bindings for a pair that was just disconnected
      */
-    private void handleClearLocalChatMessage(Message message) {
-        // Just send acknowledgment - no server-side clearing needed
-        Message clearNotification = new Message("SERVER", message.getSender(),
-            "Your local chat history cleared", Message.MessageType.SYSTEM);
-        sendMessage(clearNotification);
+    private static void unbindPair(String user1, String user2) {
+        ClientHandler handler1 = connectedClients.get(user1);
+        if (handler1 != null) {
+            handler1.unbind(user2);
+        }
+        ClientHandler handler2 = connectedClients.get(user2);
+        if (handler2 != null) {
+            handler2.unbind(user1);
+        }
     }
     
     /**
-     * Handle chat destruction request (destroy session and exit clients)
+     * Find where a user is connected: this node first, then the cluster. Null if offline.
      */
-    private void handleDestroyChatMessage(Message message) {
-        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-        String sessionId = sessionManager.getOrCreateSession(
-            message.getSender(), message.getReceiver()).getSessionId();
-        
-        if (sessionManager.destroySession(sessionId)) {
-            // Notify both users and signal them to exit
-            Message destroyNotification = new Message("SERVER", message.getSender(),
-                "CLOSE_APPLICATION", Message.MessageType.DESTROY_CHAT);
-            sendMessage(destroyNotification);
-            
-            ClientHandler otherUser = connectedClients.get(message.getReceiver());
-            if (otherUser != null) {
-                Message otherNotification = new Message("SERVER", message.getReceiver(),
-                    "CLOSE_APPLICATION", Message.MessageType.DESTROY_CHAT);
-                otherUser.sendMessage(otherNotification);
-            }
-            
-            // Disconnect both users after a short delay
-            new Thread(() -> {
-                try {
-                    Thread.sleep(1000); // Give time for messages to be sent
-                    disconnect();
-                    if (otherUser != null) {
-                        otherUser.disconnect();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }).start();
+    private static ChatEndpoint endpointFor(String user) {
+        ClientHandler local = connectedClients.get(user);
+        if (local != null || cluster == null) {
+            return local;
         }
+        return cluster.lookup(user);
     }
     
     /**
-     * Handle timer setting request with countdown
+     * Have a remote partner's node mirror a change to their pairing with user
      */
-    private void handleSetTimerMessage(Message message) {
-        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-        String sessionId = sessionManager.getOrCreateSession(
-            message.getSender(), message.getReceiver()).getSessionId();
-        
-        long timerSeconds = message.getTimerDuration(); // Now in seconds
-        
-        // Notify both users of timer start
-        long minutes = timerSeconds / 60;
-        long seconds = timerSeconds % 60;
-        String timeDisplay = String.format("%02d:%02d", minutes, seconds);
-        
-        String timerMsg = "⏱️ DESTRUCTION TIMER SET: " + timeDisplay + " - Chat will auto-destroy!";
-        Message timerNotification = new Message("SERVER", message.getSender(),
-            timerMsg, Message.MessageType.SYSTEM);
-        sendMessage(timerNotification);
-        
-        ClientHandler otherUser = connectedClients.get(message.getReceiver());
-        if (otherUser != null) {
-            Message otherNotification = new Message("SERVER", message.getReceiver(),
-                timerMsg + " (set by " + message.getSender() + ")", 
-                Message.MessageType.SYSTEM);
-            otherUser.sendMessage(otherNotification);
+    private static void mirrorToPartner(ClusterFrame.Kind kind, String user, String partner) {
+        if (cluster != null && !connectedClients.containsKey(partner)) {
+            cluster.mirror(kind, user, partner);
         }
-        
-        // Start countdown timer
-        startCountdownTimer(sessionId, timerSeconds, message.getSender(), message.getReceiver());
     }
     
     /**
-     * Start countdown timer with regular updates
+     * End every session of a user who left, telling their partners on this node
      */
-    private void startCountdownTimer(String sessionId, long totalSeconds, String user1, String user2) {
-        ScheduledExecutorService countdownExecutor = Executors.newSingleThreadScheduledExecutor();
-        
-        // Create a runnable for countdown updates
-        Runnable countdownTask = new Runnable() {
-            private long remainingSeconds = totalSeconds;
+    private static void endPairsOf(String user) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        for (String connectedTo : sessionManager.disconnectUser(user)) {
+            cancelSessionTimer(sessionManager.getSessionId(user, connectedTo));
             
-            @Override
-            public void run() {
-                try {
-                    if (remainingSeconds > 0) {
-                        // Send timer update to both users
-                        ClientHandler user1Handler = connectedClients.get(user1);
-                        ClientHandler user2Handler = connectedClients.get(user2);
-                        
-                        if (user1Handler != null && user2Handler != null) {
-                            Message timerUpdate = new Message("SERVER", user1,
-                                "TIMER_UPDATE", Message.MessageType.TIMER_UPDATE);
-                            timerUpdate.setTimerDuration(remainingSeconds);
-                            user1Handler.sendMessage(timerUpdate);
-                            
-                            Message timerUpdate2 = new Message("SERVER", user2,
-                                "TIMER_UPDATE", Message.MessageType.TIMER_UPDATE);
-                            timerUpdate2.setTimerDuration(remainingSeconds);
-                            user2Handler.sendMessage(timerUpdate2);
-                            
-                            remainingSeconds--;
-                        } else {
-                            // One or both users disconnected, cancel timer
-                            countdownExecutor.shutdown();
-                        }
-                    } else {
-                        // Timer expired - destroy the chat
-                        handleTimerExpiration(sessionId, user1, user2);
-                        countdownExecutor.shutdown();
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error in countdown timer: " + e.getMessage());
-                    countdownExecutor.shutdown();
-                }
+            // Notify the other user
+            ClientHandler otherClient = connectedClients.get(connectedTo);
+            if (otherClient != null) {
+                otherClient.unbind(user);
+                Message disconnectMsg = new Message("SERVER", connectedTo,
+                    user + " has left the chat.", Message.MessageType.SYSTEM);
+                otherClient.sendMessage(disconnectMsg);
             }
-        };
-        
-        // Schedule countdown updates every second
-        countdownExecutor.scheduleAtFixedRate(countdownTask, 0, 1, TimeUnit.SECONDS);
+        }
     }
     
     /**
-     * Handle timer expiration and destroy chat
+     * Route users on other nodes through a cluster node
      */
-    private void handleTimerExpiration(String sessionId, String user1, String user2) {
-        try {
-            System.out.println("Timer expired for session: " + sessionId);
-            
-            // Send expiration message to both users
-            ClientHandler user1Handler = connectedClients.get(user1);
-            ClientHandler user2Handler = connectedClients.get(user2);
+    static void attachCluster(ClusterNode node) {
+        cluster = node;
+    }
+    
+    /**
+     * A user joined another node: forward anything queued here while they were offline
+     */
+    static void remoteUserArrived(String user, ChatEndpoint endpoint) {
+        presence.userOnline(user);
+        deliverOfflineMessages(user, endpoint);
+    }
+    
+    /**
+     * A user left another node (or its node went away): end their sessions here
+     */
+    static void remoteUserLeft(String user) {
+        presence.userOffline(user);
+        endPairsOf(user);
+        ControlFrames.forget(user);
+    }
+    
+    /**
+     * Deliver a message relayed from another node to a user on this one. Encrypted content
+     * arrives under the link key and is re-encrypted with the user's session key. TEXT and FILE
+     * messages are also stored in this node's copy of the session, and held in the offline
+     * queue if the user has left in the meantime.
+     */
+    static void deliverFromCluster(String user, Message message, SecretKey linkKey) {
+        Message.MessageType type = message.getType();
+        boolean chat = type == Message.MessageType.TEXT || type == Message.MessageType.FILE;
+        try {
+            if (type == Message.MessageType.FILE && message.getFileData() != null) {
+                message.setFileData(EncryptionUtil.decryptBytes(message.getFileData(), linkKey));
+            } else if ((chat || type == Message.MessageType.HISTORY || type == Message.MessageType.ROOM_TEXT)
+                && message.getContent() != null) {
+                message.setContent(EncryptionUtil.decrypt(message.getContent(), linkKey));
+            }
             
-            if (user1Handler != null) {
-                Message expiredMsg = new Message("SERVER", user1,
-                    "TIMER_EXPIRED", Message.MessageType.TIMER_EXPIRED);
-                user1Handler.sendMessage(expiredMsg);
+            ClientHandler client = connectedClients.get(user);
+            if (client == null) {
+                if (chat && !mayQueueFor(message.getSender(), user)) {
+                    Log.warn("Dropped relayed message for {}: not a known user", user);
+                } else if (chat && !offlineQueue.enqueue(user, message)) {
+                    Log.warn("Dropped relayed message for {}: offline queue full", user);
+                }
+                return;
             }
             
-            if (user2Handler != null) {
-                Message expiredMsg = new Message("SERVER", user2,
-                    "TIMER_EXPIRED", Message.MessageType.TIMER_EXPIRED);
-                user2Handler.sendMessage(expiredMsg);
+            if (chat) {
+                ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+                ChatSessionManager.ChatSession session = sessionManager.getSession(user, message.getSender());
+                if (session != null) {
+                    // The stored copy stays plaintext, and keeps only a file's metadata and digest
+                    Message stored = message.copy();
+                    stored.setFileData(null);
+                    sessionManager.addMessage(session, stored);
+                }
             }
             
-            // Destroy the session
-            ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-            sessionManager.destroySession(sessionId);
+            if (type == Message.MessageType.FILE && message.getFileData() != null) {
+                Compression.sealFile(message, message.getFileData(), client.sessionKey, client.fileCompressor);
+            } else if (type == Message.MessageType.TEXT && message.getContent() != null) {
+                Compression.sealText(message, message.getContent(), client.sessionKey, client.textCompressor);
+            } else if ((type == Message.MessageType.HISTORY || type == Message.MessageType.ROOM_TEXT)
+                && message.getContent() != null) {
+                message.setContent(EncryptionUtil.encrypt(message.getContent(), client.sessionKey));
+            }
+            client.sendMessage(message);
+        } catch (Exception e) {
+            Log.error("Error delivering relayed message to {}: {}", user, e.getMessage());
+        }
+    }
+    
+    /**
+     * Mirror a pairing change made on another node between its user and a user on this node
+     */
+    static void applyClusterEvent(ClusterFrame.Kind kind, String remoteUser, String localUser) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        String sessionId = sessionManager.getSessionId(remoteUser, localUser);
+        ClientHandler client = connectedClients.get(localUser);
+        switch (kind) {
+            case PAIR:
+                if (sessionManager.connectUsers(localUser, remoteUser) && client != null) {
+                    client.bind(remoteUser);
+                    replayHistory(client, remoteUser);
+                }
+                break;
+            case UNPAIR:
+                if (sessionManager.disconnectUsers(localUser, remoteUser)) {
+                    cancelSessionTimer(sessionId);
+                    unbindPair(localUser, remoteUser);
+                }
+                break;
+            case DESTROY:
+                sessionManager.destroySession(sessionId);
+                cancelSessionTimer(sessionId);
+                sessionManager.disconnectUsers(localUser, remoteUser);
+                unbindPair(localUser, remoteUser);
+                break;
+            case CLEAR:
+                sessionManager.clearSession(sessionId);
+                break;
+            default:
+                Log.warn("Unknown cluster event: {}", kind);
+        }
+    }
+    
+    /**
+     * Handle a request to join a group room (the room name is the receiver)
+     */
+    private void handleRoomJoin(Message message) {
+        String roomName = message.getReceiver() != null ? message.getReceiver().trim() : "";
+        if (roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME_LENGTH) {
+            sendMessage(new Message("SERVER", username,
+                "Room names must be 1-" + MAX_ROOM_NAME_LENGTH + " characters.", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        ChatSessionManager.ChatRoom room = sessionManager.joinRoom(roomName, username);
+        if (room == null) {
+            sendMessage(new Message("SERVER", username,
+                "Room " + roomName + " is full.", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        Message joined = new Message("SERVER", roomName,
+            username + " joined room " + roomName + " (" + room.getMemberCount() + " members).",
+            Message.MessageType.SYSTEM);
+        fanoutEngine.broadcast(joined, onlineMembers(room, null));
+    }
+    
+    /**
+     * Handle a request to leave a group room
+     */
+    private void handleRoomLeave(Message message) {
+        String roomName = message.getReceiver();
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        if (roomName == null || !sessionManager.leaveRoom(roomName, username)) {
+            sendMessage(new Message("SERVER", username,
+                "You are not in room " + roomName + ".", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        sendMessage(new Message("SERVER", username, "You left room " + roomName + ".", Message.MessageType.SYSTEM));
+        notifyRoomLeft(roomName);
+    }
+    
+    /**
+     * Handle a message to a group room: decrypt and verify once, then fan out to every online member
+     */
+    /**
+     * Decrypt and decompress a chat message's content within the text limit. Ciphertext too
+     * long to be within the limit is refused before it is decrypted, and compressed text is
+     * checked as it expands and charged to the rate limiter at its inflated size.
+     *
+     * @return the plaintext, or null if the message was refused and the sender told why
+     */
+    private String openBoundedText(Message message) throws Exception {
+        int maxTextBytes = ServerConfig.MAX_TEXT_BYTES.intValue();
+        String content = message.getContent();
+        if (content == null || content.length() > (maxTextBytes + ENCRYPTION_OVERHEAD_BYTES) / 3 * 4 + 4) {
+            sendMessage(new Message("SERVER", username, "Message is larger than the "
+                + (maxTextBytes / 1024) + " KB limit and was not sent.", Message.MessageType.SYSTEM));
+            return null;
+        }
+        String decryptedContent;
+        try {
+            decryptedContent = Compression.openText(message, sessionKey, maxTextBytes);
+        } catch (IOException e) {
+            sendMessage(new Message("SERVER", username, "Message was rejected: " + e.getMessage(),
+                Message.MessageType.SYSTEM));
+            return null;
+        }
+        int textBytes = decryptedContent.getBytes(StandardCharsets.UTF_8).length;
+        if (textBytes > maxTextBytes) {
+            sendMessage(new Message("SERVER", username, "Message is larger than the "
+                + (maxTextBytes / 1024) + " KB limit and was not sent.", Message.MessageType.SYSTEM));
+            return null;
+        }
+        if (message.getCodec() != null && !admitInflated(message, content.length(), textBytes)) {
+            return null;
+        }
+        return decryptedContent;
+    }
+    
+    private void handleRoomText(Message message) throws Exception {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        ChatSessionManager.ChatRoom room = sessionManager.getRoom(message.getReceiver());
+        if (room == null || !room.hasMember(username)) {
+            sendMessage(new Message("SERVER", username,
+                "You are not in room " + message.getReceiver() + ". Join it first.", Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        // Bounded like TEXT before anything is decrypted, since fan-out multiplies every byte
+        long start = System.nanoTime();
+        String decryptedContent = openBoundedText(message);
+        if (decryptedContent == null) {
+            return;
+        }
+        PipelineMetrics.record(PipelineMetrics.Stage.DECRYPT, message.getType(), start);
+        if (message.getDigitalSignature() != null && message.getSignerPublicKey() != null
+            && !verifyTimed(message, decryptedContent)) {
+            Log.warn("Digital signature verification failed for room message from {}", username);
+            sendMessage(new Message("SERVER", username,
+                "⚠️  Message signature verification failed. Message may have been tampered with.", 
+                Message.MessageType.SYSTEM));
+            return;
+        }
+        
+        message.setSender(username);
+        message.setContent(decryptedContent);
+        start = System.nanoTime();
+        sessionManager.addMessage(room.getSessionId(), message);
+        List<RoomMember> members = onlineMembers(room, username);
+        PipelineMetrics.record(PipelineMetrics.Stage.ROUTE, message.getType(), start);
+        
+        // Fan-out is mostly per-key encryption, so it is timed as the encrypt stage
+        start = System.nanoTime();
+        int delivered = fanoutEngine.fanOut(message, decryptedContent, members);
+        PipelineMetrics.record(PipelineMetrics.Stage.ENCRYPT, message.getType(), start);
+        sendMessage(newDeliveryReceipt(message));
+        
+        Log.debug("Room message: {} -> {} ({} members)", username, room.getName(), delivered);
+    }
+    
+    /**
+     * Verify a message's signature against its decrypted content, timing the check
+     */
+    private static boolean verifyTimed(Message message, String decryptedContent) throws Exception {
+        long start = System.nanoTime();
+        boolean valid = DigitalSignatureUtil.verifySignature(
+            decryptedContent, message.getDigitalSignature(), message.getSignerPublicKey());
+        PipelineMetrics.record(PipelineMetrics.Stage.VERIFY, message.getType(), start);
+        return valid;
+    }
+    
+    /**
+     * Handle a directory lookup: the content is a name prefix (empty for anyone), the page size a limit
+     */
+    private void handlePresenceQuery(Message message) {
+        String prefix = message.getContent() != null ? message.getContent().trim() : "";
+        List<String> found = presence.findOnline(prefix, message.getPageSize());
+        sendMessage(new Message("SERVER", username, String.join("\n", found), Message.MessageType.PRESENCE_LIST));
+    }
+    
+    /**
+     * Handle a request to watch contacts (content: names separated by commas or newlines).
+     * Contacts online now are reported at once, in the same form as later updates.
+     */
+    private void handlePresenceSubscribe(Message message) {
+        List<String> onlineNow = presence.subscribe(username, parseUserList(message.getContent()));
+        if (onlineNow == null) {
+            sendMessage(new Message("SERVER", username,
+                "You are watching too many contacts. Unwatch some first.", Message.MessageType.SYSTEM));
+        } else if (!onlineNow.isEmpty()) {
+            StringBuilder lines = new StringBuilder();
+            for (String contact : onlineNow) {
+                lines.append(lines.length() > 0 ? "\n+" : "+").append(contact);
+            }
+            sendMessage(new Message("SERVER", username, lines.toString(), Message.MessageType.PRESENCE_UPDATE));
+        }
+    }
+    
+    private static List<String> parseUserList(String content) {
+        List<String> users = new ArrayList<>();
+        if (content != null) {
+            for (String user : content.split("[,\\n]")) {
+                if (!user.trim().isEmpty()) {
+                    users.add(user.trim());
+                }
+            }
+        }
+        return users;
+    }
+    
+    /**
+     * Tell a room's remaining members that this user left
+     */
+    private void notifyRoomLeft(String roomName) {
+        ChatSessionManager.ChatRoom room = ChatSessionManager.getInstance().getRoom(roomName);
+        if (room != null) {
+            fanoutEngine.broadcast(new Message("SERVER", roomName,
+                username + " left room " + roomName + ".", Message.MessageType.SYSTEM), onlineMembers(room, null));
+        }
+    }
+    
+    /**
+     * Resolve a room's members to their connections, skipping offline users and the excluded user
+     */
+    private static List<RoomMember> onlineMembers(ChatSessionManager.ChatRoom room, String excluded) {
+        List<RoomMember> members = new ArrayList<>(room.getMemberCount());
+        for (String member : room.getMembers()) {
+            ClientHandler handler = connectedClients.get(member);
+            if (handler != null && !member.equals(excluded)) {
+                members.add(handler);
+            }
+        }
+        return members;
+    }
+    
+    /**
+     * Hold a decrypted TEXT/FILE message until its recipient joins
+     */
+    private void queueForOfflineRecipient(Message message) {
+        String receiver = message.getReceiver();
+        String notice;
+        if (!mayQueueFor(message.getSender(), receiver)) {
+            sendMessage(new Message("SERVER", message.getSender(),
+                "User " + receiver + " is not known to this server. Message not delivered.", Message.MessageType.SYSTEM));
+            return;
+        }
+        if (offlineQueue.enqueue(receiver, message)) {
+            notice = "User " + receiver + " is offline. Message queued for delivery.";
+        } else {
+            notice = "User " + receiver + " is offline and their message queue is full. Message not delivered.";
+        }
+        sendMessage(new Message("SERVER", message.getSender(), notice, Message.MessageType.SYSTEM));
+        
+        // The recipient may have joined while we were queuing
+        ChatEndpoint recipient = endpointFor(receiver);
+        if (recipient != null) {
+            deliverOfflineMessages(receiver, recipient);
+        }
+    }
+    
+    /**
+     * Whether messages for an offline recipient may be queued: only for users who have joined
+     * this node since it started, or who share a session with the sender, so a client cannot
+     * fill the queue for names nobody will ever claim
+     */
+    private static boolean mayQueueFor(String sender, String receiver) {
+        return receiver != null && (DigitalSignatureUtil.getUserKeyPair(receiver) != null
+            || ChatSessionManager.getInstance().getSession(sender, receiver) != null);
+    }
+    
+    /**
+     * Drain a user's offline queue and send it to them as one burst with a single flush
+     */
+    private static void deliverOfflineMessages(String user, ChatEndpoint endpoint) {
+        if (user == null || !offlineQueue.hasMessages(user)) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        List<Message> queued = offlineQueue.drain(user);
+        if (queued.isEmpty()) {
+            return;
+        }
+        
+        List<Message> burst = new ArrayList<>(queued.size() + 1);
+        burst.add(new Message("SERVER", user,
+            "You have " + queued.size() + " message(s) received while you were offline.", 
+            Message.MessageType.SYSTEM));
+        
+        for (Message message : queued) {
+            try {
+                if (message.getType() == Message.MessageType.FILE) {
+                    Compression.sealFile(message, message.getFileData(), endpoint.getSessionKey(),
+                        endpoint.getCompressor(Message.MessageType.FILE));
+                } else {
+                    Compression.sealText(message, message.getContent(), endpoint.getSessionKey(),
+                        endpoint.getCompressor(Message.MessageType.TEXT));
+                }
+                message.setDeliveryStatus(Message.DeliveryStatus.DELIVERED);
+                message.setDeliveredAt(java.time.LocalDateTime.now());
+                burst.add(message);
+            } catch (Exception e) {
+                Log.error("Error preparing offline message for {}: {}", user, e.getMessage());
+            }
+        }
+        endpoint.sendMessages(burst);
+        offlineQueue.recordDrain(burst.size() - 1, System.nanoTime() - start);
+        
+        // Let senders who are still online know their text messages arrived
+        for (Message message : queued) {
+            ChatEndpoint sender = endpointFor(message.getSender());
+            if (sender != null && message.getType() == Message.MessageType.TEXT) {
+                sender.sendMessage(newDeliveryReceipt(message));
+            }
+        }
+    }
+    
+    /**
+     * Handle clear chat request (only clear messages, keep session)
+     */
+    private void handleClearChatMessage(Message message) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        String sessionId = requireSession(message);
+        
+        if (sessionId != null && sessionManager.clearSession(sessionId)) {
+            // Notify both users that chat was cleared
+            Message clearNotification = new Message("SERVER", message.getSender(),
+                "Chat history cleared for both users", Message.MessageType.SYSTEM);
+            sendMessage(clearNotification);
+            
+            mirrorToPartner(ClusterFrame.Kind.CLEAR, message.getSender(), message.getReceiver());
+            ChatEndpoint otherUser = endpointFor(message.getReceiver());
+            if (otherUser != null) {
+                Message otherNotification = new Message("SERVER", message.getReceiver(),
+                    "Chat history cleared by " + message.getSender(), 
+                    Message.MessageType.SYSTEM);
+                otherUser.sendMessage(otherNotification);
+                
+                // Send signal to other user to clear their local chat area
+                otherUser.sendMessage(ControlFrames.clearChatArea(username));
+            }
+        }
+    }
+    
+    /**
+     * Handle clear local chat request (only clear sender's chat area)
+     */
+    private void handleClearLocalChatMessage(Message message) {
+        // Just send acknowledgment - no server-side clearing needed
+        Message clearNotification = new Message("SERVER", message.getSender(),
+            "Your local chat history cleared", Message.MessageType.SYSTEM);
+        sendMessage(clearNotification);
+    }
+    
+    /**
+     * Handle chat destruction request (destroy the session and end it for both users).
+     * Other sessions of either user are untouched; clients decide whether to exit.
+     */
+    private void handleDestroyChatMessage(Message message) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        String sessionId = requireSession(message);
+        
+        if (sessionId != null && sessionManager.destroySession(sessionId)) {
+            cancelSessionTimer(sessionId);
+            sessionManager.disconnectUsers(message.getSender(), message.getReceiver());
+            unbindPair(message.getSender(), message.getReceiver());
+            mirrorToPartner(ClusterFrame.Kind.DESTROY, message.getSender(), message.getReceiver());
+            
+            // Notify both users, naming the partner whose chat ended
+            sendMessage(ControlFrames.closeApplication(message.getReceiver()));
+            
+            ChatEndpoint otherUser = endpointFor(message.getReceiver());
+            if (otherUser != null) {
+                otherUser.sendMessage(ControlFrames.closeApplication(username));
+            }
+        }
+    }
+    
+    /**
+     * Get the ID of the session between a message's sender and receiver,
+     * or tell the sender they are not connected and return null
+     */
+    private String requireSession(Message message) {
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        if (!sessionManager.isConnectedTo(message.getSender(), message.getReceiver())) {
+            sendMessage(new Message("SERVER", message.getSender(),
+                "You are not connected to " + message.getReceiver() + ".", Message.MessageType.SYSTEM));
+            return null;
+        }
+        return sessionManager.getSessionId(message.getSender(), message.getReceiver());
+    }
+    
+    /**
+     * Handle timer setting request with countdown
+     */
+    private void handleSetTimerMessage(Message message) {
+        String sessionId = requireSession(message);
+        if (sessionId == null) {
+            return;
+        }
+        
+        long timerSeconds = message.getTimerDuration(); // Now in seconds
+        
+        // Notify both users of timer start
+        long minutes = timerSeconds / 60;
+        long seconds = timerSeconds % 60;
+        String timeDisplay = String.format("%02d:%02d", minutes, seconds);
+        
+        String timerMsg = "⏱️ DESTRUCTION TIMER SET: " + timeDisplay + " - Chat will auto-destroy!";
+        Message timerNotification = new Message("SERVER", message.getSender(),
+            timerMsg, Message.MessageType.SYSTEM);
+        sendMessage(timerNotification);
+        
+        ChatEndpoint otherUser = endpointFor(message.getReceiver());
+        if (otherUser != null) {
+            Message otherNotification = new Message("SERVER", message.getReceiver(),
+                timerMsg + " (set by " + message.getSender() + ")", 
+                Message.MessageType.SYSTEM);
+            otherUser.sendMessage(otherNotification);
+        }
+        
+        // Start countdown timer
+        startCountdownTimer(sessionId, timerSeconds, message.getSender(), message.getReceiver());
+    }
+    
+    /**
+     * Start countdown timer with regular updates, replacing any timer already running for the session
+     */
+    private void startCountdownTimer(String sessionId, long totalSeconds, String user1, String user2) {
+        Countdown countdown = new Countdown(sessionId, totalSeconds, user1, user2);
+        Countdown previous = sessionTimers.put(sessionId, countdown);
+        if (previous != null) {
+            previous.stop();
+        }
+        timerScheduler.execute(countdown);
+    }
+    
+    /**
+     * A destruction countdown on the shared timer scheduler. Each run sends the remaining
+     * time to both users and schedules the next one timer.tickSeconds later (or at expiry,
+     * if sooner); the run at zero destroys the session.
+     */
+    private final class Countdown implements Runnable {
+        private final String sessionId;
+        private final String user1;
+        private final String user2;
+        private final long tickSeconds = ServerConfig.TIMER_TICK_SECONDS.longValue();
+        private long remainingSeconds;
+        private volatile boolean stopped;
+        private volatile ScheduledFuture<?> next;
+        
+        Countdown(String sessionId, long totalSeconds, String user1, String user2) {
+            this.sessionId = sessionId;
+            this.remainingSeconds = totalSeconds;
+            this.user1 = user1;
+            this.user2 = user2;
+        }
+        
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                if (remainingSeconds <= 0) {
+                    // Timer expired - destroy the chat
+                    stop();
+                    handleTimerExpiration(sessionId, user1, user2);
+                    return;
+                }
+                
+                // Send timer update to both users
+                ChatEndpoint user1Handler = endpointFor(user1);
+                ChatEndpoint user2Handler = endpointFor(user2);
+                boolean sessionOpen = ChatSessionManager.getInstance().isConnectedTo(user1, user2);
+                if (user1Handler == null || user2Handler == null || !sessionOpen) {
+                    // One or both users disconnected or the session ended, cancel timer
+                    stop();
+                    return;
+                }
+                
+                Message timerUpdate = new Message("SERVER", user1,
+                    "TIMER_UPDATE", Message.MessageType.TIMER_UPDATE);
+                timerUpdate.setTimerDuration(remainingSeconds);
+                user1Handler.sendMessage(timerUpdate);
+                
+                Message timerUpdate2 = new Message("SERVER", user2,
+                    "TIMER_UPDATE", Message.MessageType.TIMER_UPDATE);
+                timerUpdate2.setTimerDuration(remainingSeconds);
+                user2Handler.sendMessage(timerUpdate2);
+                
+                long step = Math.min(tickSeconds, remainingSeconds);
+                remainingSeconds -= step;
+                next = timerScheduler.schedule(this, step, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                Log.error("Error in countdown timer: {}", e.getMessage());
+                stop();
+            }
+        }
+        
+        void stop() {
+            stopped = true;
+            sessionTimers.remove(sessionId, this);
+            ScheduledFuture<?> scheduled = next;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Stop the countdown running for a session, if any
+     */
+    private static void cancelSessionTimer(String sessionId) {
+        Countdown timer = sessionTimers.remove(sessionId);
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Handle timer expiration and destroy chat
+     */
+    private void handleTimerExpiration(String sessionId, String user1, String user2) {
+        try {
+            Log.info("Timer expired for session: {}", sessionId);
             
-            // Disconnect both users after a delay
-            Thread.sleep(1000);
+            // Send expiration message to both users
+            ChatEndpoint user1Handler = endpointFor(user1);
+            ChatEndpoint user2Handler = endpointFor(user2);
             
             if (user1Handler != null) {
-                user1Handler.disconnect();
+                user1Handler.sendMessage(ControlFrames.timerExpired(user2));
             }
+            
             if (user2Handler != null) {
-                user2Handler.disconnect();
+                user2Handler.sendMessage(ControlFrames.timerExpired(user1));
             }
             
+            // Destroy the session and end it for both users; their other sessions continue
+            ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+            sessionManager.destroySession(sessionId);
+            sessionManager.disconnectUsers(user1, user2);
+            unbindPair(user1, user2);
+            mirrorToPartner(ClusterFrame.Kind.DESTROY, user1, user2);
+            
         } catch (Exception e) {
-            System.err.println("Error handling timer expiration: " + e.getMessage());
+            Log.error("Error handling timer expiration: {}", e.getMessage());
         }
     }
     
@@ -618,16 +1516,54 @@ public class ClientHandler implements Runnable {
      */
     private void handleHeartbeat(Message message) {
         // Simply respond with heartbeat
-        Message heartbeatResponse = new Message("SERVER", message.getSender(),
-            "HEARTBEAT_ACK", Message.MessageType.HEARTBEAT);
-        sendMessage(heartbeatResponse);
+        sendMessage(ControlFrames.HEARTBEAT_ACK);
+    }
+    
+    /**
+     * Ping this connection; the client echoes the sequence (the send time) in a PONG
+     */
+    void sendPing(long nowNanos) {
+        pingSentNanos = nowNanos;
+        missedPings++;
+        Message ping = new Message("SERVER", username, null, Message.MessageType.PING);
+        ping.setSequence(nowNanos);
+        enqueue(ping);
+    }
+    
+    /**
+     * Handle a ping reply: fold its round-trip time into the smoothed RTT
+     */
+    private void handlePong(Message message) {
+        if (message.getSequence() != pingSentNanos) {
+            return; // Reply to an older ping
+        }
+        long rtt = System.nanoTime() - pingSentNanos;
+        long smoothed = smoothedRttNanos;
+        smoothedRttNanos = smoothed < 0 ? rtt : smoothed + (rtt - smoothed) / 8;
+    }
+    
+    /**
+     * Get how long this connection has been silent
+     */
+    long getIdleNanos(long nowNanos) {
+        return nowNanos - lastReadNanos;
+    }
+    
+    int getMissedPings() { return missedPings; }
+    
+    /**
+     * Get the smoothed ping round-trip time, or -1 before the first reply
+     */
+    public double getRoundTripMillis() {
+        long smoothed = smoothedRttNanos;
+        return smoothed < 0 ? -1 : smoothed / 1e6;
     }
     
     /**
      * Handle typing start notification
      */
     private void handleTypingStart(Message message) {
-        String sender = message.getSender();
+        String sender = username; // Frames are cached per sender, so never take the name from the client
         String receiver = message.getReceiver();
         
         // Update typing status
@@ -635,34 +1571,26 @@ public class ClientHandler implements Runnable {
         lastTypingTime.put(sender, System.currentTimeMillis());
         
         // Forward typing notification to the receiver
-        ClientHandler recipient = connectedClients.get(receiver);
+        ChatEndpoint recipient = endpointFor(receiver);
         if (recipient != null) {
-            Message typingMsg = new Message("SERVER", receiver,
-                sender + " is typing...", Message.MessageType.TYPING_START);
-            typingMsg.setSender(sender);
-            recipient.sendMessage(typingMsg);
+            recipient.sendMessage(ControlFrames.typingStart(sender));
         }
         
         // Start typing timeout (stop typing after 3 seconds of inactivity)
-        new Thread(() -> {
-            try {
-                Thread.sleep(3000);
-                Long lastTime = lastTypingTime.get(sender);
-                if (lastTime != null && System.currentTimeMillis() - lastTime >= 3000) {
-                    // Auto-stop typing after timeout
-                    handleTypingStop(new Message(sender, receiver, "TYPING_STOP", Message.MessageType.TYPING_STOP));
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        timerScheduler.schedule(() -> {
+            Long lastTime = lastTypingTime.get(sender);
+            if (lastTime != null && System.currentTimeMillis() - lastTime >= 3000) {
+                // Auto-stop typing after timeout
+                handleTypingStop(new Message(sender, receiver, "TYPING_STOP", Message.MessageType.TYPING_STOP));
             }
-        }).start();
+        }, 3, TimeUnit.SECONDS);
     }
     
     /**
      * Handle typing stop notification
      */
     private void handleTypingStop(Message message) {
-        String sender = message.getSender();
+        String sender = username;
         String receiver = message.getReceiver();
         
         // Update typing status
@@ -670,12 +1598,9 @@ public class ClientHandler implements Runnable {
         lastTypingTime.remove(sender);
         
         // Forward typing stop notification to the receiver
-        ClientHandler recipient = connectedClients.get(receiver);
+        ChatEndpoint recipient = endpointFor(receiver);
         if (recipient != null) {
-            Message typingStopMsg = new Message("SERVER", receiver,
-                "TYPING_STOP", Message.MessageType.TYPING_STOP);
-            typingStopMsg.setSender(sender);
-            recipient.sendMessage(typingStopMsg);
+            recipient.sendMessage(ControlFrames.typingStop(sender));
         }
     }
     
@@ -683,12 +1608,16 @@ public class ClientHandler implements Runnable {
      * Handle delivery receipt
      */
     private void handleDeliveryReceipt(Message message) {
-        // Extract message ID from content
-        String content = message.getContent();
-        if (content.startsWith("DELIVERED:")) {
-            String messageId = content.substring(10);
-            System.out.println("📬 Delivery receipt: Message " + messageId + " delivered to " + message.getSender());
-        }
+        Log.debug("Delivery receipt: Message {} delivered to {}", message.getReceiptFor(), message.getSender());
+    }
+    
+    /**
+     * Build the receipt telling a message's sender that it was delivered
+     */
+    private static Message newDeliveryReceipt(Message delivered) {
+        Message receipt = new Message("SERVER", delivered.getSender(), null, Message.MessageType.DELIVERY_RECEIPT);
+        receipt.setReceiptFor(delivered.getReceiptId());
+        return receipt;
     }
     
     /**
@@ -697,86 +1626,366 @@ public class ClientHandler implements Runnable {
     private void handleReadReceipt(Message message) {
         String sender = message.getSender();
         String originalSender = message.getReceiver();
-        String messageId = message.getContent().replace("READ:", "");
+        long messageId = message.getReceiptFor();
         
         // Forward read receipt to original sender
-        ClientHandler originalSenderClient = connectedClients.get(originalSender);
+        ChatEndpoint originalSenderClient = endpointFor(originalSender);
         if (originalSenderClient != null) {
-            Message readReceiptMsg = new Message("SERVER", originalSender,
-                "READ:" + messageId, Message.MessageType.READ_RECEIPT);
-            readReceiptMsg.setSender(sender);
+            Message readReceiptMsg = new Message(sender, originalSender, null, Message.MessageType.READ_RECEIPT);
+            readReceiptMsg.setReceiptFor(messageId);
             originalSenderClient.sendMessage(readReceiptMsg);
         }
         
-        System.out.println("👁️  Read receipt: Message " + messageId + " read by " + sender);
+        Log.debug("Read receipt: Message {} read by {}", messageId, sender);
     }
     
     /**
-     * Send message to this client
+     * Send message to this client.
+     * A {@link ControlFrames} frame goes out as its pre-serialized bytes.
      */
+    @Override
     public void sendMessage(Message message) {
+        if (state.get() != State.OPEN) {
+            queueWhileDraining(message);
+            return;
+        }
         try {
-            output.writeObject(message);
-            output.flush();
+            MessageTracer.enqueued(message);
+            long start = System.nanoTime();
+            synchronized (writeLock) {
+                output.writeMessage(message);
+                output.flush();
+            }
+            PipelineMetrics.record(PipelineMetrics.Stage.WRITE, message.getType(), start);
+            MessageTracer.written(message);
         } catch (IOException e) {
-            System.err.println("Error sending message to " + username + ": " + e.getMessage());
+            if (state.get() != State.CLOSED) {
+                Log.error("Error sending message to {}: {}", username, e.getMessage());
+            }
             disconnect();
         }
     }
     
     /**
-     * Save file to server directory
+     * Send several messages back to back with a single flush
      */
-    private void saveFile(String fileName, byte[] fileData) {
+    @Override
+    public void sendMessages(List<Message> messages) {
+        if (state.get() != State.OPEN) {
+            messages.forEach(this::queueWhileDraining);
+            return;
+        }
         try {
-            String filePath = "../files/" + System.currentTimeMillis() + "_" + fileName;
-            FileOutputStream fos = new FileOutputStream(filePath);
-            fos.write(fileData);
-            fos.close();
-            System.out.println("File saved: " + filePath);
+            for (Message message : messages) {
+                MessageTracer.enqueued(message);
+            }
+            synchronized (writeLock) {
+                for (Message message : messages) {
+                    long start = System.nanoTime();
+                    output.writeMessage(message);
+                    PipelineMetrics.record(PipelineMetrics.Stage.WRITE, message.getType(), start);
+                }
+                output.flush();
+            }
+            for (Message message : messages) {
+                MessageTracer.written(message);
+            }
         } catch (IOException e) {
-            System.err.println("Error saving file: " + e.getMessage());
+            if (state.get() != State.CLOSED) {
+                Log.error("Error sending messages to {}: {}", username, e.getMessage());
+            }
+            disconnect();
         }
     }
     
     /**
-     * Disconnect client
+     * Queue a message for this client; the write happens on the delivery pool
      */
-    public void disconnect() {
-        isConnected = false;
+    @Override
+    public void enqueue(Message message) {
+        if (state.get() == State.CLOSED) {
+            return;
+        }
+        MessageTracer.enqueued(message);
+        outbound.add(message);
+        scheduleDrain();
+    }
+    
+    /**
+     * A direct send after OPEN: the drain flushes it if it hasn't flushed yet, otherwise it is
+     * dropped at close (the output may already be half-closed)
+     */
+    private void queueWhileDraining(Message message) {
+        if (state.get() == State.DRAINING) {
+            outbound.add(message);
+        }
+    }
+    
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            deliveryPool.execute(this::drainOutbound);
+        }
+    }
+    
+    /**
+     * Write everything queued so far with a single flush
+     */
+    private void drainOutbound() {
+        boolean failed = false;
+        List<Message> traced = null;
+        try {
+            synchronized (writeLock) {
+                Message message;
+                while ((message = outbound.poll()) != null) {
+                    long start = System.nanoTime();
+                    output.writeMessage(message);
+                    PipelineMetrics.record(PipelineMetrics.Stage.WRITE, message.getType(), start);
+                    if (message.getTrace() != null) {
+                        if (traced == null) {
+                            traced = new ArrayList<>(2);
+                        }
+                        traced.add(message);
+                    }
+                }
+                output.flush();
+            }
+            if (traced != null) {
+                traced.forEach(MessageTracer::written);
+            }
+        } catch (IOException e) {
+            if (state.get() != State.CLOSED) {
+                Log.error("Error delivering queued messages to {}: {}", username, e.getMessage());
+            }
+            outbound.clear();
+            failed = true;
+        } finally {
+            drainScheduled.set(false);
+        }
         
-        if (username != null) {
-            // Handle disconnection from current chat partner
-            ChatSessionManager sessionManager = ChatSessionManager.getInstance();
-            String connectedTo = sessionManager.getConnectedUser(username);
-            if (connectedTo != null) {
-                sessionManager.disconnectUser(username);
-                
-                // Notify the other user
-                ClientHandler otherClient = connectedClients.get(connectedTo);
-                if (otherClient != null) {
-                    Message disconnectMsg = new Message("SERVER", connectedTo,
-                        username + " has left the chat.", Message.MessageType.SYSTEM);
-                    otherClient.sendMessage(disconnectMsg);
+        if (failed) {
+            disconnect();
+        } else if (!outbound.isEmpty()) {
+            scheduleDrain(); // Messages queued after our last poll
+        }
+    }
+    
+    /**
+     * Close gracefully: take the connection out of routing, queue the farewell (if any),
+     * flush everything queued and half-close, so the client reads it all before the end of
+     * the stream. The socket closes when the client closes its end, or at the deadline.
+     * A write still blocked at the deadline is cut off by closing the socket under it.
+     * Returns true if everything queued was flushed; false if it wasn't or the connection
+     * was already draining or closed.
+     */
+    public boolean drainAndClose(long deadlineNanos, Message farewell) {
+        if (!state.compareAndSet(State.OPEN, State.DRAINING)) {
+            return false;
+        }
+        leave();
+        if (farewell != null) {
+            outbound.add(farewell);
+        }
+        
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0) {
+            drainsCutOff.increment();
+            disconnect();
+            return false;
+        }
+        drainDeadline = timerScheduler.schedule(() -> {
+            if (state.get() != State.CLOSED) {
+                Log.debug("Drain deadline passed for {}, closing", describe());
+                drainsCutOff.increment();
+                disconnect();
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        
+        try {
+            synchronized (writeLock) {
+                Message message;
+                while ((message = outbound.poll()) != null) {
+                    output.writeMessage(message);
                 }
+                output.flush();
             }
-            
-            connectedClients.remove(username);
-            System.out.println("User " + username + " disconnected");
+            clientSocket.shutdownOutput();
+            drainedConnections.increment();
+            Log.debug("Flushed and half-closed connection for {}", describe());
+            return true;
+        } catch (IOException e) {
+            // Closed under us by the deadline or by the client
+            disconnect();
+            return false;
+        }
+    }
+    
+    /**
+     * Close immediately, without flushing; for connections that failed or went silent
+     */
+    public void disconnect() {
+        State previous = state.getAndSet(State.CLOSED);
+        if (previous == State.CLOSED) {
+            return; // Already torn down, e.g. evicted while the reader was blocked
+        }
+        if (previous == State.OPEN) {
+            leave();
         }
         
+        ScheduledFuture<?> deadline = drainDeadline;
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        openConnections.remove(this);
+        outbound.clear();
         try {
-            if (input != null) input.close();
-            if (output != null) output.close();
+            // Closing the socket closes both streams; closing the output stream first would flush into a dead socket
             if (clientSocket != null) clientSocket.close();
         } catch (IOException e) {
-            System.err.println("Error closing connections: " + e.getMessage());
+            Log.error("Error closing connections: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Take the user out of every pairing, room and directory; runs once, on leaving OPEN
+     */
+    private void leave() {
+        if (username == null) {
+            return;
         }
+        // Handle disconnection from every chat partner; remote partners' nodes do the same on our route removal
+        endPairsOf(username);
+        
+        ChatSessionManager sessionManager = ChatSessionManager.getInstance();
+        for (String roomName : sessionManager.leaveAllRooms(username)) {
+            notifyRoomLeft(roomName);
+        }
+        
+        bindings.clear();
+        lastBinding = null;
+        if (connectedClients.remove(username, this)) {
+            presence.userOffline(username);
+            presence.removeSubscriber(username);
+            if (cluster != null) {
+                cluster.userLeft(username);
+            }
+        }
+        ControlFrames.forget(username);
+        Log.info("User {} disconnected", username);
+    }
+    
+    private String describe() {
+        return username != null ? username : String.valueOf(clientSocket.getRemoteSocketAddress());
     }
     
     // Getters
+    @Override
     public String getUsername() { return username; }
-    public boolean isConnected() { return isConnected; }
+    @Override
+    public SecretKey getSessionKey() { return sessionKey; }
+    @Override
+    public boolean isConnected() { return state.get() == State.OPEN; }
+    public State getState() { return state.get(); }
+    
+    @Override
+    public Compressor getCompressor(Message.MessageType type) {
+        return type == Message.MessageType.FILE ? fileCompressor : textCompressor;
+    }
+    
+    /**
+     * Get the store-and-forward queue for offline recipients
+     */
+    public static OfflineMessageQueue getOfflineQueue() { return offlineQueue; }
+    
+    /**
+     * Get the content-addressed store that keeps relayed files
+     */
+    public static FileStore getFileStore() { return fileStore; }
+    
+    /**
+     * Register gauges for connection, session and queue state; stage latencies register themselves
+     */
+    public static void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("clients.connected", connectedClients::size);
+        metrics.gauge("connections.open", openConnections::size);
+        metrics.gauge("sessions.active", () -> ChatSessionManager.getInstance().getActiveSessionCount());
+        metrics.gauge("sessions.timers", sessionTimers::size);
+        metrics.gauge("presence.online", presence::getOnlineCount);
+        metrics.gauge("queue.offline", offlineQueue::getWaitingCount);
+        metrics.gauge("queue.fileWrites", fileStore::getPendingWrites);
+        metrics.gauge("files.storedBytes", fileStore::getStoredBytes);
+        metrics.gauge("files.blobs", fileStore::getBlobCount);
+        metrics.gauge("queue.delivery", () -> deliveryPool.getQueue().size());
+        metrics.gauge("queue.outbound", () -> {
+            long queued = 0;
+            for (ClientHandler client : connectedClients.values()) {
+                queued += client.outbound.size();
+            }
+            return queued;
+        });
+        metrics.gauge("ratelimit.throttled", rateLimiter::getTotalThrottled);
+        metrics.gauge("ratelimit.rejected", rateLimiter::getTotalRejected);
+        metrics.gauge("ratelimit.overloaded", rateLimiter::getOverloaded);
+        metrics.gauge("keepalive.pings", keepalive::getPingsSent);
+        metrics.gauge("keepalive.evictions", keepalive::getEvictions);
+    }
+    
+    /**
+     * Get the inbound rate limiter, for its admitted/throttled/rejected counts
+     */
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    
+    /**
+     * Drain and close every open connection in parallel against one deadline, each told
+     * the server is going away; any still open when the deadline passes are closed outright.
+     * Call before the delivery and timer pools stop.
+     */
+    public static void drainAll(long timeoutMillis) {
+        List<ClientHandler> draining = new ArrayList<>(openConnections);
+        if (draining.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long cutOffBefore = drainsCutOff.sum();
+        
+        // Flushes block on slow clients, so each connection gets its own task
+        ExecutorService drainers = Executors.newFixedThreadPool(
+            Math.min(draining.size(), MAX_DRAIN_THREADS), FanoutEngine.daemonThreads("drain"));
+        for (ClientHandler client : draining) {
+            String user = client.username;
+            Message farewell = user != null
+                ? new Message("SERVER", user, "Server is shutting down.", Message.MessageType.SYSTEM) : null;
+            drainers.execute(() -> client.drainAndClose(deadline, farewell));
+        }
+        drainers.shutdown();
+        
+        // Half-closed connections finish when their clients close; wait for that up to the deadline
+        while (!openConnections.isEmpty() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        drainers.shutdownNow();
+        for (ClientHandler client : new ArrayList<>(openConnections)) {
+            if (client.state.get() != State.CLOSED) {
+                drainsCutOff.increment();
+            }
+            client.disconnect();
+        }
+        Log.info("Drained {} connections in {} ms ({} cut off at the deadline)", draining.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), drainsCutOff.sum() - cutOffBefore);
+    }
+    
+    /**
+     * Stop the room fan-out, presence, keepalive and delivery pools
+     */
+    public static void shutdownDelivery() {
+        fanoutEngine.shutdown();
+        presence.shutdown();
+        keepalive.shutdown();
+        deliveryPool.shutdown();
+        timerScheduler.shutdownNow();
+    }
     
     /**
      * Get all connected clients
@@ -784,4 +1993,24 @@ public class ClientHandler implements Runnable {
     public static Map<String, ClientHandler> getConnectedClients() {
         return new ConcurrentHashMap<>(connectedClients);
     }
+    
+    /**
+     * A pairing resolved once: the shared session and the partner's endpoint.
+     * It goes stale when the session is closed or the partner's connection drops.
+     */
+    private static final class SessionBinding {
+        final String partner;
+        final ChatSessionManager.ChatSession session;
+        final ChatEndpoint partnerEndpoint;
+        
+        SessionBinding(String partner, ChatSessionManager.ChatSession session, ChatEndpoint partnerEndpoint) {
+            this.partner = partner;
+            this.session = session;
+            this.partnerEndpoint = partnerEndpoint;
+        }
+        
+        boolean isValid() {
+            return !session.isDestroyed() && partnerEndpoint.isConnected();
+        }
+    }
 }
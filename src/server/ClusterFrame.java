@@ -0,0 +1,84 @@
+package server;
+
+import utils.Message;
+import java.io.Serializable;
+
+/**
+ * ClusterFrame is the unit sent over inter-node links: a handshake, a routing table
+ * update, a username claim or its answer, a message relayed to a user on the receiving
+ * node, or a pairing change the receiving node must mirror for one of its users.
+ */
+class ClusterFrame implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    enum Kind {
+        CHALLENGE,      // nonce the connecting node must prove the cluster secret over
+        HELLO,          // nodeId, a nonce for the other side, and an HMAC proof over the other side's nonce
+        CLAIM,          // the sending node wants user for a local join
+        CLAIM_REPLY,    // whether the claim claimId for user is granted
+        ROUTE_ADD,      // user is now on the sending node
+        ROUTE_REMOVE,   // user left the sending node
+        DELIVER,        // message for user, encrypted content under the link key
+        PAIR,           // user and partner (on the receiving node) connected
+        UNPAIR,         // user and partner disconnected
+        DESTROY,        // user destroyed their session with partner
+        CLEAR           // user cleared their session with partner
+    }
+    
+    final Kind kind;
+    final int nodeId;
+    final String user;
+    final String partner;
+    final Message message;
+    // Handshake and claim fields, set only by their factories
+    byte[] nonce;
+    byte[] proof;
+    long claimId;
+    boolean granted;
+    
+    private ClusterFrame(Kind kind, int nodeId, String user, String partner, Message message) {
+        this.kind = kind;
+        this.nodeId = nodeId;
+        this.user = user;
+        this.partner = partner;
+        this.message = message;
+    }
+    
+    static ClusterFrame challenge(byte[] nonce) {
+        ClusterFrame frame = new ClusterFrame(Kind.CHALLENGE, -1, null, null, null);
+        frame.nonce = nonce;
+        return frame;
+    }
+    
+    static ClusterFrame hello(int nodeId, byte[] nonce, byte[] proof) {
+        ClusterFrame frame = new ClusterFrame(Kind.HELLO, nodeId, null, null, null);
+        frame.nonce = nonce;
+        frame.proof = proof;
+        return frame;
+    }
+    
+    static ClusterFrame claim(String user, long claimId) {
+        ClusterFrame frame = new ClusterFrame(Kind.CLAIM, -1, user, null, null);
+        frame.claimId = claimId;
+        return frame;
+    }
+    
+    static ClusterFrame claimReply(String user, long claimId, boolean granted) {
+        ClusterFrame frame = new ClusterFrame(Kind.CLAIM_REPLY, -1, user, null, null);
+        frame.claimId = claimId;
+        frame.granted = granted;
+        return frame;
+    }
+    
+    static ClusterFrame route(Kind kind, String user) {
+        return new ClusterFrame(kind, -1, user, null, null);
+    }
+    
+    static ClusterFrame deliver(String user, Message message) {
+        return new ClusterFrame(Kind.DELIVER, -1, user, null, message);
+    }
+    
+    static ClusterFrame sessionEvent(Kind kind, String user, String partner) {
+        return new ClusterFrame(kind, -1, user, partner, null);
+    }
+}
@@ -0,0 +1,655 @@
+package server;
+
+import utils.Log;
+import utils.Message;
+import utils.MessageIdGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClusterNode links this server to the other nodes of a cluster, so users connected to
+ * different nodes (e.g. behind a TCP load balancer) can chat. Each node keeps a routing table
+ * of which node every remote user is on, kept current by the route updates nodes send as their
+ * users join and leave, and relays frames for remote users over one persistent link per peer.
+ * Encrypted content crosses links under a key derived from the shared cluster secret.
+ *
+ * A link is only trusted once each side has answered the other's random challenge with an
+ * HMAC under a second key derived from the secret, so a recorded handshake cannot be replayed.
+ * Every link stream is filtered to the classes links carry, and to handshake frames alone
+ * until the peer has proven the secret, so an unauthenticated host cannot make a node
+ * deserialize anything else.
+ * A username is claimed from every linked node before a local user may take it. A node
+ * refuses the claim if the name is in use there or it has granted the name to another node.
+ * If two nodes claim the same name at once, the lower node ID wins. A linked node that does
+ * not answer within the timeout fails the claim, since it may be granting the name elsewhere;
+ * only nodes whose link is down are left out.
+ *
+ * Enable with -Dsecurechat.cluster.port=PORT, -Dsecurechat.cluster.peers=host:port,... (every
+ * other node) and -Dsecurechat.cluster.secret=SECRET, and give each node a distinct -Dsecurechat.nodeId.
+ */
+public class ClusterNode {
+    private static final long RECONNECT_DELAY_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final int NONCE_BYTES = 32;
+    
+    // Roles bound into handshake proofs, so one side's proof is never valid for the other
+    private static final String CONNECT_ROLE = "LINK";
+    private static final String ACCEPT_ROLE = "ACCEPT";
+    
+    private final int nodeId;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final SecretKey linkKey;
+    private final SecretKey proofKey;
+    private final SecureRandom random = new SecureRandom();
+    
+    // Username claims: ours awaiting answers by claim ID, names we hold until announced,
+    // and names granted to other nodes until they announce them or the grant expires
+    private final AtomicLong claimIds = new AtomicLong();
+    private final Map<Long, Claim> pendingClaims = new ConcurrentHashMap<>();
+    private final Set<String> claiming = new HashSet<>();
+    private final Map<String, Grant> granted = new ConcurrentHashMap<>();
+    private final Object claimLock = new Object();
+    
+    // Routing table: remote user -> where they are
+    private final Map<String, RemoteUser> routes = new ConcurrentHashMap<>();
+    
+    // Outbound links by peer node ID, once their handshake is done
+    private final Map<Integer, PeerLink> links = new ConcurrentHashMap<>();
+    
+    // Inbound connections by peer node ID, to tell a reconnect from a departure
+    private final Map<Integer, Socket> inbound = new ConcurrentHashMap<>();
+    
+    private final ExecutorService linkThreads = Executors.newCachedThreadPool(FanoutEngine.daemonThreads("cluster-link"));
+    private final List<PeerLink> outbound = new ArrayList<>();
+    private ServerSocket listener;
+    private volatile boolean running;
+    
+    public ClusterNode(int port, List<InetSocketAddress> peers, String secret) {
+        this.nodeId = (int) MessageIdGenerator.getNodeId();
+        this.port = port;
+        this.peers = peers;
+        this.linkKey = deriveKey("", secret, "AES");
+        this.proofKey = deriveKey("securechat-cluster-proof:", secret, "HmacSHA256");
+    }
+    
+    /**
+     * Build a node from -Dsecurechat.cluster.* properties, or return null if clustering is off
+     */
+    public static ClusterNode fromSystemProperties() {
+        Integer port = Integer.getInteger("securechat.cluster.port");
+        if (port == null) {
+            return null;
+        }
+        String secret = System.getProperty("securechat.cluster.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("securechat.cluster.secret must be set when securechat.cluster.port is");
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : System.getProperty("securechat.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+        }
+        return new ClusterNode(port, peers, secret);
+    }
+    
+    /**
+     * Listen for peer nodes and start linking to every configured peer
+     */
+    public void start() throws IOException {
+        listener = new ServerSocket(port);
+        running = true;
+        linkThreads.execute(this::acceptLinks);
+        for (InetSocketAddress peer : peers) {
+            PeerLink link = new PeerLink(peer);
+            outbound.add(link);
+            linkThreads.execute(link);
+        }
+        Log.info("Cluster node {} listening on port {} with {} peer(s)", nodeId, port, peers.size());
+    }
+    
+    public void shutdown() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing cluster listener: {}", e.getMessage());
+        }
+        for (PeerLink link : outbound) {
+            link.close();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+        linkThreads.shutdownNow();
+    }
+    
+    /**
+     * Get the endpoint for a user on another node, or null if no node has them
+     */
+    public ChatEndpoint lookup(String username) {
+        return routes.get(username);
+    }
+    
+    /**
+     * Claim a username from every linked node before a local user takes it. On success the
+     * name stays claimed until {@link #userJoined} announces the user or {@link #releaseClaim}
+     * gives it up; returns false if any node refused.
+     */
+    public boolean claimUsername(String username) throws InterruptedException {
+        synchronized (claimLock) {
+            if (routes.containsKey(username) || grantedElsewhere(username, nodeId) || !claiming.add(username)) {
+                return false;
+            }
+        }
+        
+        long id = claimIds.incrementAndGet();
+        List<Integer> nodes = new ArrayList<>(links.keySet());
+        Claim claim = new Claim(nodes.size());
+        pendingClaims.put(id, claim);
+        try {
+            for (int node : nodes) {
+                if (!relay(node, ClusterFrame.claim(username, id))) {
+                    // The link is down, so the node cannot hold a route for the name through us
+                    Log.warn("Cluster node {} is unreachable; claiming {} without it", node, username);
+                    claim.answer(true);
+                }
+            }
+            if (!claim.answers.await(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                // A slow or partitioned node may be granting the name elsewhere, so don't take it
+                Log.warn("Not every cluster node answered the claim for {} in time; refusing it", username);
+                claim.refused = true;
+            }
+        } finally {
+            pendingClaims.remove(id);
+        }
+        
+        if (claim.refused) {
+            releaseClaim(username);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Give up a claimed username whose local join did not go ahead
+     */
+    public void releaseClaim(String username) {
+        synchronized (claimLock) {
+            claiming.remove(username);
+        }
+    }
+    
+    /**
+     * Announce a user who joined this node, ending its claim
+     */
+    public void userJoined(String username) {
+        broadcast(ClusterFrame.route(ClusterFrame.Kind.ROUTE_ADD, username));
+        releaseClaim(username);
+    }
+    
+    /**
+     * Announce a user who left this node
+     */
+    public void userLeft(String username) {
+        broadcast(ClusterFrame.route(ClusterFrame.Kind.ROUTE_REMOVE, username));
+    }
+    
+    /**
+     * Tell the node a remote partner is on about a pairing change it must mirror
+     */
+    public void mirror(ClusterFrame.Kind kind, String user, String partner) {
+        RemoteUser remote = routes.get(partner);
+        if (remote != null) {
+            relay(remote.nodeId, ClusterFrame.sessionEvent(kind, user, partner));
+        }
+    }
+    
+    public int getNodeId() { return nodeId; }
+    
+    private void broadcast(ClusterFrame frame) {
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+    
+    private boolean relay(int toNode, ClusterFrame frame) {
+        PeerLink link = links.get(toNode);
+        if (link == null) {
+            Log.warn("No link to cluster node {}, dropping {} for {}", toNode, frame.kind, frame.user);
+            return false;
+        }
+        return link.send(frame);
+    }
+    
+    private void acceptLinks() {
+        while (running && !listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                linkThreads.execute(() -> readLink(socket));
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Error accepting cluster link: {}", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Serve one inbound link: handshake, then apply every frame the peer sends
+     */
+    private void readLink(Socket socket) {
+        int peerId = -1;
+        try {
+            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+            byte[] challenge = newNonce();
+            output.writeObject(ClusterFrame.challenge(challenge));
+            output.flush();
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS); // A peer that never answers is dropped
+            LinkFilter filter = new LinkFilter();
+            ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+            input.setObjectInputFilter(filter);
+            
+            ClusterFrame hello = (ClusterFrame) input.readObject();
+            if (hello.kind != ClusterFrame.Kind.HELLO || hello.nodeId == nodeId
+                    || !verifyProof(hello.proof, CONNECT_ROLE, hello.nodeId, challenge) || hello.nonce == null) {
+                Log.warn("Rejected cluster link from {}: bad handshake", socket.getInetAddress().getHostAddress());
+                return;
+            }
+            socket.setSoTimeout(0);
+            filter.authenticated = true;
+            peerId = hello.nodeId;
+            output.writeObject(ClusterFrame.hello(nodeId, null, proof(ACCEPT_ROLE, nodeId, hello.nonce)));
+            output.flush();
+            
+            Socket previous = inbound.put(peerId, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            Log.info("Cluster node {} linked in", peerId);
+            
+            while (running) {
+                handleFrame(peerId, (ClusterFrame) input.readObject());
+            }
+        } catch (Exception e) {
+            if (running && peerId >= 0) {
+                Log.error("Cluster link from node {} closed: {}", peerId, e.getMessage());
+            }
+        } finally {
+            closeQuietly(socket);
+            if (peerId >= 0 && inbound.remove(peerId, socket)) {
+                dropRoutes(peerId);
+            }
+        }
+    }
+    
+    private void handleFrame(int fromNode, ClusterFrame frame) {
+        switch (frame.kind) {
+            case ROUTE_ADD:
+                granted.remove(frame.user);
+                RemoteUser remote = new RemoteUser(frame.user, fromNode);
+                RemoteUser previous = routes.put(frame.user, remote);
+                if (previous != null) {
+                    previous.present = false;
+                }
+                if (ClientHandler.getConnectedClients().containsKey(frame.user)) {
+                    Log.warn("User {} is connected to both this node and node {}", frame.user, fromNode);
+                }
+                ClientHandler.remoteUserArrived(frame.user, remote);
+                break;
+            case ROUTE_REMOVE:
+                RemoteUser removed = routes.get(frame.user);
+                if (removed != null && removed.nodeId == fromNode && routes.remove(frame.user, removed)) {
+                    removed.present = false;
+                    ClientHandler.remoteUserLeft(frame.user);
+                }
+                break;
+            case CLAIM:
+                relay(fromNode, ClusterFrame.claimReply(frame.user, frame.claimId, grantClaim(frame.user, fromNode)));
+                break;
+            case CLAIM_REPLY:
+                Claim claim = pendingClaims.get(frame.claimId);
+                if (claim != null) {
+                    claim.answer(frame.granted);
+                }
+                break;
+            case DELIVER:
+                ClientHandler.deliverFromCluster(frame.user, frame.message, linkKey);
+                break;
+            case PAIR:
+            case UNPAIR:
+            case DESTROY:
+            case CLEAR:
+                ClientHandler.applyClusterEvent(frame.kind, frame.user, frame.partner);
+                break;
+            default:
+                Log.warn("Unknown cluster frame: {}", frame.kind);
+        }
+    }
+    
+    /**
+     * Forget every user routed to a node whose link went away
+     */
+    private void dropRoutes(int node) {
+        for (RemoteUser remote : new ArrayList<>(routes.values())) {
+            if (remote.nodeId == node && routes.remove(remote.username, remote)) {
+                remote.present = false;
+                ClientHandler.remoteUserLeft(remote.username);
+            }
+        }
+        Log.info("Cluster node {} unlinked; dropped its routes", node);
+    }
+    
+    /**
+     * Answer another node's claim on a username, recording the grant so this node neither
+     * takes the name nor grants it to a third node before the claimant announces the user
+     */
+    private boolean grantClaim(String username, int fromNode) {
+        if (ClientHandler.getConnectedClients().containsKey(username)) {
+            return false;
+        }
+        synchronized (claimLock) {
+            RemoteUser routed = routes.get(username);
+            if (routed != null && routed.nodeId != fromNode) {
+                return false;
+            }
+            if (grantedElsewhere(username, fromNode)) {
+                return false;
+            }
+            if (claiming.contains(username) && nodeId < fromNode) {
+                return false; // Both claiming it: the lower node ID wins
+            }
+            granted.put(username, new Grant(fromNode, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * CLAIM_TIMEOUT_MILLIS)));
+            return true;
+        }
+    }
+    
+    /**
+     * Whether a live grant for the username is held by a node other than node
+     */
+    private boolean grantedElsewhere(String username, int node) {
+        Grant grant = granted.get(username);
+        if (grant == null) {
+            return false;
+        }
+        if (System.nanoTime() - grant.expiresNanos > 0) {
+            granted.remove(username, grant); // The claimant never announced the user
+            return false;
+        }
+        return grant.node != node;
+    }
+    
+    private byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+    
+    /**
+     * HMAC over the role, the proving node's ID and the other side's nonce
+     */
+    private byte[] proof(String role, int node, byte[] nonce) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(proofKey);
+        mac.update(role.getBytes(StandardCharsets.UTF_8));
+        mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(node).array());
+        return mac.doFinal(nonce);
+    }
+    
+    private boolean verifyProof(byte[] proof, String role, int node, byte[] nonce) {
+        try {
+            return proof != null && MessageDigest.isEqual(proof, proof(role, node, nonce));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+    
+    private static SecretKey deriveKey(String purpose, String secret, String algorithm) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest((purpose + secret).getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(digest, algorithm);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot derive cluster link key", e);
+        }
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+    
+    /**
+     * The outbound link to one peer: connects, handshakes, announces this node's users,
+     * then carries frames until it breaks and reconnects
+     */
+    private class PeerLink implements Runnable {
+        private final InetSocketAddress address;
+        private final String label;
+        private final Object writeLock = new Object();
+        private volatile Socket socket;
+        private ObjectOutputStream output;
+        
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.label = address.getHostString() + ":" + address.getPort();
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                int peerId = -1;
+                try {
+                    Socket connected = new Socket();
+                    connected.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                    socket = connected;
+                    ObjectOutputStream out = new ObjectOutputStream(connected.getOutputStream());
+                    out.flush();
+                    connected.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                    LinkFilter filter = new LinkFilter();
+                    ObjectInputStream input = new ObjectInputStream(connected.getInputStream());
+                    input.setObjectInputFilter(filter);
+                    ClusterFrame challenge = (ClusterFrame) input.readObject();
+                    if (challenge.kind != ClusterFrame.Kind.CHALLENGE || challenge.nonce == null) {
+                        throw new IOException("bad handshake from " + label);
+                    }
+                    byte[] nonce = newNonce();
+                    out.writeObject(ClusterFrame.hello(nodeId, nonce, proof(CONNECT_ROLE, nodeId, challenge.nonce)));
+                    out.flush();
+                    ClusterFrame hello = (ClusterFrame) input.readObject();
+                    if (hello.kind != ClusterFrame.Kind.HELLO || hello.nodeId == nodeId
+                            || !verifyProof(hello.proof, ACCEPT_ROLE, hello.nodeId, nonce)) {
+                        throw new IOException("bad handshake from " + label);
+                    }
+                    connected.setSoTimeout(0);
+                    filter.authenticated = true;
+                    peerId = hello.nodeId;
+                    
+                    synchronized (writeLock) {
+                        output = out;
+                        links.put(peerId, this);
+                        // Announce local users under the write lock so no leave can overtake its join
+                        for (String user : ClientHandler.getConnectedClients().keySet()) {
+                            output.writeObject(ClusterFrame.route(ClusterFrame.Kind.ROUTE_ADD, user));
+                        }
+                        output.reset();
+                        output.flush();
+                    }
+                    Log.info("Linked to cluster node {} at {}", peerId, label);
+                    
+                    // The peer never writes after its handshake; a read returns only when the link closes
+                    input.read();
+                } catch (Exception e) {
+                    if (running && peerId >= 0) {
+                        Log.error("Cluster link to node {} lost: {}", peerId, e.getMessage());
+                    }
+                } finally {
+                    if (peerId >= 0) {
+                        links.remove(peerId, this);
+                    }
+                    close();
+                }
+                
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        
+        boolean send(ClusterFrame frame) {
+            synchronized (writeLock) {
+                if (output == null) {
+                    return false;
+                }
+                try {
+                    output.writeObject(frame);
+                    output.reset(); // Frames are one-offs; don't let the handle table grow
+                    output.flush();
+                    return true;
+                } catch (IOException e) {
+                    Log.error("Error relaying to {}: {}", label, e.getMessage());
+                    close();
+                    return false;
+                }
+            }
+        }
+        
+        void close() {
+            synchronized (writeLock) {
+                output = null;
+            }
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+    }
+    
+    /**
+     * Refuses any class a link does not carry before it is instantiated; until the peer has
+     * proven the cluster secret, only handshake frames
+     */
+    private static final class LinkFilter implements ObjectInputFilter {
+        private static final ObjectInputFilter HANDSHAKE = ObjectInputFilter.Config.createFilter(
+            "maxdepth=4;maxrefs=64;server.ClusterFrame;server.ClusterFrame$Kind;java.lang.Enum;!*");
+        private static final ObjectInputFilter LINKED = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;server.ClusterFrame;server.ClusterFrame$Kind;utils.Message;utils.Message$*;"
+                + "utils.MessageTrace;java.time.*;java.lang.Enum;!*");
+        
+        volatile boolean authenticated;
+        
+        @Override
+        public Status checkInput(FilterInfo info) {
+            return (authenticated ? LINKED : HANDSHAKE).checkInput(info);
+        }
+    }
+    
+    /**
+     * One of this node's username claims, waiting on an answer from every linked node
+     */
+    private static class Claim {
+        final CountDownLatch answers;
+        volatile boolean refused;
+        
+        Claim(int nodes) {
+            this.answers = new CountDownLatch(nodes);
+        }
+        
+        void answer(boolean grant) {
+            if (!grant) {
+                refused = true;
+            }
+            answers.countDown();
+        }
+    }
+    
+    /**
+     * A username this node let another node claim
+     */
+    private static class Grant {
+        final int node;
+        final long expiresNanos;
+        
+        Grant(int node, long expiresNanos) {
+            this.node = node;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+    
+    /**
+     * A user on another node. Messages to them are relayed with encrypted content under
+     * the link key; their node re-encrypts it with the user's own session key.
+     */
+    private class RemoteUser implements ChatEndpoint {
+        private final String username;
+        private final int nodeId;
+        private volatile boolean present = true;
+        
+        RemoteUser(String username, int nodeId) {
+            this.username = username;
+            this.nodeId = nodeId;
+        }
+        
+        @Override
+        public String getUsername() { return username; }
+        
+        @Override
+        public SecretKey getSessionKey() { return linkKey; }
+        
+        @Override
+        public void sendMessage(Message message) {
+            relay(nodeId, ClusterFrame.deliver(username, message));
+        }
+        
+        @Override
+        public void sendMessages(List<Message> messages) {
+            for (Message message : messages) {
+                sendMessage(message);
+            }
+        }
+        
+        @Override
+        public void enqueue(Message message) {
+            sendMessage(message);
+        }
+        
+        @Override
+        public boolean isConnected() {
+            return present && links.containsKey(nodeId);
+        }
+    }
+}
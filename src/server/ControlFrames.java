@@ -0,0 +1,183 @@
+package server;
+
+import utils.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ControlFrames holds the fixed-form server replies as shared, pre-built messages, each
+ * serialized once when it is built. {@link FrameOutputStream} copies those bytes out
+ * instead of serializing the message, so the common replies cost neither an allocation
+ * nor a serialization pass. Frames are shared: never modify one.
+ *
+ * A frame sent any other way, such as relayed to a cluster peer, is just a Message.
+ *
+ * Per-user frames are kept for the most recently used {@value #MAX_CACHED_USERS} users and
+ * dropped when a user leaves this node or the cluster. A frame evicted while still queued
+ * is serialized like any other message.
+ */
+public final class ControlFrames {
+    // ObjectOutputStream's magic and version, written once per stream rather than per frame
+    private static final int STREAM_HEADER_BYTES = 4;
+    static final int MAX_CACHED_USERS = 4096;
+    
+    public static final Message HEARTBEAT_ACK = frame("SERVER", "HEARTBEAT_ACK", Message.MessageType.HEARTBEAT);
+    private static final byte[] HEARTBEAT_ACK_BYTES = encode(HEARTBEAT_ACK);
+    
+    // Session frames name the user they concern as sender, so there is one set per user,
+    // least recently used first; guarded by its own lock
+    private static final Map<String, UserFrames> userFrames = new LinkedHashMap<>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UserFrames> eldest) {
+            return size() > MAX_CACHED_USERS;
+        }
+    };
+    
+    private ControlFrames() {
+    }
+    
+    /**
+     * Get the "is typing" frame for a user
+     */
+    public static Message typingStart(String sender) {
+        return framesFor(sender).typingStart;
+    }
+    
+    /**
+     * Get the stopped-typing frame for a user
+     */
+    public static Message typingStop(String sender) {
+        return framesFor(sender).typingStop;
+    }
+    
+    /**
+     * Get the frame telling a client its chat with partner was destroyed
+     */
+    public static Message closeApplication(String partner) {
+        return framesFor(partner).closeApplication;
+    }
+    
+    /**
+     * Get the frame telling a client the destruction timer of its chat with partner expired
+     */
+    public static Message timerExpired(String partner) {
+        return framesFor(partner).timerExpired;
+    }
+    
+    /**
+     * Get the frame telling a client that partner cleared their shared chat
+     */
+    public static Message clearChatArea(String partner) {
+        return framesFor(partner).clearChatArea;
+    }
+    
+    /**
+     * Drop a user's cached frames when they leave
+     */
+    public static void forget(String user) {
+        synchronized (userFrames) {
+            userFrames.remove(user);
+        }
+    }
+    
+    /**
+     * The serialized form of a frame, or null if the message is not one of the current frames
+     */
+    static byte[] encodedFor(Message message) {
+        if (message == HEARTBEAT_ACK) {
+            return HEARTBEAT_ACK_BYTES;
+        }
+        if (message.getReceiver() != null || message.getSender() == null) {
+            return null; // Frames have no receiver
+        }
+        UserFrames frames;
+        synchronized (userFrames) {
+            frames = userFrames.get(message.getSender());
+        }
+        return frames != null ? frames.encodedFor(message) : null;
+    }
+    
+    private static UserFrames framesFor(String user) {
+        synchronized (userFrames) {
+            UserFrames frames = userFrames.get(user);
+            if (frames == null) {
+                frames = new UserFrames(user);
+                userFrames.put(user, frames);
+            }
+            return frames;
+        }
+    }
+    
+    /**
+     * Build a frame with no receiver: clients act on the type, sender and content only
+     */
+    private static Message frame(String sender, String content, Message.MessageType type) {
+        return new Message(sender, null, content, type);
+    }
+    
+    /**
+     * Serialize a frame on its own, as it reads after a stream reset
+     */
+    private static byte[] encode(Message frame) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(frame);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // In-memory, so only if Message stops being serializable
+        }
+        byte[] stream = bytes.toByteArray();
+        return Arrays.copyOfRange(stream, STREAM_HEADER_BYTES, stream.length);
+    }
+    
+    private static class UserFrames {
+        final Message typingStart;
+        final Message typingStop;
+        final Message closeApplication;
+        final Message timerExpired;
+        final Message clearChatArea;
+        private final byte[] typingStartBytes;
+        private final byte[] typingStopBytes;
+        private final byte[] closeApplicationBytes;
+        private final byte[] timerExpiredBytes;
+        private final byte[] clearChatAreaBytes;
+        
+        UserFrames(String user) {
+            this.typingStart = frame(user, user + " is typing...", Message.MessageType.TYPING_START);
+            this.typingStop = frame(user, "TYPING_STOP", Message.MessageType.TYPING_STOP);
+            this.closeApplication = frame(user, "CLOSE_APPLICATION", Message.MessageType.DESTROY_CHAT);
+            this.timerExpired = frame(user, "TIMER_EXPIRED", Message.MessageType.TIMER_EXPIRED);
+            this.clearChatArea = frame(user, "CLEAR_CHAT_AREA", Message.MessageType.CLEAR_LOCAL_CHAT);
+            this.typingStartBytes = encode(typingStart);
+            this.typingStopBytes = encode(typingStop);
+            this.closeApplicationBytes = encode(closeApplication);
+            this.timerExpiredBytes = encode(timerExpired);
+            this.clearChatAreaBytes = encode(clearChatArea);
+        }
+        
+        byte[] encodedFor(Message message) {
+            if (message == typingStart) {
+                return typingStartBytes;
+            }
+            if (message == typingStop) {
+                return typingStopBytes;
+            }
+            if (message == closeApplication) {
+                return closeApplicationBytes;
+            }
+            if (message == timerExpired) {
+                return timerExpiredBytes;
+            }
+            if (message == clearChatArea) {
+                return clearChatAreaBytes;
+            }
+            return null;
+        }
+    }
+}
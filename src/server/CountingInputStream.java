@@ -0,0 +1,62 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * CountingInputStream counts the bytes read through it, so a connection's inbound
+ * volume can be charged against its byte limits. It also notes when a read last had to
+ * wait for data, so time spent idle between messages can be told apart from time spent
+ * reading one. Only the reading thread uses it.
+ */
+class CountingInputStream extends FilterInputStream {
+    private long count;
+    private long arrivalNanos;
+    
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+    
+    @Override
+    public int read() throws IOException {
+        boolean waiting = in.available() == 0;
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+            noteArrival(waiting);
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        boolean waiting = in.available() == 0;
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            count += n;
+            noteArrival(waiting);
+        }
+        return n;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+    
+    /**
+     * When a read that had to wait for data last returned
+     */
+    long getArrivalNanos() { return arrivalNanos; }
+    
+    long getCount() { return count; }
+    
+    private void noteArrival(boolean waited) {
+        if (waited) {
+            arrivalNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package server;
+
+import utils.EncryptionUtil;
+import utils.Log;
+import utils.Message;
+import utils.ServerConfig;
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FanoutEngine delivers one room message to many members.
+ * The caller decrypts and verifies the message once; the engine encrypts it once per
+ * distinct recipient key, splits the members into batches that are encoded in parallel,
+ * and hands each copy to the member's outbound queue.
+ */
+public class FanoutEngine {
+    private final ExecutorService workers;
+    private volatile int batchSize;
+    
+    /**
+     * An engine sized by the fanout.threads and fanout.batchSize settings, following live changes
+     */
+    public FanoutEngine() {
+        this.workers = fixedPool(ServerConfig.FANOUT_THREADS, "fanout-worker");
+        this.batchSize = ServerConfig.FANOUT_BATCH_SIZE.intValue();
+        ServerConfig.FANOUT_BATCH_SIZE.onChange(size -> batchSize = (int) size);
+    }
+    
+    public FanoutEngine(int threads, int batchSize) {
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), daemonThreads("fanout-worker"));
+        this.batchSize = Math.max(1, batchSize);
+    }
+    
+    /**
+     * Encrypt plaintext for every member and queue it.
+     * The template supplies everything but the content; its content is left untouched.
+     * Returns once every copy is queued, so messages from one sender reach each member in order.
+     */
+    public int fanOut(Message template, String plaintext, Collection<? extends RoomMember> members) {
+        int batchSize = this.batchSize;
+        // Members sharing a key share one ciphertext
+        Map<SecretKey, List<RoomMember>> byKey = new IdentityHashMap<>();
+        for (RoomMember member : members) {
+            byKey.computeIfAbsent(member.getSessionKey(), k -> new ArrayList<>(1)).add(member);
+        }
+        
+        List<List<Map.Entry<SecretKey, List<RoomMember>>>> batches = new ArrayList<>();
+        List<Map.Entry<SecretKey, List<RoomMember>>> batch = new ArrayList<>(batchSize);
+        for (Map.Entry<SecretKey, List<RoomMember>> group : byKey.entrySet()) {
+            batch.add(group);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        
+        AtomicInteger delivered = new AtomicInteger();
+        List<CompletableFuture<Void>> pending = new ArrayList<>(batches.size());
+        for (int i = 1; i < batches.size(); i++) {
+            List<Map.Entry<SecretKey, List<RoomMember>>> work = batches.get(i);
+            pending.add(CompletableFuture.runAsync(() -> encodeBatch(template, plaintext, work, delivered), workers));
+        }
+        if (!batches.isEmpty()) {
+            encodeBatch(template, plaintext, batches.get(0), delivered); // The caller takes a share
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        return delivered.get();
+    }
+    
+    /**
+     * Queue the same message, unencrypted, for every member (system notices)
+     */
+    public int broadcast(Message message, Collection<? extends RoomMember> members) {
+        int delivered = 0;
+        for (RoomMember member : members) {
+            member.enqueue(message);
+            delivered++;
+        }
+        return delivered;
+    }
+    
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void encodeBatch(Message template, String plaintext,
+                             List<Map.Entry<SecretKey, List<RoomMember>>> groups, AtomicInteger delivered) {
+        for (Map.Entry<SecretKey, List<RoomMember>> group : groups) {
+            Message copy = template.copy();
+            try {
+                copy.setContent(EncryptionUtil.encrypt(plaintext, group.getKey()));
+            } catch (Exception e) {
+                Log.error("Error encrypting room message for {}: {}", group.getValue().get(0).getUsername(), e.getMessage());
+                continue;
+            }
+            for (RoomMember member : group.getValue()) {
+                member.enqueue(copy);
+                delivered.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Thread factory for pools that must not keep the JVM alive
+     */
+    static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * A fixed-size pool of daemon threads that resizes when its setting changes
+     */
+    static ThreadPoolExecutor fixedPool(ServerConfig.Setting threads, String prefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads.intValue(), threads.intValue(),
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), daemonThreads(prefix));
+        ServerConfig.bindPoolSize(threads, pool);
+        return pool;
+    }
+    
+    /**
+     * A scheduler of daemon threads that resizes when its setting changes
+     */
+    static ScheduledThreadPoolExecutor scheduledPool(ServerConfig.Setting threads, String prefix) {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads.intValue(), daemonThreads(prefix));
+        pool.setRemoveOnCancelPolicy(true);
+        ServerConfig.bindPoolSize(threads, pool);
+        return pool;
+    }
+}
@@ -0,0 +1,241 @@
+package server;
+
+import utils.ChatSessionManager;
+import utils.LatencyHistogram;
+import utils.Log;
+import utils.MetricsRegistry;
+import utils.ServerConfig;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FileStore keeps relayed files on disk named by the SHA-256 of their content, so identical
+ * uploads are stored once. The handler hashes a file so its stored message can name the blob;
+ * writing runs on a dedicated I/O pool, off the handler threads. Each session holds one reference to every blob sent in it; when the session is
+ * destroyed its references are released, and a blob no session references is deleted.
+ *
+ * Blobs already on disk from an earlier run are reused when the same content is sent again,
+ * but are not deleted until a session that references them is destroyed.
+ */
+public class FileStore {
+    private static final String DEFAULT_DIRECTORY = "../files";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long SHUTDOWN_WAIT_SECONDS = 10;
+    
+    private final Path directory;
+    private final ChatSessionManager sessions;
+    private final ThreadPoolExecutor ioPool;
+    
+    // Reference counts and each session's blobs, changed together under the lock
+    private final Object lock = new Object();
+    private final Map<String, Integer> references = new HashMap<>();      // digest -> sessions referencing it
+    private final Map<String, Set<String>> sessionBlobs = new HashMap<>(); // session ID -> digests
+    
+    // Reporting
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong blobCount = new AtomicLong();
+    private final LongAdder written = MetricsRegistry.getInstance().counter("files.written");
+    private final LongAdder deduplicated = MetricsRegistry.getInstance().counter("files.deduplicated");
+    private final LongAdder deleted = MetricsRegistry.getInstance().counter("files.deleted");
+    private final LongAdder failed = MetricsRegistry.getInstance().counter("files.failed");
+    private final LatencyHistogram writeLatency = MetricsRegistry.getInstance().histogram("files.write");
+    
+    public FileStore(ChatSessionManager sessions) {
+        this.directory = ServerConfig.path("files.dir", "FILES_DIRECTORY", DEFAULT_DIRECTORY);
+        this.sessions = sessions;
+        this.ioPool = FanoutEngine.fixedPool(ServerConfig.FILE_IO_THREADS, "file-io");
+        scanDirectory();
+        sessions.onSessionDestroyed(this::release);
+    }
+    
+    /**
+     * Store a file sent in a session under its {@link #digest}. Returns at once; the blob is
+     * written on the I/O pool. The data must not be modified afterwards.
+     */
+    public void store(String sessionId, String fileName, String digest, byte[] data) {
+        long queuedNanos = System.nanoTime();
+        ioPool.execute(() -> write(sessionId, fileName, digest, data, queuedNanos));
+    }
+    
+    /**
+     * Release every blob a session referenced, deleting those no other session holds.
+     * Runs on the I/O pool, after writes for the session that were already queued.
+     */
+    public void release(String sessionId) {
+        if (!ioPool.isShutdown()) {
+            ioPool.execute(() -> releaseNow(sessionId));
+        }
+    }
+    
+    private void write(String sessionId, String fileName, String digest, byte[] data, long queuedNanos) {
+        Path blob = directory.resolve(digest);
+        
+        synchronized (lock) {
+            if (!sessions.isSessionActive(sessionId)) {
+                return; // Destroyed while queued; nothing would release the reference
+            }
+            if (references.containsKey(digest) || Files.exists(blob)) {
+                reference(sessionId, digest);
+                deduplicated.increment();
+                Log.debug("File {} stored as existing blob {}", fileName, digest);
+                return;
+            }
+        }
+        
+        // Write to a temporary file and rename it, so a blob is never seen half-written
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, digest, TEMP_SUFFIX);
+            Files.write(temp, data);
+            synchronized (lock) {
+                if (!sessions.isSessionActive(sessionId)) {
+                    Files.delete(temp);
+                    return;
+                }
+                boolean stored = !references.containsKey(digest) && !Files.exists(blob);
+                if (stored) {
+                    Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    storedBytes.addAndGet(data.length);
+                    blobCount.incrementAndGet();
+                    written.increment();
+                } else {
+                    Files.delete(temp); // The same content finished writing first
+                    deduplicated.increment();
+                }
+                reference(sessionId, digest);
+            }
+            writeLatency.record(System.nanoTime() - queuedNanos);
+            Log.debug("File {} stored as blob {}", fileName, digest);
+        } catch (IOException e) {
+            failed.increment();
+            Log.error("Error storing file {}: {}", fileName, e.getMessage());
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Swept at the next start
+                }
+            }
+        }
+    }
+    
+    /**
+     * Add the session's reference to a blob, once per session. Call holding the lock.
+     */
+    private void reference(String sessionId, String digest) {
+        references.putIfAbsent(digest, 0);
+        if (sessionBlobs.computeIfAbsent(sessionId, id -> new HashSet<>()).add(digest)) {
+            references.merge(digest, 1, Integer::sum);
+        }
+    }
+    
+    private void releaseNow(String sessionId) {
+        synchronized (lock) {
+            if (sessions.isSessionActive(sessionId)) {
+                return; // The same users opened the session again; its references carry over
+            }
+            Set<String> digests = sessionBlobs.remove(sessionId);
+            if (digests == null) {
+                return;
+            }
+            for (String digest : digests) {
+                int remaining = references.merge(digest, -1, Integer::sum);
+                if (remaining > 0) {
+                    continue;
+                }
+                references.remove(digest);
+                Path blob = directory.resolve(digest);
+                try {
+                    long size = Files.size(blob);
+                    Files.delete(blob);
+                    storedBytes.addAndGet(-size);
+                    blobCount.decrementAndGet();
+                    deleted.increment();
+                } catch (IOException e) {
+                    failed.increment();
+                    Log.error("Error deleting blob {}: {}", digest, e.getMessage());
+                }
+            }
+            Log.debug("Released {} blobs of session {}", digests.size(), sessionId);
+        }
+    }
+    
+    /**
+     * Count what an earlier run left on disk and remove its unfinished temporary files
+     */
+    private void scanDirectory() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (entry.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(entry);
+                } else if (Files.isRegularFile(entry)) {
+                    storedBytes.addAndGet(Files.size(entry));
+                    blobCount.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Error scanning file store {}: {}", directory, e.getMessage());
+        }
+    }
+    
+    /**
+     * The SHA-256 of a file's content in hex, which names its blob
+     */
+    public static String digest(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * Bytes and blobs in the store directory, including those left by earlier runs
+     */
+    public long getStoredBytes() { return storedBytes.get(); }
+    public long getBlobCount() { return blobCount.get(); }
+    public int getPendingWrites() { return ioPool.getQueue().size() + ioPool.getActiveCount(); }
+    
+    /**
+     * One-line summary of disk usage, deduplication and write latency
+     */
+    public String getStats() {
+        return String.format("storedBytes=%d blobs=%d written=%d deduplicated=%d deleted=%d failed=%d write: %s",
+            getStoredBytes(), getBlobCount(), written.sum(), deduplicated.sum(), deleted.sum(), failed.sum(),
+            writeLatency.getSummary());
+    }
+    
+    /**
+     * Finish queued writes (waiting a bounded time) and stop the I/O pool
+     */
+    public void shutdown() {
+        ioPool.shutdown();
+        try {
+            if (!ioPool.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                Log.warn("File store stopped with {} writes pending", ioPool.getQueue().size());
+                ioPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import utils.Message;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * FrameOutputStream is the ObjectOutputStream a connection writes messages through.
+ * {@link ControlFrames} frames are copied out as bytes serialized once at startup instead of
+ * being serialized again. Other messages are serialized normally, and the stream is reset
+ * every so often so its handle table does not keep every message ever sent reachable.
+ * It is reset at once after anything large, such as file data.
+ *
+ * Callers hold the connection's write lock.
+ */
+class FrameOutputStream extends ObjectOutputStream {
+    // Messages between resets; each reset costs the Message class descriptor on the next write
+    private static final int RESET_INTERVAL = 64;
+    // Content longer than this is not kept reachable until the next periodic reset
+    private static final int LARGE_CONTENT_CHARS = 4096;
+    
+    private final OutputStream out;
+    private int sinceReset;
+    private boolean clean = true; // Handle tables on both ends are empty
+    
+    FrameOutputStream(OutputStream out) throws IOException {
+        super(out);
+        this.out = out;
+    }
+    
+    /**
+     * Write a message, as its pre-encoded bytes if it is a control frame
+     */
+    void writeMessage(Message message) throws IOException {
+        byte[] frame = ControlFrames.encodedFor(message);
+        if (frame != null) {
+            // A frame is encoded against empty handle tables, and fills the client's table with
+            // handles this end never assigned, so reset around it
+            if (!clean) {
+                reset();
+            }
+            drain();
+            out.write(frame);
+            reset();
+            return;
+        }
+        
+        writeObject(message);
+        clean = false;
+        if (++sinceReset >= RESET_INTERVAL || message.getFileData() != null
+                || (message.getContent() != null && message.getContent().length() > LARGE_CONTENT_CHARS)) {
+            reset();
+        }
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        sinceReset = 0;
+        clean = true;
+    }
+}
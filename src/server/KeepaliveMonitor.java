@@ -0,0 +1,76 @@
+package server;
+
+import utils.Log;
+import utils.ServerConfig;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KeepaliveMonitor finds connections that have gone silent. A connection that has sent
+ * nothing for the keepalive interval (HEARTBEAT_INTERVAL) is pinged, and pinged again after every
+ * further silent interval; once it has missed keepalive.maxMisses pings it is
+ * evicted. Anything the client sends counts as a sign of life, so connections with real
+ * traffic are never pinged.
+ */
+public class KeepaliveMonitor {
+    private static final long MIN_SWEEP_MILLIS = 250;
+    
+    private final Collection<ClientHandler> connections;
+    private final long intervalNanos;
+    private final ScheduledExecutorService sweeper;
+    
+    // Reporting
+    private final AtomicLong pingsSent = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * Watch a live view of the connected clients
+     */
+    public KeepaliveMonitor(Collection<ClientHandler> connections) {
+        this.connections = connections;
+        long intervalMillis = ServerConfig.KEEPALIVE_INTERVAL_MILLIS.longValue();
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        
+        // Sweep a few times per interval so a silent connection is noticed soon after it goes idle
+        long sweepMillis = Math.max(MIN_SWEEP_MILLIS, intervalMillis / 4);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(FanoutEngine.daemonThreads("keepalive"));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+    
+    public long getPingsSent() { return pingsSent.get(); }
+    public long getEvictions() { return evictions.get(); }
+    
+    public String getStats() {
+        return String.format("pingsSent=%d evictions=%d", pingsSent.get(), evictions.get());
+    }
+    
+    private void sweep() {
+        long now = System.nanoTime();
+        int maxMisses = ServerConfig.KEEPALIVE_MAX_MISSES.intValue();
+        for (ClientHandler connection : connections) {
+            try {
+                int missed = connection.getMissedPings();
+                if (connection.getIdleNanos(now) < intervalNanos * (missed + 1)) {
+                    continue;
+                }
+                if (missed >= maxMisses) {
+                    evictions.incrementAndGet();
+                    Log.warn("Evicting silent connection: {} (missed {} pings, last RTT {} ms)", connection.getUsername(), missed, connection.getRoundTripMillis());
+                    connection.disconnect();
+                } else {
+                    connection.sendPing(now);
+                    pingsSent.incrementAndGet();
+                }
+            } catch (Exception e) {
+                Log.error("Error checking connection {}: {}", connection.getUsername(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import utils.LatencyHistogram;
+import utils.Message;
+import utils.MessageTrace;
+import utils.MetricsRegistry;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MessageTracer stamps sampled messages as they pass through the server and folds the
+ * stamps into per-hop latency histograms (trace.* in the metrics registry):
+ *
+ *   uplink     client send to server read complete (cross-clock)
+ *   verify     read complete to decrypted and verified
+ *   encrypt    verified to re-encrypted for the recipient (includes routing and storage)
+ *   queue      re-encrypted to handed to the recipient's connection
+ *   write      handed over to written and flushed
+ *   server     read complete to written, the whole server hop
+ *   downlink   server write to client receive (cross-clock)
+ *   endToEnd   client send to client receive (cross-clock)
+ *
+ * Messages a client traced are always followed; otherwise the server samples TEXT and
+ * FILE messages at securechat.trace.sampleRate. Untraced messages cost one null check per stage.
+ */
+final class MessageTracer {
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("securechat.trace.sampleRate", "0.01"));
+    
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private static final LatencyHistogram uplink = metrics.histogram("trace.uplink");
+    private static final LatencyHistogram verify = metrics.histogram("trace.verify");
+    private static final LatencyHistogram encrypt = metrics.histogram("trace.encrypt");
+    private static final LatencyHistogram queue = metrics.histogram("trace.queue");
+    private static final LatencyHistogram write = metrics.histogram("trace.write");
+    private static final LatencyHistogram server = metrics.histogram("trace.server");
+    private static final LatencyHistogram downlink = metrics.histogram("trace.downlink");
+    private static final LatencyHistogram endToEnd = metrics.histogram("trace.endToEnd");
+    private static final LongAdder traced = metrics.counter("trace.messages");
+    private static final LongAdder reported = metrics.counter("trace.reports");
+    
+    private MessageTracer() {
+    }
+    
+    /**
+     * Take the trace off an incoming message, starting one if this message is sampled.
+     * The trace is detached so the stored copy doesn't carry it; attach it to the forwarded copy.
+     */
+    static MessageTrace begin(Message message, long readNanos) {
+        MessageTrace trace = message.getTrace();
+        if (trace == null) {
+            if (!MessageTrace.sample(SAMPLE_RATE)) {
+                return null;
+            }
+            trace = new MessageTrace(ThreadLocalRandom.current().nextLong());
+        }
+        message.setTrace(null);
+        traced.increment();
+        
+        trace.setReadNanos(readNanos);
+        trace.setServerReadMicros(MessageTrace.wallMicros() - (System.nanoTime() - readNanos) / 1000);
+        recordMicros(uplink, trace.getClientSendMicros(), trace.getServerReadMicros());
+        return trace;
+    }
+    
+    static void verified(MessageTrace trace) {
+        if (trace != null) {
+            trace.setVerifiedNanos(System.nanoTime());
+        }
+    }
+    
+    static void encrypted(MessageTrace trace) {
+        if (trace != null) {
+            trace.setEncryptedNanos(System.nanoTime());
+        }
+    }
+    
+    /**
+     * Stamp a traced message as it is handed to the recipient's connection
+     */
+    static void enqueued(Message message) {
+        MessageTrace trace = message.getTrace();
+        if (trace != null && trace.getEnqueuedNanos() == 0) {
+            trace.setEnqueuedNanos(System.nanoTime());
+            trace.setServerSendMicros(MessageTrace.wallMicros());
+        }
+    }
+    
+    /**
+     * Record the server hops once a traced message has been written and flushed
+     */
+    static void written(Message message) {
+        MessageTrace trace = message.getTrace();
+        if (trace == null || trace.getReadNanos() == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        record(verify, trace.getReadNanos(), trace.getVerifiedNanos());
+        record(encrypt, trace.getVerifiedNanos(), trace.getEncryptedNanos());
+        record(queue, trace.getEncryptedNanos(), trace.getEnqueuedNanos());
+        record(write, trace.getEnqueuedNanos(), now);
+        record(server, trace.getReadNanos(), now);
+    }
+    
+    /**
+     * Record the client-side hops from a recipient's TRACE_REPORT
+     */
+    static void reported(Message report) {
+        MessageTrace trace = report.getTrace();
+        if (trace == null) {
+            return;
+        }
+        reported.increment();
+        recordMicros(downlink, trace.getServerSendMicros(), trace.getClientReceiveMicros());
+        recordMicros(endToEnd, trace.getClientSendMicros(), trace.getClientReceiveMicros());
+    }
+    
+    private static void record(LatencyHistogram histogram, long fromNanos, long toNanos) {
+        if (fromNanos != 0 && toNanos != 0) {
+            histogram.record(toNanos - fromNanos);
+        }
+    }
+    
+    /**
+     * Record a hop between wall-clock stamps; skipped if either is missing or clock skew makes it negative
+     */
+    private static void recordMicros(LatencyHistogram histogram, long fromMicros, long toMicros) {
+        if (fromMicros != 0 && toMicros != 0 && toMicros >= fromMicros) {
+            histogram.record((toMicros - fromMicros) * 1000);
+        }
+    }
+}
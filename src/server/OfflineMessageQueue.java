@@ -0,0 +1,474 @@
+package server;
+
+import utils.EncryptionUtil;
+import utils.Log;
+import utils.Message;
+import utils.SecureStorage;
+import utils.ServerConfig;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OfflineMessageQueue stores messages for offline recipients and forwards them when they join.
+ * Each recipient's messages are kept in memory up to a count and a byte budget, and spill to
+ * an encrypted file beyond them; memory and disk also have byte budgets across all recipients,
+ * so no number of recipients can exhaust either. Limits are the offline.* settings in
+ * ServerConfig, read on every use so changes made at runtime apply to queues already waiting.
+ *
+ * The queue lives only as long as the server process. Spill files extend its memory, not its
+ * lifetime: they are deleted on shutdown, and any left by a crash are deleted on startup.
+ */
+public class OfflineMessageQueue {
+    private static final String DEFAULT_DIRECTORY = "../offline";
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+    private static final String SPILL_SUFFIX = ".queue";
+    // Charged per message on top of its content and file data
+    private static final long MESSAGE_OVERHEAD_BYTES = 256;
+    
+    private final Path spillDirectory;
+    private final Map<String, RecipientQueue> queues;
+    private final ScheduledExecutorService sweeper;
+    private SecretKey spillKey; // created on first spill
+    
+    // Byte budgets across all recipients
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    
+    // Reporting
+    private final AtomicLong totalQueued = new AtomicLong();
+    private final AtomicLong totalRejected = new AtomicLong();
+    private final AtomicLong totalExpired = new AtomicLong();
+    private final AtomicLong totalDrained = new AtomicLong();
+    private final AtomicLong drainCount = new AtomicLong();
+    private final AtomicLong drainNanosTotal = new AtomicLong();
+    private volatile long lastDrainNanos;
+    
+    public OfflineMessageQueue() {
+        this.spillDirectory = ServerConfig.path("offline.dir", "OFFLINE_DIRECTORY", DEFAULT_DIRECTORY);
+        this.queues = new ConcurrentHashMap<>();
+        deleteStaleSpills();
+        
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "offline-queue-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweepExpired,
+            SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Queue a message (with plaintext content/file data) for an offline recipient.
+     * Returns false if the recipient's queue or the disk budget is full.
+     */
+    public boolean enqueue(String recipient, Message message) {
+        while (true) {
+            RecipientQueue queue = queues.computeIfAbsent(recipient, RecipientQueue::new);
+            synchronized (queue) {
+                if (queue.drained) {
+                    continue; // Lost a race with drain(), start a fresh queue
+                }
+                
+                long now = System.currentTimeMillis();
+                totalExpired.addAndGet(purgeExpiredMemory(queue, now - expiryMillis()));
+                
+                if (queue.size() >= ServerConfig.OFFLINE_MAX_MESSAGES.intValue()) {
+                    totalRejected.incrementAndGet();
+                    return false;
+                }
+                
+                // Once anything has spilled, later messages must follow it to keep order
+                long bytes = sizeOf(message);
+                if (queue.spilledCount == 0 && fitsInMemory(queue, bytes)) {
+                    queue.memory.addLast(new QueuedMessage(message, now, bytes));
+                    queue.memoryBytes += bytes;
+                } else if (!spill(queue, message, now)) {
+                    totalRejected.incrementAndGet();
+                    return false;
+                }
+                
+                totalQueued.incrementAndGet();
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Remove and return everything queued for a recipient, oldest first, skipping expired messages
+     */
+    public List<Message> drain(String recipient) {
+        RecipientQueue queue = queues.remove(recipient);
+        if (queue == null) {
+            return new ArrayList<>();
+        }
+        
+        synchronized (queue) {
+            queue.drained = true;
+            long cutoff = System.currentTimeMillis() - expiryMillis();
+            List<Message> messages = new ArrayList<>(queue.size());
+            
+            for (QueuedMessage queued : queue.memory) {
+                if (queued.enqueuedAt >= cutoff) {
+                    messages.add(queued.message);
+                } else {
+                    totalExpired.incrementAndGet();
+                }
+            }
+            queue.memory.clear();
+            memoryBytes.addAndGet(-queue.memoryBytes);
+            queue.memoryBytes = 0;
+            
+            if (queue.spillFile != null) {
+                readSpill(queue, cutoff, messages);
+                deleteSpill(queue);
+            }
+            
+            totalDrained.addAndGet(messages.size());
+            return messages;
+        }
+    }
+    
+    /**
+     * Check if anything is waiting for a recipient
+     */
+    public boolean hasMessages(String recipient) {
+        return queues.containsKey(recipient);
+    }
+    
+    /**
+     * Record how long it took to drain and deliver a recipient's queue
+     */
+    public void recordDrain(int messageCount, long elapsedNanos) {
+        drainCount.incrementAndGet();
+        drainNanosTotal.addAndGet(elapsedNanos);
+        lastDrainNanos = elapsedNanos;
+        if (Log.isDebugEnabled()) {
+            Log.debug("Offline queue drained {} messages in {} ms ({})", messageCount,
+                String.format("%.2f", elapsedNanos / 1_000_000.0), getStats());
+        }
+    }
+    
+    /**
+     * Get the number of messages waiting for a recipient
+     */
+    public int getQueuedCount(String recipient) {
+        RecipientQueue queue = queues.get(recipient);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+    
+    /**
+     * Get the number of messages waiting across all recipients
+     */
+    public long getWaitingCount() {
+        long waiting = 0;
+        for (String recipient : queues.keySet()) {
+            waiting += getQueuedCount(recipient);
+        }
+        return waiting;
+    }
+    
+    /**
+     * Get queue sizes for every recipient with waiting messages
+     */
+    public Map<String, Integer> getQueueSizes() {
+        Map<String, Integer> sizes = new HashMap<>();
+        for (String recipient : queues.keySet()) {
+            sizes.put(recipient, getQueuedCount(recipient));
+        }
+        return sizes;
+    }
+    
+    /**
+     * Get the total bytes currently spilled to disk
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+    
+    /**
+     * Get the estimated bytes of messages held in memory
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+    
+    public long getTotalQueued() { return totalQueued.get(); }
+    public long getTotalRejected() { return totalRejected.get(); }
+    public long getTotalExpired() { return totalExpired.get(); }
+    public long getTotalDrained() { return totalDrained.get(); }
+    public double getLastDrainMillis() { return lastDrainNanos / 1_000_000.0; }
+    
+    public double getAverageDrainMillis() {
+        long drains = drainCount.get();
+        return drains == 0 ? 0 : drainNanosTotal.get() / 1_000_000.0 / drains;
+    }
+    
+    /**
+     * One-line summary of queue sizes and drain latency
+     */
+    public String getStats() {
+        long waiting = getWaitingCount();
+        return String.format("recipients=%d waiting=%d memoryBytes=%d spilledBytes=%d queued=%d drained=%d " +
+                "rejected=%d expired=%d lastDrainMs=%.2f avgDrainMs=%.2f",
+            queues.size(), waiting, getMemoryBytes(), getSpilledBytes(), getTotalQueued(), getTotalDrained(),
+            getTotalRejected(), getTotalExpired(), getLastDrainMillis(), getAverageDrainMillis());
+    }
+    
+    /**
+     * Stop the sweeper and delete spill files; messages still queued are lost
+     */
+    public void shutdown() {
+        sweeper.shutdown();
+        for (RecipientQueue queue : queues.values()) {
+            synchronized (queue) {
+                if (!queue.memory.isEmpty() || queue.spilledCount > 0) {
+                    Log.info("Discarding {} offline messages for {} at shutdown", queue.size(), queue.recipient);
+                }
+                deleteSpill(queue);
+            }
+        }
+        queues.clear();
+    }
+    
+    private static long expiryMillis() {
+        return TimeUnit.SECONDS.toMillis(ServerConfig.OFFLINE_EXPIRY_SECONDS.longValue());
+    }
+    
+    /**
+     * Estimated heap held by a queued message: its content, file data and a fixed overhead
+     */
+    private static long sizeOf(Message message) {
+        long bytes = MESSAGE_OVERHEAD_BYTES;
+        if (message.getContent() != null) {
+            bytes += 2L * message.getContent().length();
+        }
+        if (message.getFileData() != null) {
+            bytes += message.getFileData().length;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Whether a message fits the recipient's and the global in-memory budgets, reserving
+     * its bytes from the global budget if it does
+     */
+    private boolean fitsInMemory(RecipientQueue queue, long bytes) {
+        if (queue.memory.size() >= ServerConfig.OFFLINE_MEMORY_MESSAGES.intValue()
+                || queue.memoryBytes + bytes > ServerConfig.OFFLINE_MEMORY_BYTES.longValue()) {
+            return false;
+        }
+        return reserve(memoryBytes, bytes, ServerConfig.OFFLINE_TOTAL_MEMORY_BYTES.longValue());
+    }
+    
+    private static boolean reserve(AtomicLong used, long bytes, long limit) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Append a message to the recipient's spill file, creating the file afresh on the first spill
+     */
+    private boolean spill(RecipientQueue queue, Message message, long now) {
+        boolean reserved = false;
+        int length = 0;
+        try {
+            byte[] record = EncryptionUtil.encryptBytes(serialize(message), getSpillKey());
+            length = record.length;
+            if (queue.spilledBytes + length > ServerConfig.OFFLINE_MAX_SPILL_BYTES.longValue()
+                    || !reserve(spilledBytes, length, ServerConfig.OFFLINE_TOTAL_SPILL_BYTES.longValue())) {
+                return false;
+            }
+            reserved = true;
+            
+            boolean first = queue.spillFile == null;
+            if (first) {
+                Files.createDirectories(spillDirectory);
+                queue.spillFile = spillDirectory.resolve(SecureStorage.hashName(queue.recipient) + SPILL_SUFFIX);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(queue.spillFile.toFile(), !first)))) {
+                out.writeLong(now);
+                out.writeInt(length);
+                out.write(record);
+            }
+            
+            queue.spilledCount++;
+            queue.spilledBytes += length;
+            queue.lastSpillAt = now;
+            return true;
+        } catch (Exception e) {
+            if (reserved) {
+                spilledBytes.addAndGet(-length);
+            }
+            Log.error("Error spilling offline message for {}: {}", queue.recipient, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Read spilled messages back in order
+     */
+    private void readSpill(RecipientQueue queue, long cutoff, List<Message> messages) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(queue.spillFile.toFile())))) {
+            for (int i = 0; i < queue.spilledCount; i++) {
+                long enqueuedAt = in.readLong();
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                if (enqueuedAt < cutoff) {
+                    totalExpired.incrementAndGet();
+                    continue;
+                }
+                messages.add(deserialize(EncryptionUtil.decryptBytes(record, getSpillKey())));
+            }
+        } catch (Exception e) {
+            Log.error("Error reading spilled messages for {}: {}", queue.recipient, e.getMessage());
+        }
+    }
+    
+    private void deleteSpill(RecipientQueue queue) {
+        if (queue.spillFile == null) {
+            return;
+        }
+        try {
+            SecureStorage.secureDelete(queue.spillFile);
+        } catch (IOException e) {
+            Log.error("Error deleting spill file for {}: {}", queue.recipient, e.getMessage());
+        }
+        spilledBytes.addAndGet(-queue.spilledBytes);
+        queue.spillFile = null;
+        queue.spilledCount = 0;
+        queue.spilledBytes = 0;
+    }
+    
+    /**
+     * Delete spill files left by a process that did not shut down cleanly; nothing refers to them
+     */
+    private void deleteStaleSpills() {
+        if (!Files.isDirectory(spillDirectory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(spillDirectory, "*" + SPILL_SUFFIX)) {
+            for (Path file : stale) {
+                SecureStorage.secureDelete(file);
+                Log.info("Deleted stale offline spill file {}", file.getFileName());
+            }
+        } catch (IOException e) {
+            Log.error("Error deleting stale spill files in {}: {}", spillDirectory, e.getMessage());
+        }
+    }
+    
+    /**
+     * Drop a queue's expired in-memory head, returning its bytes to the global budget
+     */
+    private int purgeExpiredMemory(RecipientQueue queue, long cutoff) {
+        int purged = 0;
+        while (!queue.memory.isEmpty() && queue.memory.peekFirst().enqueuedAt < cutoff) {
+            QueuedMessage expired = queue.memory.pollFirst();
+            queue.memoryBytes -= expired.bytes;
+            memoryBytes.addAndGet(-expired.bytes);
+            purged++;
+        }
+        return purged;
+    }
+    
+    /**
+     * Drop expired messages; a recipient whose whole queue expired is removed
+     */
+    private void sweepExpired() {
+        long cutoff = System.currentTimeMillis() - expiryMillis();
+        for (RecipientQueue queue : queues.values()) {
+            synchronized (queue) {
+                if (queue.drained) {
+                    continue;
+                }
+                totalExpired.addAndGet(purgeExpiredMemory(queue, cutoff));
+                if (queue.memory.isEmpty() && queue.spilledCount > 0 && queue.lastSpillAt < cutoff) {
+                    totalExpired.addAndGet(queue.spilledCount);
+                    deleteSpill(queue);
+                }
+                if (queue.size() == 0) {
+                    queue.drained = true;
+                    queues.remove(queue.recipient, queue);
+                }
+            }
+        }
+    }
+    
+    private synchronized SecretKey getSpillKey() throws IOException {
+        if (spillKey == null) {
+            spillKey = SecureStorage.getStorageKey(spillDirectory);
+        }
+        return spillKey;
+    }
+    
+    private static byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static Message deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Message) in.readObject();
+        }
+    }
+    
+    /**
+     * A queued message and when it was queued
+     */
+    private static class QueuedMessage {
+        final Message message;
+        final long enqueuedAt;
+        final long bytes;
+        
+        QueuedMessage(Message message, long enqueuedAt, long bytes) {
+            this.message = message;
+            this.enqueuedAt = enqueuedAt;
+            this.bytes = bytes;
+        }
+    }
+    
+    /**
+     * Per-recipient queue: in-memory head followed by an optional spill file
+     */
+    private static class RecipientQueue {
+        final String recipient;
+        final ArrayDeque<QueuedMessage> memory = new ArrayDeque<>();
+        long memoryBytes;
+        Path spillFile;
+        int spilledCount;
+        long spilledBytes;
+        long lastSpillAt;
+        boolean drained;
+        
+        RecipientQueue(String recipient) {
+            this.recipient = recipient;
+        }
+        
+        int size() {
+            return memory.size() + spilledCount;
+        }
+    }
+}
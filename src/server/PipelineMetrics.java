@@ -0,0 +1,50 @@
+package server;
+
+import utils.LatencyHistogram;
+import utils.Message;
+import utils.MetricsRegistry;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PipelineMetrics times each stage a client message passes through in the server,
+ * broken down by message type. Histograms are registered as pipeline.TYPE.stage the
+ * first time a type reaches a stage; after that recording is allocation-free.
+ */
+final class PipelineMetrics {
+    enum Stage {
+        READ,       // deserializing the message off the socket
+        DECRYPT,    // decrypting with the sender's session key
+        VERIFY,     // checking the digital signature
+        ROUTE,      // finding the recipient and storing the message in its session
+        ENCRYPT,    // re-encrypting for the recipient(s)
+        WRITE       // serializing and flushing to the recipient's socket
+    }
+    
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final Stage[] STAGES = Stage.values();
+    private static final AtomicReferenceArray<LatencyHistogram> histograms =
+        new AtomicReferenceArray<>(TYPES.length * STAGES.length);
+    
+    private PipelineMetrics() {
+    }
+    
+    /**
+     * Record time spent in a stage since startNanos
+     */
+    static void record(Stage stage, Message.MessageType type, long startNanos) {
+        if (type != null) {
+            histogram(stage, type).record(System.nanoTime() - startNanos);
+        }
+    }
+    
+    private static LatencyHistogram histogram(Stage stage, Message.MessageType type) {
+        int slot = type.ordinal() * STAGES.length + stage.ordinal();
+        LatencyHistogram histogram = histograms.get(slot);
+        if (histogram == null) {
+            histogram = MetricsRegistry.getInstance().histogram(
+                "pipeline." + type + "." + stage.name().toLowerCase());
+            histograms.set(slot, histogram); // Racing writers get the same registry entry
+        }
+        return histogram;
+    }
+}
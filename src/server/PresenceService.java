@@ -0,0 +1,248 @@
+package server;
+
+import utils.Log;
+import utils.Message;
+import utils.ServerConfig;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * PresenceService keeps the directory of online users and tells subscribers when
+ * the contacts they watch come and go. Changes are not sent as they happen: each
+ * subscriber collects the latest state of every changed contact, and a flush every
+ * presence.flushMillis sends them in one PRESENCE_UPDATE. A contact that
+ * goes offline and back within one flush is never reported, so a mass reconnect
+ * costs each subscriber at most one message per flush.
+ *
+ * Updates list one contact per line: "+name" came online, "-name" went offline.
+ */
+public class PresenceService {
+    private static final int MAX_QUERY_RESULTS = 100;
+    
+    // Online users in name order, for prefix lookup
+    private final NavigableSet<String> online = new ConcurrentSkipListSet<>();
+    
+    // Watched user -> subscribers watching them
+    private final Map<String, Set<Subscriber>> watchers = new ConcurrentHashMap<>();
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final Queue<Subscriber> dirty = new ConcurrentLinkedQueue<>();
+    
+    private final Function<String, ? extends RoomMember> endpoints;
+    private final ScheduledExecutorService flusher;
+    
+    // Reporting
+    private final AtomicLong changesQueued = new AtomicLong();
+    private final AtomicLong updatesSent = new AtomicLong();
+    
+    /**
+     * Create a presence service; endpoints resolves a subscriber to the connection updates go to
+     */
+    public PresenceService(Function<String, ? extends RoomMember> endpoints) {
+        this.endpoints = endpoints;
+        long flushMillis = ServerConfig.PRESENCE_FLUSH_MILLIS.longValue();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(FanoutEngine.daemonThreads("presence-flush"));
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Record a user coming online (on this node or another)
+     */
+    public void userOnline(String username) {
+        if (online.add(username)) {
+            notifyWatchers(username, true);
+        }
+    }
+    
+    /**
+     * Record a user going offline
+     */
+    public void userOffline(String username) {
+        if (online.remove(username)) {
+            notifyWatchers(username, false);
+        }
+    }
+    
+    public int getOnlineCount() {
+        return online.size();
+    }
+    
+    public boolean isOnline(String username) {
+        return online.contains(username);
+    }
+    
+    /**
+     * Get up to limit online users whose names start with prefix, in name order
+     */
+    public List<String> findOnline(String prefix, int limit) {
+        int max = Math.min(limit > 0 ? limit : MAX_QUERY_RESULTS, MAX_QUERY_RESULTS);
+        Collection<String> matches = prefix == null || prefix.isEmpty()
+            ? online
+            : online.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+        List<String> result = new ArrayList<>(Math.min(max, 16));
+        for (String user : matches) {
+            if (result.size() == max) {
+                break;
+            }
+            result.add(user);
+        }
+        return result;
+    }
+    
+    /**
+     * Start watching contacts. Returns the ones that are online now; later changes arrive as updates.
+     * Returns null if the subscriber would exceed the watch limit.
+     */
+    public List<String> subscribe(String subscriber, Collection<String> contacts) {
+        Subscriber sub = subscribers.computeIfAbsent(subscriber, Subscriber::new);
+        List<String> onlineNow = new ArrayList<>();
+        synchronized (sub) {
+            if (sub.watching.size() + contacts.size() > ServerConfig.PRESENCE_MAX_WATCHED.intValue()) {
+                return null;
+            }
+            for (String contact : contacts) {
+                if (contact.isEmpty() || contact.equals(subscriber)) {
+                    continue;
+                }
+                // Register first, then read: a change in between is queued and coalesced
+                watchers.computeIfAbsent(contact, k -> ConcurrentHashMap.newKeySet()).add(sub);
+                boolean isOnline = online.contains(contact);
+                sub.watching.put(contact, isOnline);
+                if (isOnline) {
+                    onlineNow.add(contact);
+                }
+            }
+        }
+        return onlineNow;
+    }
+    
+    /**
+     * Stop watching contacts
+     */
+    public void unsubscribe(String subscriber, Collection<String> contacts) {
+        Subscriber sub = subscribers.get(subscriber);
+        if (sub == null) {
+            return;
+        }
+        synchronized (sub) {
+            for (String contact : contacts) {
+                sub.watching.remove(contact);
+                sub.pending.remove(contact);
+                unwatch(contact, sub);
+            }
+        }
+    }
+    
+    /**
+     * Drop everything a user watches when they leave
+     */
+    public void removeSubscriber(String subscriber) {
+        Subscriber sub = subscribers.remove(subscriber);
+        if (sub == null) {
+            return;
+        }
+        synchronized (sub) {
+            for (String contact : sub.watching.keySet()) {
+                unwatch(contact, sub);
+            }
+            sub.watching.clear();
+            sub.pending.clear();
+        }
+    }
+    
+    public void shutdown() {
+        flusher.shutdownNow();
+    }
+    
+    public String getStats() {
+        return String.format("online=%d subscribers=%d changesQueued=%d updatesSent=%d",
+            online.size(), subscribers.size(), changesQueued.get(), updatesSent.get());
+    }
+    
+    private void unwatch(String contact, Subscriber sub) {
+        watchers.computeIfPresent(contact, (k, subs) -> {
+            subs.remove(sub);
+            return subs.isEmpty() ? null : subs;
+        });
+    }
+    
+    private void notifyWatchers(String username, boolean isOnline) {
+        Set<Subscriber> subs = watchers.get(username);
+        if (subs == null) {
+            return;
+        }
+        for (Subscriber sub : subs) {
+            synchronized (sub) {
+                sub.pending.put(username, isOnline);
+            }
+            changesQueued.incrementAndGet();
+            if (sub.queued.compareAndSet(false, true)) {
+                dirty.add(sub);
+            }
+        }
+    }
+    
+    /**
+     * Send every subscriber with changes one update holding the net change per contact
+     */
+    private void flush() {
+        try {
+            Subscriber sub;
+            while ((sub = dirty.poll()) != null) {
+                sub.queued.set(false);
+                StringBuilder lines = new StringBuilder();
+                synchronized (sub) {
+                    for (Map.Entry<String, Boolean> change : sub.pending.entrySet()) {
+                        Boolean known = sub.watching.get(change.getKey());
+                        if (known == null || known.equals(change.getValue())) {
+                            continue; // Unwatched since, or back where it was
+                        }
+                        sub.watching.put(change.getKey(), change.getValue());
+                        lines.append(change.getValue() ? '+' : '-').append(change.getKey()).append('\n');
+                    }
+                    sub.pending.clear();
+                }
+                if (lines.length() == 0) {
+                    continue;
+                }
+                
+                RoomMember endpoint = endpoints.apply(sub.username);
+                if (endpoint != null) {
+                    lines.setLength(lines.length() - 1);
+                    endpoint.enqueue(new Message("SERVER", sub.username, lines.toString(), Message.MessageType.PRESENCE_UPDATE));
+                    updatesSent.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            Log.error("Error flushing presence updates: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * One user's watch list, with the state last told to them and the changes since
+     */
+    private static class Subscriber {
+        final String username;
+        final Map<String, Boolean> watching = new HashMap<>();
+        final Map<String, Boolean> pending = new HashMap<>();
+        final AtomicBoolean queued = new AtomicBoolean();
+        
+        Subscriber(String username) {
+            this.username = username;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package server;
+
+import utils.Message;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter admits inbound messages against token buckets: per user and message type
+ * (messages/sec and bytes/sec) and one global messages/sec limit for the whole server.
+ * Buckets are kept as GCRA theoretical arrival times, a single long each. A user's buckets
+ * are only touched by that connection's reader thread, so they need no synchronization;
+ * the global bucket is updated with a CAS loop.
+ *
+ * A message slightly over its user's limit is throttled: the reader waits for the tokens,
+ * which pushes back on the client through TCP. One further over than securechat.rate.maxDelayMillis
+ * is rejected, as is anything over the global limit.
+ *
+ * Limits are rate/burst pairs: -Dsecurechat.rate.TYPE=msgsPerSec/burst,
+ * -Dsecurechat.rate.TYPE.bytes=bytesPerSec/burstBytes and -Dsecurechat.rate.global=msgsPerSec/burst.
+ */
+public class RateLimiter {
+    /** Returned by {@link #admit} when the user's limit for the type is exceeded */
+    public static final long REJECTED = -1;
+    /** Returned by {@link #admit} when the server-wide limit is exceeded */
+    public static final long OVERLOADED = -2;
+    
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 250;
+    private static final long[] DEFAULT_MESSAGES = {50, 100};
+    private static final long[] DEFAULT_BYTES = {256 * 1024, 1024 * 1024};
+    private static final long[] DEFAULT_GLOBAL = {20000, 40000};
+    private static final Map<Message.MessageType, long[]> DEFAULT_TYPE_MESSAGES = new EnumMap<>(Message.MessageType.class);
+    private static final Map<Message.MessageType, long[]> DEFAULT_TYPE_BYTES = new EnumMap<>(Message.MessageType.class);
+    
+    static {
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.TEXT, new long[] {20, 40});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.ROOM_TEXT, new long[] {10, 20});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.FILE, new long[] {1, 5});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.CONNECT_REQUEST, new long[] {1, 5});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.ROOM_JOIN, new long[] {2, 10});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.HISTORY_REQUEST, new long[] {5, 20});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.PRESENCE_QUERY, new long[] {5, 20});
+        DEFAULT_TYPE_MESSAGES.put(Message.MessageType.PRESENCE_SUBSCRIBE, new long[] {5, 20});
+        DEFAULT_TYPE_BYTES.put(Message.MessageType.FILE, new long[] {8L * 1024 * 1024, 64L * 1024 * 1024});
+    }
+    
+    // Per-type GCRA parameters, by MessageType ordinal: nanos per unit and burst tolerance
+    private final long[] messageInterval;
+    private final long[] messageTolerance;
+    private final long[] byteInterval;
+    private final long[] byteTolerance;
+    
+    private final AtomicLong globalArrival = new AtomicLong();
+    private final long globalInterval;
+    private final long globalTolerance;
+    private final long maxDelayNanos;
+    
+    // Reporting, by MessageType ordinal
+    private final LongAdder[] admitted;
+    private final LongAdder[] throttled;
+    private final LongAdder[] rejected;
+    private final LongAdder overloaded = new LongAdder();
+    
+    public RateLimiter() {
+        Message.MessageType[] types = Message.MessageType.values();
+        messageInterval = new long[types.length];
+        messageTolerance = new long[types.length];
+        byteInterval = new long[types.length];
+        byteTolerance = new long[types.length];
+        admitted = new LongAdder[types.length];
+        throttled = new LongAdder[types.length];
+        rejected = new LongAdder[types.length];
+        for (Message.MessageType type : types) {
+            int i = type.ordinal();
+            long[] messages = limit("securechat.rate." + type, DEFAULT_TYPE_MESSAGES.getOrDefault(type, DEFAULT_MESSAGES));
+            long[] bytes = limit("securechat.rate." + type + ".bytes", DEFAULT_TYPE_BYTES.getOrDefault(type, DEFAULT_BYTES));
+            messageInterval[i] = interval(messages[0]);
+            messageTolerance[i] = messageInterval[i] * messages[1];
+            byteInterval[i] = interval(bytes[0]);
+            byteTolerance[i] = byteInterval[i] * bytes[1];
+            admitted[i] = new LongAdder();
+            throttled[i] = new LongAdder();
+            rejected[i] = new LongAdder();
+        }
+        
+        long[] global = limit("securechat.rate.global", DEFAULT_GLOBAL);
+        globalInterval = interval(global[0]);
+        globalTolerance = globalInterval * global[1];
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("securechat.rate.maxDelayMillis", DEFAULT_MAX_DELAY_MILLIS));
+    }
+    
+    /**
+     * Create the bucket state for one connection; use it from that connection's reader thread only
+     */
+    public Account newAccount() {
+        return new Account(messageInterval.length);
+    }
+    
+    /**
+     * Charge a message against its sender's buckets and the global bucket.
+     * Returns how many nanos to wait before handling it (0 for none), or {@link #REJECTED}
+     * or {@link #OVERLOADED} if it must be dropped. A dropped message is charged to no bucket.
+     */
+    public long admit(Account account, Message.MessageType type, long bytes, long now) {
+        int i = type.ordinal();
+        
+        // Check every bucket before charging any, so a rejection costs the sender nothing
+        long messageNext = Account.next(account.messageArrival[i], 1, messageInterval[i], now);
+        long byteNext = Account.next(account.byteArrival[i], bytes, byteInterval[i], now);
+        long messageWait = messageNext - now - messageTolerance[i];
+        long byteWait = byteNext - now - byteTolerance[i];
+        if (messageWait > maxDelayNanos || byteWait > maxDelayNanos) {
+            rejected[i].increment();
+            return REJECTED;
+        }
+        if (!admitGlobal(now)) {
+            overloaded.increment();
+            return OVERLOADED;
+        }
+        account.messageArrival[i] = messageNext;
+        account.byteArrival[i] = byteNext;
+        
+        long wait = Math.max(0, Math.max(messageWait, byteWait));
+        (wait > 0 ? throttled : admitted)[i].increment();
+        return wait;
+    }
+    
+    /**
+     * Charge bytes a message turned out to carry beyond what was read off the wire, such as
+     * a compressed payload's inflated size, to the sender's byte bucket for its type.
+     * Returns the nanos to wait (0 for none), or {@link #REJECTED} leaving the bucket untouched.
+     */
+    public long chargeBytes(Account account, Message.MessageType type, long bytes, long now) {
+        int i = type.ordinal();
+        long byteNext = Account.next(account.byteArrival[i], bytes, byteInterval[i], now);
+        long wait = byteNext - now - byteTolerance[i];
+        if (wait > maxDelayNanos) {
+            rejected[i].increment();
+            return REJECTED;
+        }
+        account.byteArrival[i] = byteNext;
+        return Math.max(0, wait);
+    }
+    
+    private boolean admitGlobal(long now) {
+        while (true) {
+            long arrival = globalArrival.get();
+            long next = Math.max(arrival, now) + globalInterval;
+            if (next - now > globalTolerance) {
+                return false;
+            }
+            if (globalArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+    
+    public long getAdmitted(Message.MessageType type) { return admitted[type.ordinal()].sum(); }
+    public long getThrottled(Message.MessageType type) { return throttled[type.ordinal()].sum(); }
+    public long getRejected(Message.MessageType type) { return rejected[type.ordinal()].sum(); }
+    public long getOverloaded() { return overloaded.sum(); }
+    public long getTotalThrottled() { return sum(throttled); }
+    public long getTotalRejected() { return sum(rejected); }
+    
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+    
+    /**
+     * Get admitted/throttled/rejected counts for every type that has any, plus global rejections
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Message.MessageType type : Message.MessageType.values()) {
+            long a = getAdmitted(type);
+            long t = getThrottled(type);
+            long r = getRejected(type);
+            if (a + t + r > 0) {
+                stats.append(type).append("=").append(a).append('/').append(t).append('/').append(r).append(' ');
+            }
+        }
+        return stats.append("overloaded=").append(getOverloaded()).toString();
+    }
+    
+    private static long interval(long perSecond) {
+        return Math.max(1, TimeUnit.SECONDS.toNanos(1) / Math.max(1, perSecond));
+    }
+    
+    private static long[] limit(String property, long[] defaults) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaults;
+        }
+        String[] parts = value.split("/");
+        long rate = Long.parseLong(parts[0].trim());
+        long burst = parts.length > 1 ? Long.parseLong(parts[1].trim()) : rate;
+        return new long[] {rate, Math.max(1, burst)};
+    }
+    
+    /**
+     * One connection's buckets: a GCRA theoretical arrival time per message type
+     */
+    public static final class Account {
+        private final long[] messageArrival;
+        private final long[] byteArrival;
+        
+        private Account(int types) {
+            this.messageArrival = new long[types];
+            this.byteArrival = new long[types];
+        }
+        
+        /**
+         * The theoretical arrival time a bucket would move to if charged cost units now
+         */
+        private static long next(long arrival, long cost, long interval, long now) {
+            return Math.max(arrival, now) + cost * interval;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+import utils.Message;
+import javax.crypto.SecretKey;
+
+/**
+ * RoomMember is a fan-out target: something with a session key and an outbound queue
+ */
+public interface RoomMember {
+    
+    /**
+     * Get the member's username
+     */
+    String getUsername();
+    
+    /**
+     * Get the key messages to this member are encrypted with
+     */
+    SecretKey getSessionKey();
+    
+    /**
+     * Queue a message for delivery without blocking the caller
+     */
+    void enqueue(Message message);
+}
@@ -2,89 +2,199 @@ package utils;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.time.LocalDateTime;
 
 /**
  * ChatSessionManager manages chat sessions, timers, and message history
  */
 public class ChatSessionManager {
-    private static ChatSessionManager instance;
     private final Map<String, ChatSession> activeSessions;
-    private final Map<String, String> userConnections; // user -> connected_to_user
-    private final ScheduledExecutorService scheduler;
+    private final Map<String, Set<String>> userConnections; // user -> users they have a session with
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final SessionLogStore historyStore; // null unless persistence is enabled
+    private final Map<String, ChatRoom> rooms; // room name -> room
+    private final Map<String, Set<String>> userRooms; // user -> names of rooms joined
+    private final List<Consumer<String>> destroyListeners = new CopyOnWriteArrayList<>();
+    
+    // Pairing locks: a pair is changed under the stripes of both users, taken in index order
+    private static final int PAIR_LOCK_STRIPES = 64;
+    private final Object[] pairLocks;
+    
+    private static final String ROOM_SESSION_PREFIX = "#";
     
     private ChatSessionManager() {
         this.activeSessions = new ConcurrentHashMap<>();
         this.userConnections = new ConcurrentHashMap<>();
-        this.scheduler = Executors.newScheduledThreadPool(5);
+        this.rooms = new ConcurrentHashMap<>();
+        this.userRooms = new ConcurrentHashMap<>();
+        this.pairLocks = new Object[PAIR_LOCK_STRIPES];
+        for (int i = 0; i < pairLocks.length; i++) {
+            pairLocks[i] = new Object();
+        }
+        this.scheduler = new ScheduledThreadPoolExecutor(ServerConfig.SCHEDULER_THREADS.intValue());
+        ServerConfig.bindPoolSize(ServerConfig.SCHEDULER_THREADS, scheduler);
+        this.historyStore = openHistoryStore();
     }
     
-    public static synchronized ChatSessionManager getInstance() {
-        if (instance == null) {
-            instance = new ChatSessionManager();
+    /**
+     * Open the persistent history store if it was enabled for this process
+     */
+    private SessionLogStore openHistoryStore() {
+        if (!SessionLogStore.isEnabled()) {
+            return null;
+        }
+        try {
+            return new SessionLogStore(scheduler);
+        } catch (Exception e) {
+            Log.warn("Error opening session history store, persistence disabled: {}", e.getMessage());
+            return null;
         }
-        return instance;
     }
     
     /**
-     * Check if user is currently connected to someone
+     * Lazily created on first use; the class loader guarantees a single, safely published instance
+     */
+    private static class Holder {
+        static final ChatSessionManager INSTANCE = new ChatSessionManager();
+    }
+    
+    public static ChatSessionManager getInstance() {
+        return Holder.INSTANCE;
+    }
+    
+    /**
+     * Check if user is currently connected to anyone
      */
     public boolean isUserConnected(String username) {
         return userConnections.containsKey(username);
     }
     
     /**
-     * Get who the user is connected to
+     * Check if two users have an active session with each other
      */
-    public String getConnectedUser(String username) {
-        return userConnections.get(username);
+    public boolean isConnectedTo(String username, String partner) {
+        Set<String> partners = userConnections.get(username);
+        return partners != null && partners.contains(partner);
     }
     
     /**
-     * Establish connection between two users
+     * Get everyone the user currently has a session with
+     */
+    public Set<String> getPartners(String username) {
+        Set<String> partners = userConnections.get(username);
+        return partners != null ? new HashSet<>(partners) : new HashSet<>();
+    }
+    
+    /**
+     * Establish connection between two users.
+     * Users can hold any number of sessions; this fails only if the pair is already connected.
      */
     public boolean connectUsers(String user1, String user2) {
-        // Check if either user is already connected
-        if (isUserConnected(user1) || isUserConnected(user2)) {
-            return false;
+        Object first = pairLock(user1, user2, true);
+        Object second = pairLock(user1, user2, false);
+        synchronized (first) {
+            synchronized (second) {
+                if (!addPartner(user1, user2)) {
+                    return false;
+                }
+                addPartner(user2, user1);
+                
+                // Create session for these users
+                createSession(user1, user2);
+            }
         }
         
-        userConnections.put(user1, user2);
-        userConnections.put(user2, user1);
-        
-        // Create session for these users
-        createSession(user1, user2);
+        Log.debug("Connected users: {} <-> {}", user1, user2);
+        return true;
+    }
+    
+    /**
+     * End the session between two users (persisted history is kept for a later reconnect)
+     */
+    public boolean disconnectUsers(String user1, String user2) {
+        Object first = pairLock(user1, user2, true);
+        Object second = pairLock(user1, user2, false);
+        synchronized (first) {
+            synchronized (second) {
+                if (!removePartner(user1, user2)) {
+                    return false;
+                }
+                removePartner(user2, user1);
+                retireSession(generateSessionId(user1, user2));
+            }
+        }
         
-        System.out.println("Connected users: " + user1 + " <-> " + user2);
+        Log.debug("Disconnected users: {} <-> {}", user1, user2);
         return true;
     }
     
     /**
-     * Disconnect a user from their current connection
+     * Disconnect a user from all of their sessions. Returns who they were connected to.
      */
-    public boolean disconnectUser(String username) {
-        String connectedTo = userConnections.remove(username);
-        if (connectedTo != null) {
-            userConnections.remove(connectedTo);
-            
-            // Destroy the session
-            String sessionId = generateSessionId(username, connectedTo);
-            destroySession(sessionId);
-            
-            System.out.println("Disconnected users: " + username + " <-> " + connectedTo);
-            return true;
+    public List<String> disconnectUser(String username) {
+        List<String> partners = new ArrayList<>(getPartners(username));
+        for (String partner : partners) {
+            disconnectUsers(username, partner);
         }
-        return false;
+        return partners;
+    }
+    
+    /**
+     * Get all connected users and their partners
+     */
+    public Map<String, Set<String>> getConnectedUsers() {
+        Map<String, Set<String>> snapshot = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : userConnections.entrySet()) {
+            snapshot.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        return snapshot;
     }
     
     /**
-     * Get all connected users
+     * Get the ID of the session between two users
      */
-    public Map<String, String> getConnectedUsers() {
-        return new HashMap<>(userConnections);
+    public String getSessionId(String user1, String user2) {
+        return generateSessionId(user1, user2);
+    }
+    
+    /**
+     * Get the lower (first) or higher (second) of the two users' lock stripes.
+     * Taking them in that order on every path rules out deadlock; a shared stripe is locked twice, which is re-entrant.
+     */
+    private Object pairLock(String user1, String user2, boolean first) {
+        int stripe1 = stripeOf(user1);
+        int stripe2 = stripeOf(user2);
+        return pairLocks[first ? Math.min(stripe1, stripe2) : Math.max(stripe1, stripe2)];
+    }
+    
+    private static int stripeOf(String username) {
+        int hash = username.hashCode();
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % PAIR_LOCK_STRIPES;
+    }
+    
+    private boolean addPartner(String username, String partner) {
+        boolean[] added = new boolean[1];
+        userConnections.compute(username, (user, partners) -> {
+            Set<String> updated = partners != null ? partners : ConcurrentHashMap.newKeySet();
+            added[0] = updated.add(partner);
+            return updated;
+        });
+        return added[0];
+    }
+    
+    private boolean removePartner(String username, String partner) {
+        boolean[] removed = new boolean[1];
+        userConnections.computeIfPresent(username, (user, partners) -> {
+            removed[0] = partners.remove(partner);
+            return partners.isEmpty() ? null : partners; // Drop empty sets so isUserConnected stays O(1)
+        });
+        return removed[0];
     }
 
     /**
@@ -93,8 +203,9 @@ public class ChatSessionManager {
     public String createSession(String user1, String user2) {
         String sessionId = generateSessionId(user1, user2);
         ChatSession session = new ChatSession(sessionId, user1, user2);
+        restoreHistory(session);
         activeSessions.put(sessionId, session);
-        System.out.println("Created chat session: " + sessionId);
+        Log.debug("Created chat session: {}", sessionId);
         return sessionId;
     }
     
@@ -103,8 +214,27 @@ public class ChatSessionManager {
      */
     public ChatSession getOrCreateSession(String user1, String user2) {
         String sessionId = generateSessionId(user1, user2);
-        return activeSessions.computeIfAbsent(sessionId, 
-            k -> new ChatSession(sessionId, user1, user2));
+        return activeSessions.computeIfAbsent(sessionId, k -> {
+            ChatSession session = new ChatSession(sessionId, user1, user2);
+            restoreHistory(session);
+            return session;
+        });
+    }
+    
+    /**
+     * Get the open session between two users, or null if they have none
+     */
+    public ChatSession getSession(String user1, String user2) {
+        return activeSessions.get(generateSessionId(user1, user2));
+    }
+    
+    /**
+     * Load persisted history into a newly created session
+     */
+    private void restoreHistory(ChatSession session) {
+        if (historyStore != null) {
+            session.restoreMessages(historyStore.readReplay(session.getSessionId()));
+        }
     }
     
     /**
@@ -113,10 +243,47 @@ public class ChatSessionManager {
     public void addMessage(String sessionId, Message message) {
         ChatSession session = activeSessions.get(sessionId);
         if (session != null) {
-            session.addMessage(message);
+            addMessage(session, message);
         }
     }
     
+    /**
+     * Add message to a session the caller already holds, skipping the session lookup.
+     * With persistence, memory keeps only the replay tail; older messages are read from the log.
+     */
+    public void addMessage(ChatSession session, Message message) {
+        if (!session.isDestroyed()) {
+            // Under the session's lock so the log holds records in sequence order
+            synchronized (session) {
+                session.addMessage(message);
+                if (historyStore != null) {
+                    historyStore.append(session.getSessionId(), message);
+                    session.retainLatest(historyStore.getReplayCount());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the persisted messages to replay when a session's users reconnect, oldest first.
+     * Empty unless history persistence is enabled.
+     */
+    public List<Message> getReplayMessages(String sessionId) {
+        if (historyStore == null) {
+            return new ArrayList<>();
+        }
+        List<Message> replay = getMessagesBefore(sessionId, Long.MAX_VALUE, historyStore.getReplayCount()).getMessages();
+        Collections.reverse(replay);
+        return replay;
+    }
+    
+    /**
+     * Check if session history survives disconnects and restarts
+     */
+    public boolean isHistoryPersistent() {
+        return historyStore != null;
+    }
+    
     /**
      * Set auto-destroy timer for a session
      */
@@ -130,8 +297,7 @@ public class ChatSessionManager {
                 destroySession(sessionId);
             }, durationInMinutes, TimeUnit.MINUTES);
             
-            System.out.println("Set timer for session " + sessionId + 
-                ": " + durationInMinutes + " minutes");
+            Log.debug("Set timer for session {}: {} minutes", sessionId, durationInMinutes);
         }
     }
     
@@ -142,33 +308,121 @@ public class ChatSessionManager {
         ChatSession session = activeSessions.get(sessionId);
         if (session != null && !session.isDestroyed()) {
             session.clearMessages();
-            System.out.println("Cleared messages in session: " + sessionId);
+            if (historyStore != null) {
+                historyStore.truncate(sessionId);
+            }
+            Log.debug("Cleared messages in session: {}", sessionId);
             return true;
         }
         return false;
     }
 
+    /**
+     * Be told the ID of every session destroyed from now on, after it is no longer active.
+     * Listeners run on the destroying thread and should hand off anything slow.
+     */
+    public void onSessionDestroyed(Consumer<String> listener) {
+        destroyListeners.add(listener);
+    }
+    
     /**
      * Manually destroy a chat session
      */
     public boolean destroySession(String sessionId) {
         ChatSession session = activeSessions.remove(sessionId);
+        if (historyStore != null) {
+            historyStore.delete(sessionId);
+        }
+        for (Consumer<String> listener : destroyListeners) {
+            listener.accept(sessionId);
+        }
         if (session != null) {
             session.destroy();
-            System.out.println("Destroyed chat session: " + sessionId);
+            Log.debug("Destroyed chat session: {}", sessionId);
             return true;
         }
         return false;
     }
     
     /**
-     * Get all messages in a session
+     * End a session when its users disconnect. With persistence enabled the
+     * history stays on disk and is replayed when the same users reconnect.
+     */
+    private void retireSession(String sessionId) {
+        if (historyStore == null) {
+            destroySession(sessionId);
+            return;
+        }
+        ChatSession session = activeSessions.remove(sessionId);
+        historyStore.release(sessionId);
+        if (session != null) {
+            session.destroy();
+            Log.debug("Closed chat session (history kept): {}", sessionId);
+        }
+    }
+    
+    /**
+     * Get the messages a session holds in memory: all of them, or only the latest with persistence
      */
     public List<Message> getSessionMessages(String sessionId) {
         ChatSession session = activeSessions.get(sessionId);
         return session != null ? session.getMessages() : new ArrayList<>();
     }
     
+    /**
+     * Get up to limit messages with a sequence number after afterSeq, oldest first.
+     * Pass 0 to start from the beginning and the page's next cursor to continue.
+     * With persistence, memory holds only the latest messages; older pages come from the log.
+     */
+    public HistoryPage getMessages(String sessionId, long afterSeq, int limit) {
+        ChatSession session = activeSessions.get(sessionId);
+        if (session == null) {
+            return HistoryPage.empty(afterSeq);
+        }
+        if (historyStore == null) {
+            return session.getMessages(afterSeq, limit);
+        }
+        if (afterSeq + 1 >= session.getOldestSequence()) {
+            HistoryPage recent = session.getMessages(afterSeq, limit);
+            if (afterSeq + 1 >= session.getOldestSequence()) {
+                return recent; // Nothing after the cursor was trimmed while it was read
+            }
+        }
+        
+        // The log holds every message, so a page that starts before memory is read from it alone
+        List<Message> page = historyStore.readAfter(sessionId, afterSeq, limit + 1);
+        boolean more = page.size() > limit;
+        if (more) {
+            page.remove(limit);
+        }
+        long cursor = page.isEmpty() ? afterSeq : page.get(page.size() - 1).getSequence();
+        return new HistoryPage(page, cursor, more);
+    }
+    
+    /**
+     * Get up to limit messages with a sequence number before beforeSeq, newest first.
+     * Pass Long.MAX_VALUE to start from the latest message. Once the in-memory range
+     * runs out, older pages come from the persisted log.
+     */
+    public HistoryPage getMessagesBefore(String sessionId, long beforeSeq, int limit) {
+        ChatSession session = activeSessions.get(sessionId);
+        if (session == null) {
+            return HistoryPage.empty(beforeSeq);
+        }
+        HistoryPage recent = session.getMessagesBefore(beforeSeq, limit);
+        int remaining = limit - recent.getMessages().size();
+        if (historyStore == null || recent.hasMore() || remaining <= 0) {
+            return recent;
+        }
+        
+        List<Message> page = new ArrayList<>(recent.getMessages());
+        List<Message> older = historyStore.readBefore(sessionId, recent.getNextCursor(), remaining + 1);
+        boolean hasMore = older.size() > remaining;
+        page.addAll(hasMore ? older.subList(0, remaining) : older);
+        long cursor = page.isEmpty() ? beforeSeq : page.get(page.size() - 1).getSequence();
+        return new HistoryPage(page, cursor, hasMore);
+    }
+    
     /**
      * Check if session exists and is active
      */
@@ -186,6 +440,10 @@ public class ChatSessionManager {
         return users[0] + "_" + users[1];
     }
     
+    public int getActiveSessionCount() {
+        return activeSessions.size();
+    }
+    
     /**
      * Get all active sessions
      */
@@ -193,11 +451,102 @@ public class ChatSessionManager {
         return new HashSet<>(activeSessions.keySet());
     }
     
+    /**
+     * Join a group room, creating it on first join.
+     * Returns the room, or null if it is full.
+     */
+    public ChatRoom joinRoom(String roomName, String username) {
+        while (true) {
+            ChatRoom room = rooms.computeIfAbsent(roomName, this::createRoom);
+            synchronized (room) {
+                if (room.isClosed()) {
+                    continue; // Lost a race with the last member leaving, retry with a fresh room
+                }
+                if (!room.hasMember(username) && room.getMemberCount() >= ServerConfig.ROOM_MAX_MEMBERS.intValue()) {
+                    return null;
+                }
+                room.addMember(username);
+            }
+            userRooms.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(roomName);
+            return room;
+        }
+    }
+    
+    /**
+     * Leave a group room; the room and its session close when the last member leaves
+     */
+    public boolean leaveRoom(String roomName, String username) {
+        ChatRoom room = rooms.get(roomName);
+        if (room == null) {
+            return false;
+        }
+        
+        boolean removed;
+        synchronized (room) {
+            removed = room.removeMember(username);
+            if (removed && room.getMemberCount() == 0) {
+                room.close();
+                rooms.remove(roomName, room);
+                retireSession(room.getSessionId());
+                Log.debug("Closed room: {}", roomName);
+            }
+        }
+        
+        Set<String> joined = userRooms.get(username);
+        if (joined != null) {
+            joined.remove(roomName);
+        }
+        return removed;
+    }
+    
+    /**
+     * Leave every room a user is in. Returns the names of the rooms left.
+     */
+    public List<String> leaveAllRooms(String username) {
+        Set<String> joined = userRooms.remove(username);
+        if (joined == null) {
+            return new ArrayList<>();
+        }
+        List<String> left = new ArrayList<>(joined);
+        for (String roomName : left) {
+            leaveRoom(roomName, username);
+        }
+        return left;
+    }
+    
+    /**
+     * Get a room by name, or null if nobody is in it
+     */
+    public ChatRoom getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+    
+    /**
+     * Get the names of all open rooms
+     */
+    public Set<String> getRoomNames() {
+        return new HashSet<>(rooms.keySet());
+    }
+    
+    private ChatRoom createRoom(String roomName) {
+        String sessionId = ROOM_SESSION_PREFIX + roomName;
+        ChatSession session = activeSessions.computeIfAbsent(sessionId, id -> {
+            ChatSession created = new ChatSession(id, roomName, null);
+            restoreHistory(created);
+            return created;
+        });
+        Log.debug("Created room: {}", roomName);
+        return new ChatRoom(roomName, session.getSessionId());
+    }
+    
     /**
      * Shutdown the session manager
      */
     public void shutdown() {
         scheduler.shutdown();
+        if (historyStore != null) {
+            historyStore.close();
+        }
         activeSessions.clear();
     }
     
@@ -208,30 +557,107 @@ public class ChatSessionManager {
         private final String sessionId;
         private final String user1;
         private final String user2;
-        private final List<Message> messages;
+        private final ConcurrentSkipListMap<Long, Message> messages; // sequence -> message
+        private final AtomicLong lastSequence;
         private final LocalDateTime createdAt;
         private LocalDateTime autoDestroyAt;
-        private boolean destroyed;
+        private volatile boolean destroyed;
         
         public ChatSession(String sessionId, String user1, String user2) {
             this.sessionId = sessionId;
             this.user1 = user1;
             this.user2 = user2;
-            this.messages = Collections.synchronizedList(new ArrayList<>());
+            this.messages = new ConcurrentSkipListMap<>();
+            this.lastSequence = new AtomicLong();
             this.createdAt = LocalDateTime.now();
             this.destroyed = false;
         }
         
-        public void addMessage(Message message) {
+        /**
+         * Number and insert a message under the session's lock, so entries appear in sequence
+         * order and a reader that has seen N+1 can never miss N
+         */
+        public synchronized void addMessage(Message message) {
             if (!destroyed) {
-                messages.add(message);
+                long sequence = lastSequence.incrementAndGet();
+                message.setSequence(sequence);
+                messages.put(sequence, message);
+            }
+        }
+        
+        /**
+         * Seed the session with persisted history without re-appending it.
+         * Stored sequence numbers are kept so client cursors stay valid across restarts.
+         */
+        public synchronized void restoreMessages(List<Message> history) {
+            if (destroyed) {
+                return;
+            }
+            for (Message message : history) {
+                long sequence = message.getSequence();
+                if (sequence <= lastSequence.get()) {
+                    sequence = lastSequence.incrementAndGet();
+                    message.setSequence(sequence);
+                } else {
+                    lastSequence.set(sequence);
+                }
+                messages.put(sequence, message);
+            }
+        }
+        
+        /**
+         * Forward scan from a cursor; reads never block writers
+         */
+        public HistoryPage getMessages(long afterSeq, int limit) {
+            List<Message> page = new ArrayList<>(Math.min(limit, 64));
+            long cursor = afterSeq;
+            Iterator<Message> it = messages.tailMap(afterSeq, false).values().iterator();
+            while (page.size() < limit && it.hasNext()) {
+                Message message = it.next();
+                page.add(message);
+                cursor = message.getSequence();
             }
+            return new HistoryPage(page, cursor, it.hasNext());
+        }
+        
+        /**
+         * Drop all but the latest keep messages from memory, once the log holds them
+         */
+        synchronized void retainLatest(int keep) {
+            long newestDropped = lastSequence.get() - keep;
+            Map.Entry<Long, Message> oldest;
+            while ((oldest = messages.firstEntry()) != null && oldest.getKey() <= newestDropped) {
+                messages.remove(oldest.getKey());
+            }
+        }
+        
+        /**
+         * Sequence number of the oldest message in memory, or Long.MAX_VALUE if there is none
+         */
+        public long getOldestSequence() {
+            Map.Entry<Long, Message> oldest = messages.firstEntry();
+            return oldest != null ? oldest.getKey() : Long.MAX_VALUE;
+        }
+        
+        /**
+         * Reverse scan from a cursor; reads never block writers
+         */
+        public HistoryPage getMessagesBefore(long beforeSeq, int limit) {
+            List<Message> page = new ArrayList<>(Math.min(limit, 64));
+            long cursor = beforeSeq;
+            Iterator<Message> it = messages.headMap(beforeSeq, false).descendingMap().values().iterator();
+            while (page.size() < limit && it.hasNext()) {
+                Message message = it.next();
+                page.add(message);
+                cursor = message.getSequence();
+            }
+            return new HistoryPage(page, cursor, it.hasNext());
         }
         
         public void clearMessages() {
             if (!destroyed) {
                 messages.clear();
-                System.out.println("Messages cleared for session: " + sessionId);
+                Log.debug("Messages cleared for session: {}", sessionId);
             }
         }
         
@@ -248,9 +674,70 @@ public class ChatSessionManager {
         public String getSessionId() { return sessionId; }
         public String getUser1() { return user1; }
         public String getUser2() { return user2; }
-        public List<Message> getMessages() { return new ArrayList<>(messages); }
+        public List<Message> getMessages() { return new ArrayList<>(messages.values()); }
+        public long getLastSequence() { return lastSequence.get(); }
         public LocalDateTime getCreatedAt() { return createdAt; }
         public LocalDateTime getAutoDestroyAt() { return autoDestroyAt; }
         public boolean isDestroyed() { return destroyed; }
     }
+    
+    /**
+     * Inner class representing a group room. Room messages are kept in a regular
+     * {@link ChatSession} so history, paging and persistence work the same as for pairs.
+     */
+    public static class ChatRoom {
+        private final String name;
+        private final String sessionId;
+        private final Set<String> members;
+        private final LocalDateTime createdAt;
+        private volatile boolean closed;
+        
+        public ChatRoom(String name, String sessionId) {
+            this.name = name;
+            this.sessionId = sessionId;
+            this.members = ConcurrentHashMap.newKeySet();
+            this.createdAt = LocalDateTime.now();
+        }
+        
+        void addMember(String username) { members.add(username); }
+        boolean removeMember(String username) { return members.remove(username); }
+        void close() { closed = true; }
+        
+        // Getters
+        public String getName() { return name; }
+        public String getSessionId() { return sessionId; }
+        public boolean hasMember(String username) { return members.contains(username); }
+        public int getMemberCount() { return members.size(); }
+        public LocalDateTime getCreatedAt() { return createdAt; }
+        public boolean isClosed() { return closed; }
+        
+        /**
+         * Live, weakly consistent view of the members; iterating it never blocks joins or leaves
+         */
+        public Set<String> getMembers() { return Collections.unmodifiableSet(members); }
+    }
+    
+    /**
+     * One page of session history and the cursor to continue from
+     */
+    public static class HistoryPage {
+        private final List<Message> messages;
+        private final long nextCursor;
+        private final boolean hasMore;
+        
+        public HistoryPage(List<Message> messages, long nextCursor, boolean hasMore) {
+            this.messages = messages;
+            this.nextCursor = nextCursor;
+            this.hasMore = hasMore;
+        }
+        
+        static HistoryPage empty(long cursor) {
+            return new HistoryPage(new ArrayList<>(), cursor, false);
+        }
+        
+        // Getters
+        public List<Message> getMessages() { return messages; }
+        public long getNextCursor() { return nextCursor; }
+        public boolean hasMore() { return hasMore; }
+    }
 }
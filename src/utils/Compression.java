@@ -0,0 +1,153 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+
+/**
+ * Compression negotiates a payload codec per connection and applies it to TEXT content and
+ * FILE data before encryption. At JOIN the client lists the codecs it supports in the
+ * message's codec field, most preferred first; the server answers with the one it picked,
+ * or nothing, in the welcome message. A compressed payload names its codec, so a receiver
+ * decodes whatever it is given and any payload may still be sent raw.
+ *
+ * Deflate is registered by default; add others with {@link #register(PayloadCodec)} on both
+ * ends. Ratio and CPU cost are published through {@link MetricsRegistry} as compression.*.
+ */
+public final class Compression {
+    // Default upper bound on a decompressed payload, for receivers without their own limit
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MIN_BYTES = 256;
+    
+    // Registration order is preference order when offering; replaced on register, so lookups take no lock
+    private static volatile Map<String, PayloadCodec> codecs = new LinkedHashMap<>();
+    
+    // Reporting, updated by Compressor for payloads sent compressed
+    static final LongAdder rawBytes;
+    static final LongAdder compressedBytes;
+    static final LongAdder skippedSmall;
+    static final LongAdder skippedAdaptive;
+    static final LongAdder incompressible;
+    static final LatencyHistogram compressLatency;
+    private static final LatencyHistogram decompressLatency;
+    
+    static {
+        register(new DeflateCodec());
+        
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        rawBytes = metrics.counter("compression.rawBytes");
+        compressedBytes = metrics.counter("compression.compressedBytes");
+        skippedSmall = metrics.counter("compression.skippedSmall");
+        skippedAdaptive = metrics.counter("compression.skippedAdaptive");
+        incompressible = metrics.counter("compression.incompressible");
+        compressLatency = metrics.histogram("compression.compress");
+        decompressLatency = metrics.histogram("compression.decompress");
+        metrics.gauge("compression.ratioPercent", Compression::getRatioPercent);
+    }
+    
+    private Compression() {
+    }
+    
+    /**
+     * Add a codec, or replace the one registered under the same name
+     */
+    public static synchronized void register(PayloadCodec codec) {
+        Map<String, PayloadCodec> updated = new LinkedHashMap<>(codecs);
+        updated.put(codec.getName(), codec);
+        codecs = updated;
+    }
+    
+    public static PayloadCodec get(String name) {
+        return codecs.get(name);
+    }
+    
+    /**
+     * The codecs this end supports, comma-separated in order of preference, for a JOIN message
+     */
+    public static String offer() {
+        return String.join(",", codecs.keySet());
+    }
+    
+    /**
+     * Pick the first offered codec this end also supports, or null to send everything raw
+     */
+    public static PayloadCodec negotiate(String offered) {
+        if (offered == null) {
+            return null;
+        }
+        for (String name : offered.split(",")) {
+            PayloadCodec codec = get(name.trim());
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Encrypt text into the message's content, compressing it first if the compressor
+     * (null for none) judges it worthwhile; sets or clears the message's codec to match
+     */
+    public static void sealText(Message message, String plaintext, SecretKey key, Compressor compressor) throws Exception {
+        byte[] packed = compressor != null ? compressor.compress(plaintext.getBytes(StandardCharsets.UTF_8)) : null;
+        if (packed != null) {
+            message.setContent(Base64.getEncoder().encodeToString(EncryptionUtil.encryptBytes(packed, key)));
+            message.setCodec(compressor.getCodec().getName());
+        } else {
+            message.setContent(EncryptionUtil.encrypt(plaintext, key));
+            message.setCodec(null);
+        }
+    }
+    
+    /**
+     * Decrypt the message's content, decompressing it if it names a codec
+     */
+    public static String openText(Message message, SecretKey key, int maxBytes) throws Exception {
+        if (message.getCodec() == null) {
+            return EncryptionUtil.decrypt(message.getContent(), key);
+        }
+        byte[] packed = EncryptionUtil.decryptBytes(Base64.getDecoder().decode(message.getContent()), key);
+        return new String(decompress(message.getCodec(), packed, maxBytes), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Encrypt file data into the message, compressing it first if the compressor (null for
+     * none) judges it worthwhile; sets or clears the message's codec to match
+     */
+    public static void sealFile(Message message, byte[] data, SecretKey key, Compressor compressor) throws Exception {
+        byte[] packed = compressor != null ? compressor.compress(data) : null;
+        message.setFileData(EncryptionUtil.encryptBytes(packed != null ? packed : data, key));
+        message.setCodec(packed != null ? compressor.getCodec().getName() : null);
+    }
+    
+    /**
+     * Decrypt the message's file data, decompressing it if it names a codec
+     */
+    public static byte[] openFile(Message message, SecretKey key, int maxBytes) throws Exception {
+        byte[] data = EncryptionUtil.decryptBytes(message.getFileData(), key);
+        return message.getCodec() == null ? data : decompress(message.getCodec(), data, maxBytes);
+    }
+    
+    private static byte[] decompress(String name, byte[] data, int maxBytes) throws IOException {
+        PayloadCodec codec = get(name);
+        if (codec == null) {
+            throw new IOException("Unsupported payload codec: " + name);
+        }
+        long start = System.nanoTime();
+        byte[] plain = codec.decompress(data, maxBytes);
+        decompressLatency.record(System.nanoTime() - start);
+        return plain;
+    }
+    
+    /**
+     * Compressed size as a percentage of the original, over payloads sent compressed
+     */
+    public static long getRatioPercent() {
+        long raw = rawBytes.sum();
+        return raw == 0 ? 100 : compressedBytes.sum() * 100 / raw;
+    }
+}
@@ -0,0 +1,91 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+
+/**
+ * Compressor applies a connection's negotiated codec to one kind of payload and decides when
+ * it is worth it. Payloads under the size threshold go raw. Large payloads are probed with a
+ * sample first, so an incompressible file costs one small attempt. After several payloads in
+ * a row barely shrink, it stops trying for a while, backing off further each time, and then
+ * probes again.
+ *
+ * The adaptive state is a heuristic shared by every thread sending on the connection;
+ * unsynchronized updates can only move the next probe a little.
+ */
+public class Compressor {
+    // A payload must shrink to at most this fraction of its size to be sent compressed
+    private static final double WORTHWHILE_RATIO = 0.9;
+    private static final int SAMPLE_BYTES = 16 * 1024;
+    private static final int POOR_RESULTS_BEFORE_SKIP = 3;
+    private static final int MIN_SKIP = 8;
+    private static final int MAX_SKIP = 1024;
+    
+    private final PayloadCodec codec;
+    private final IntSupplier minBytes;
+    
+    private int poorResults;
+    private int skipRemaining;
+    private int skipLength = MIN_SKIP;
+    
+    /**
+     * @param minBytes smallest payload worth compressing, read on every call so it may change at runtime
+     */
+    public Compressor(PayloadCodec codec, IntSupplier minBytes) {
+        this.codec = codec;
+        this.minBytes = minBytes;
+    }
+    
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+    
+    /**
+     * The compressed payload, or null if it should be sent raw
+     */
+    public byte[] compress(byte[] data) {
+        if (data.length < minBytes.getAsInt()) {
+            Compression.skippedSmall.increment();
+            return null;
+        }
+        if (skipRemaining > 0) {
+            skipRemaining--;
+            Compression.skippedAdaptive.increment();
+            return null;
+        }
+        
+        long start = System.nanoTime();
+        if (data.length > 4 * SAMPLE_BYTES) {
+            byte[] sample = codec.compress(Arrays.copyOf(data, SAMPLE_BYTES));
+            if (!worthwhile(sample.length, SAMPLE_BYTES)) {
+                Compression.compressLatency.record(System.nanoTime() - start);
+                return poorResult();
+            }
+        }
+        byte[] packed = codec.compress(data);
+        Compression.compressLatency.record(System.nanoTime() - start);
+        if (!worthwhile(packed.length, data.length)) {
+            return poorResult();
+        }
+        
+        poorResults = 0;
+        skipLength = MIN_SKIP;
+        Compression.rawBytes.add(data.length);
+        Compression.compressedBytes.add(packed.length);
+        return packed;
+    }
+    
+    private static boolean worthwhile(int packedLength, int rawLength) {
+        return packedLength <= rawLength * WORTHWHILE_RATIO;
+    }
+    
+    private byte[] poorResult() {
+        Compression.incompressible.increment();
+        if (++poorResults >= POOR_RESULTS_BEFORE_SKIP) {
+            poorResults = 0;
+            skipRemaining = skipLength;
+            skipLength = Math.min(skipLength * 2, MAX_SKIP);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,63 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * ConfigFile finds and reads config.properties once per process: from -Dsecurechat.config,
+ * else the working directory, else its parent (the run scripts start the JVM inside build/).
+ * It depends on nothing else, so Log and ServerConfig can both use it while initializing.
+ */
+final class ConfigFile {
+    private static final String FILE_NAME = "config.properties";
+    
+    private static final Properties properties = new Properties();
+    private static final Path directory;
+    
+    static {
+        String explicit = System.getProperty("securechat.config");
+        Path[] candidates = explicit != null
+            ? new Path[] {Paths.get(explicit)}
+            : new Path[] {Paths.get(FILE_NAME), Paths.get("..", FILE_NAME)};
+        Path found = null;
+        for (Path candidate : candidates) {
+            if (Files.isRegularFile(candidate)) {
+                try (Reader reader = Files.newBufferedReader(candidate)) {
+                    properties.load(reader);
+                    found = candidate.toAbsolutePath().getParent();
+                } catch (IOException e) {
+                    System.err.println("Error reading " + candidate + ": " + e.getMessage());
+                }
+                break;
+            }
+        }
+        directory = found;
+    }
+    
+    private ConfigFile() {
+    }
+    
+    /**
+     * A value from the file, trimmed, or null if the key is absent
+     */
+    static String get(String key) {
+        String value = properties.getProperty(key);
+        return value != null ? value.trim() : null;
+    }
+    
+    /**
+     * Resolve a path from the file against the file's own directory, so it means the same
+     * wherever the JVM was started (against the working directory if there is no file)
+     */
+    static Path resolve(String path) {
+        return directory != null ? directory.resolve(path).normalize() : Paths.get(path);
+    }
+    
+    static boolean isLoaded() {
+        return directory != null;
+    }
+}
@@ -0,0 +1,92 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DeflateCodec is raw deflate from java.util.zip, prefixed with the uncompressed length so
+ * decompression allocates once and can refuse oversized output before inflating anything.
+ * Each thread keeps its own Deflater and Inflater, since creating them allocates native memory.
+ */
+public class DeflateCodec implements PayloadCodec {
+    public static final String NAME = "deflate";
+    private static final int HEADER_BYTES = 4;
+    
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    /**
+     * Deflate at the fastest level, which gets most of the gain on chat text for a fraction of the CPU
+     */
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+    
+    public DeflateCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        
+        // Deflate's worst case is a few bytes per 16 KB block over the input
+        byte[] out = new byte[HEADER_BYTES + data.length + (data.length >> 12) + 64];
+        int length = data.length;
+        out[0] = (byte) (length >>> 24);
+        out[1] = (byte) (length >>> 16);
+        out[2] = (byte) (length >>> 8);
+        out[3] = (byte) length;
+        int position = HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (position == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            position += deflater.deflate(out, position, out.length - position);
+        }
+        return Arrays.copyOf(out, position);
+    }
+    
+    @Override
+    public byte[] decompress(byte[] data, int maxBytes) throws IOException {
+        if (data.length < HEADER_BYTES) {
+            throw new IOException("Truncated deflate payload");
+        }
+        int length = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        if (length < 0 || length > maxBytes) {
+            throw new IOException("Payload of " + length + " bytes exceeds the " + maxBytes + " byte limit");
+        }
+        
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, HEADER_BYTES, data.length - HEADER_BYTES);
+        byte[] out = new byte[length];
+        int position = 0;
+        try {
+            while (position < length) {
+                int inflated = inflater.inflate(out, position, length - position);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate payload: " + e.getMessage());
+        }
+        if (position != length) {
+            throw new IOException("Deflate payload ended after " + position + " of " + length + " bytes");
+        }
+        return out;
+    }
+}
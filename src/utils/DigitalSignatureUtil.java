@@ -69,7 +69,7 @@ public class DigitalSignatureUtil {
             
             return signature.verify(digitalSignature);
         } catch (Exception e) {
-            System.err.println("Error verifying signature: " + e.getMessage());
+            Log.error("Error verifying signature: {}", e.getMessage());
             return false;
         }
     }
@@ -117,7 +117,7 @@ public class DigitalSignatureUtil {
             try {
                 keyPair = generateKeyPair(username);
             } catch (Exception e) {
-                System.err.println("Error generating key pair for " + username + ": " + e.getMessage());
+                Log.error("Error generating key pair for {}: {}", username, e.getMessage());
                 return null;
             }
         }
@@ -131,9 +131,9 @@ public class DigitalSignatureUtil {
         if (!userKeyPairs.containsKey(username)) {
             try {
                 generateKeyPair(username);
-                System.out.println("Generated digital signature keys for user: " + username);
+                Log.debug("Generated digital signature keys for user: {}", username);
             } catch (Exception e) {
-                System.err.println("Error initializing keys for " + username + ": " + e.getMessage());
+                Log.error("Error initializing keys for {}: {}", username, e.getMessage());
             }
         }
     }
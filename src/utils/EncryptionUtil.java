@@ -67,6 +67,16 @@ public class EncryptionUtil {
         return cipher.doFinal(data);
     }
     
+    /**
+     * Get an initialized cipher in the same mode as the methods here, for streaming data too
+     * large to hold twice (mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE)
+     */
+    public static Cipher getCipher(int mode, SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, key);
+        return cipher;
+    }
+    
     /**
      * Decrypt file data
      */
@@ -0,0 +1,256 @@
+package utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is an asynchronous, level-filtered logger. A logging call checks the level and,
+ * if it is enabled, claims a slot in a fixed ring buffer and stores the format string
+ * and arguments; one background thread formats the entries and prints them in batches.
+ * Handler threads never format a line or contend on System.out, and a disabled level
+ * costs a single comparison.
+ *
+ * Formats use {} placeholders, filled in order from the arguments. Arguments are
+ * formatted later on the log thread, so pass immutable values (strings, numbers).
+ * When the buffer is full, entries are dropped and counted rather than blocking the caller.
+ *
+ * The level comes from LOG_LEVEL in config.properties (or -Dsecurechat.log.level), and
+ * DEBUG_MODE=true lowers it to at least DEBUG. Message bodies are never logged unless
+ * LOG_MESSAGE_CONTENT=true; pass them through {@link #content(String)}.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+    
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final String REDACTED = "<redacted>";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_BATCH = 256;
+    
+    private static final Level level;
+    private static final boolean logContent;
+    private static final Entry[] ring;
+    private static final int mask;
+    
+    private static final AtomicLong claimed = new AtomicLong(); // Next sequence to hand out
+    private static volatile long consumed;                      // Next sequence to print
+    private static volatile boolean writerIdle;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+    
+    static {
+        Level configured = parseLevel(System.getProperty("securechat.log.level", valueOf("LOG_LEVEL", "INFO")));
+        if (Boolean.parseBoolean(valueOf("DEBUG_MODE", "false")) && configured.compareTo(Level.DEBUG) < 0) {
+            configured = Level.DEBUG;
+        }
+        level = configured;
+        logContent = Boolean.parseBoolean(valueOf("LOG_MESSAGE_CONTENT", "false"));
+        
+        int capacity = Integer.highestOneBit(Math.max(64, Integer.parseInt(valueOf("LOG_BUFFER_SIZE", "8192")) * 2 - 1));
+        ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry(i - capacity);
+        }
+        mask = capacity - 1;
+        
+        writer = new Thread(Log::writeLoop, "securechat-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "securechat-log-flush"));
+    }
+    
+    private Log() {
+    }
+    
+    /**
+     * One ring slot. Fields are written by the claiming thread, then published by the
+     * volatile write of sequence; the log thread reads them only after seeing that sequence.
+     */
+    private static final class Entry {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String thread;
+        String format;
+        Object[] args;
+        
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+    
+    public static boolean isEnabled(Level candidate) {
+        return candidate.compareTo(level) <= 0;
+    }
+    
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.compareTo(level) <= 0;
+    }
+    
+    public static boolean isTraceEnabled() {
+        return Level.TRACE.compareTo(level) <= 0;
+    }
+    
+    public static Level getLevel() {
+        return level;
+    }
+    
+    /**
+     * A message body as it may appear in a log line: itself if LOG_MESSAGE_CONTENT is on, otherwise a placeholder
+     */
+    public static String content(String body) {
+        return logContent ? body : REDACTED;
+    }
+    
+    public static void error(String format) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, format, null); }
+    public static void error(String format, Object a) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, format, new Object[] {a}); }
+    public static void error(String format, Object a, Object b) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, format, new Object[] {a, b}); }
+    public static void error(String format, Object... args) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, format, args); }
+    
+    public static void warn(String format) { if (isEnabled(Level.WARN)) publish(Level.WARN, format, null); }
+    public static void warn(String format, Object a) { if (isEnabled(Level.WARN)) publish(Level.WARN, format, new Object[] {a}); }
+    public static void warn(String format, Object a, Object b) { if (isEnabled(Level.WARN)) publish(Level.WARN, format, new Object[] {a, b}); }
+    public static void warn(String format, Object... args) { if (isEnabled(Level.WARN)) publish(Level.WARN, format, args); }
+    
+    public static void info(String format) { if (isEnabled(Level.INFO)) publish(Level.INFO, format, null); }
+    public static void info(String format, Object a) { if (isEnabled(Level.INFO)) publish(Level.INFO, format, new Object[] {a}); }
+    public static void info(String format, Object a, Object b) { if (isEnabled(Level.INFO)) publish(Level.INFO, format, new Object[] {a, b}); }
+    public static void info(String format, Object... args) { if (isEnabled(Level.INFO)) publish(Level.INFO, format, args); }
+    
+    public static void debug(String format) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, format, null); }
+    public static void debug(String format, Object a) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, format, new Object[] {a}); }
+    public static void debug(String format, Object a, Object b) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, format, new Object[] {a, b}); }
+    public static void debug(String format, Object... args) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, format, args); }
+    
+    public static void trace(String format) { if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, null); }
+    public static void trace(String format, Object a) { if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, new Object[] {a}); }
+    public static void trace(String format, Object a, Object b) { if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, new Object[] {a, b}); }
+    public static void trace(String format, Object... args) { if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, args); }
+    
+    /**
+     * Entries dropped because the ring buffer was full
+     */
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Wait until everything logged so far has been printed, or the timeout passes
+     */
+    public static void flush(long timeoutMillis) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (consumed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+    
+    private static void publish(Level entryLevel, String format, Object[] args) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        
+        Entry entry = ring[(int) sequence & mask];
+        entry.level = entryLevel;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.thread = Thread.currentThread().getName();
+        entry.format = format;
+        entry.args = args;
+        entry.sequence = sequence;
+        
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+    
+    private static void writeLoop() {
+        StringBuilder out = new StringBuilder(8192);
+        StringBuilder err = new StringBuilder(1024);
+        long droppedReported = 0;
+        while (true) {
+            int batch = 0;
+            long next = consumed;
+            Entry entry = ring[(int) next & mask];
+            while (batch < MAX_BATCH && entry.sequence == next) {
+                format(entry, entry.level.compareTo(Level.WARN) <= 0 ? err : out);
+                entry.format = null;
+                entry.args = null;
+                consumed = ++next;
+                batch++;
+                entry = ring[(int) next & mask];
+            }
+            
+            long droppedNow = dropped.sum();
+            if (droppedNow != droppedReported) {
+                err.append(TIME_FORMAT.format(Instant.now())).append(" WARN  [securechat-log] Log buffer full, dropped ")
+                    .append(droppedNow - droppedReported).append(" entries\n");
+                droppedReported = droppedNow;
+            }
+            print(System.err, err);
+            print(System.out, out);
+            
+            if (batch == 0) {
+                writerIdle = true;
+                if (ring[(int) consumed & mask].sequence != consumed) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                writerIdle = false;
+            }
+        }
+    }
+    
+    private static void format(Entry entry, StringBuilder line) {
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.timeMillis))).append(' ');
+        String name = entry.level.name();
+        line.append(name);
+        for (int i = name.length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append('[').append(entry.thread).append("] ");
+        
+        String format = entry.format;
+        Object[] args = entry.args;
+        int argument = 0;
+        int from = 0;
+        int at;
+        while (args != null && argument < args.length && (at = format.indexOf("{}", from)) >= 0) {
+            line.append(format, from, at).append(args[argument++]);
+            from = at + 2;
+        }
+        line.append(format, from, format.length()).append('\n');
+    }
+    
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+    
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown LOG_LEVEL '" + name + "', using INFO");
+            return Level.INFO;
+        }
+    }
+    
+    private static String valueOf(String key, String defaultValue) {
+        String value = ConfigFile.get(key);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -7,14 +7,18 @@ import java.time.LocalDateTime;
  * Message class represents a chat message with various types and metadata
  */
 public class Message implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     
     public enum MessageType {
         TEXT, FILE, JOIN, LEAVE, CLEAR_CHAT, CLEAR_LOCAL_CHAT, DESTROY_CHAT, SET_TIMER, 
         TIMER_UPDATE, TIMER_EXPIRED,
         CONNECT_REQUEST, CONNECT_ACCEPT, CONNECT_REJECT, DISCONNECT_REQUEST,
         SYSTEM, HEARTBEAT,
-        TYPING_START, TYPING_STOP, DELIVERY_RECEIPT, READ_RECEIPT
+        TYPING_START, TYPING_STOP, DELIVERY_RECEIPT, READ_RECEIPT,
+        HISTORY, HISTORY_REQUEST,
+        ROOM_JOIN, ROOM_LEAVE, ROOM_TEXT,
+        PRESENCE_QUERY, PRESENCE_LIST, PRESENCE_SUBSCRIBE, PRESENCE_UNSUBSCRIBE, PRESENCE_UPDATE,
+        PING, PONG, TRACE_REPORT
     }
     
     public enum DeliveryStatus {
@@ -29,7 +33,8 @@ public class Message implements Serializable {
     private String fileName;
     private byte[] fileData;
     private long fileSize;
-    private String messageId;
+    private String fileDigest; // On a stored FILE message: SHA-256 of the content, naming its blob on the server
+    private long messageId;
     private long timerDuration; // in milliseconds
     
     // Digital Signature fields
@@ -44,9 +49,27 @@ public class Message implements Serializable {
     // Typing indicator fields
     private boolean isTyping;
     
+    // Receipt field: the ID of the message a DELIVERY_RECEIPT/READ_RECEIPT refers to
+    private long receiptFor;
+    
+    // On a chat message a server relayed: the ID its sending client minted, which receipts refer
+    // to; messageId is then the server's, since client IDs are unique only within the client
+    private long clientMessageId;
+    
+    // History paging fields: position in the session, and page size on HISTORY_REQUEST
+    private long sequence;
+    private int pageSize;
+    
+    // Latency trace on sampled messages, returned by the recipient in a TRACE_REPORT
+    private MessageTrace trace;
+    
+    // Payload codec: on TEXT/FILE, what the content or file data was compressed with before
+    // encryption (null if raw); on JOIN the codecs the client offers, on its welcome the one chosen
+    private String codec;
+    
     public Message() {
         this.timestamp = LocalDateTime.now();
-        this.messageId = generateMessageId();
+        this.messageId = MessageIdGenerator.nextId();
         this.deliveryStatus = DeliveryStatus.SENT;
         this.isTyping = false;
     }
@@ -59,8 +82,38 @@ public class Message implements Serializable {
         this.type = type;
     }
     
-    private String generateMessageId() {
-        return System.currentTimeMillis() + "_" + Math.random();
+    /**
+     * Shallow copy, so a stored message can be forwarded with per-recipient content
+     */
+    public Message copy() {
+        return new Message(this);
+    }
+    
+    // Copies every field without minting an ID or reading the clock
+    private Message(Message other) {
+        this.sender = other.sender;
+        this.receiver = other.receiver;
+        this.content = other.content;
+        this.type = other.type;
+        this.timestamp = other.timestamp;
+        this.fileName = other.fileName;
+        this.fileData = other.fileData;
+        this.fileSize = other.fileSize;
+        this.fileDigest = other.fileDigest;
+        this.messageId = other.messageId;
+        this.timerDuration = other.timerDuration;
+        this.digitalSignature = other.digitalSignature;
+        this.signerPublicKey = other.signerPublicKey;
+        this.deliveryStatus = other.deliveryStatus;
+        this.deliveredAt = other.deliveredAt;
+        this.readAt = other.readAt;
+        this.isTyping = other.isTyping;
+        this.receiptFor = other.receiptFor;
+        this.clientMessageId = other.clientMessageId;
+        this.sequence = other.sequence;
+        this.pageSize = other.pageSize;
+        this.trace = other.trace;
+        this.codec = other.codec;
     }
     
     // Getters and Setters
@@ -88,8 +141,11 @@ public class Message implements Serializable {
     public long getFileSize() { return fileSize; }
     public void setFileSize(long fileSize) { this.fileSize = fileSize; }
     
-    public String getMessageId() { return messageId; }
-    public void setMessageId(String messageId) { this.messageId = messageId; }
+    public String getFileDigest() { return fileDigest; }
+    public void setFileDigest(String fileDigest) { this.fileDigest = fileDigest; }
+    
+    public long getMessageId() { return messageId; }
+    public void setMessageId(long messageId) { this.messageId = messageId; }
     
     public long getTimerDuration() { return timerDuration; }
     public void setTimerDuration(long timerDuration) { this.timerDuration = timerDuration; }
@@ -115,6 +171,31 @@ public class Message implements Serializable {
     public boolean isTyping() { return isTyping; }
     public void setTyping(boolean typing) { this.isTyping = typing; }
     
+    // Receipt getters and setters
+    public long getReceiptFor() { return receiptFor; }
+    public void setReceiptFor(long receiptFor) { this.receiptFor = receiptFor; }
+    
+    public long getClientMessageId() { return clientMessageId; }
+    public void setClientMessageId(long clientMessageId) { this.clientMessageId = clientMessageId; }
+    
+    /**
+     * The ID receipts for this message should carry: the sending client's own, if a server re-stamped it
+     */
+    public long getReceiptId() { return clientMessageId != 0 ? clientMessageId : messageId; }
+    
+    // History paging getters and setters
+    public long getSequence() { return sequence; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+    
+    public int getPageSize() { return pageSize; }
+    public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+    
+    public MessageTrace getTrace() { return trace; }
+    public void setTrace(MessageTrace trace) { this.trace = trace; }
+    
+    public String getCodec() { return codec; }
+    public void setCodec(String codec) { this.codec = codec; }
+    
     @Override
     public String toString() {
         return String.format("[%s] %s -> %s: %s (%s)", 
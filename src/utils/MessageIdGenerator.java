@@ -0,0 +1,88 @@
+package utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageIdGenerator hands out unique, monotonic 64-bit message IDs without locking.
+ * Layout: 41 bits of milliseconds since {@link #EPOCH_MILLIS}, 10 bits of node ID and a
+ * 12-bit per-millisecond sequence. IDs are unique across processes only when each has its
+ * own node ID: servers must be given one (-Dsecurechat.nodeId or NODE_ID, 0-1023) and refuse to
+ * start without it. Processes without one, i.e. clients, pick a random node, so their IDs are
+ * unique only within the process; a server re-stamps the chat messages it relays with its own
+ * IDs and keeps the client's in {@link Message#getClientMessageId()} for receipts.
+ */
+public final class MessageIdGenerator {
+    public static final long EPOCH_MILLIS = 1704067200000L; // 2024-01-01T00:00:00Z
+    
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    
+    private static volatile long nodeId;
+    private static volatile boolean nodeConfigured;
+    
+    static {
+        Integer configured = Integer.getInteger("securechat.nodeId");
+        if (configured != null) {
+            configureNode(configured);
+        } else {
+            nodeId = ThreadLocalRandom.current().nextLong(MAX_NODE + 1);
+        }
+    }
+    
+    // (timestamp << SEQUENCE_BITS) | sequence of the last ID handed out
+    private static final AtomicLong lastState = new AtomicLong();
+    
+    private MessageIdGenerator() {
+    }
+    
+    /**
+     * Get the next ID. A sequence overflow or a clock that moved backwards borrows from
+     * the following millisecond instead of spinning, so IDs stay unique and increasing.
+     */
+    public static long nextId() {
+        long now = System.currentTimeMillis() - EPOCH_MILLIS;
+        while (true) {
+            long previous = lastState.get();
+            long next = (previous >>> SEQUENCE_BITS) < now ? now << SEQUENCE_BITS : previous + 1;
+            if (lastState.compareAndSet(previous, next)) {
+                long timestamp = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+    
+    /**
+     * Get the wall-clock time (epoch milliseconds) an ID was generated at
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+    }
+    
+    /**
+     * Get the node that generated an ID
+     */
+    public static int nodeOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+    }
+    
+    public static long getNodeId() { return nodeId; }
+    
+    /**
+     * Check if this process was given an explicit node ID, rather than a random one
+     */
+    public static boolean isNodeConfigured() { return nodeConfigured; }
+    
+    /**
+     * Set this process's node ID; servers call this at startup before minting any IDs
+     */
+    public static void configureNode(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        nodeId = node;
+        nodeConfigured = true;
+    }
+}
@@ -0,0 +1,87 @@
+package utils;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * MessageTrace rides along on a sampled TEXT or FILE message and collects timestamps
+ * as it travels from sender to recipient.
+ *
+ * Stamps taken by the server are monotonic (System.nanoTime) and stay on the server;
+ * they are transient, so they cost nothing on the wire. Stamps that have to be compared
+ * across machines (client send, server read and send, client receive) are wall-clock
+ * microseconds, so hops between processes are only as accurate as the clocks' sync.
+ * The recipient returns the trace in a TRACE_REPORT so the server can close the loop.
+ */
+public class MessageTrace implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final long traceId;
+    
+    // Wall-clock microseconds, comparable across processes
+    private long clientSendMicros;
+    private long serverReadMicros;
+    private long serverSendMicros;
+    private long clientReceiveMicros;
+    
+    // Server monotonic nanoseconds, meaningful only inside the server
+    private transient long readNanos;
+    private transient long verifiedNanos;
+    private transient long encryptedNanos;
+    private transient long enqueuedNanos;
+    
+    public MessageTrace(long traceId) {
+        this.traceId = traceId;
+    }
+    
+    /**
+     * Start a trace on the sending client, stamped with the send time
+     */
+    public static MessageTrace start() {
+        MessageTrace trace = new MessageTrace(ThreadLocalRandom.current().nextLong());
+        trace.clientSendMicros = wallMicros();
+        return trace;
+    }
+    
+    /**
+     * Decide whether to trace one message, at a rate between 0 and 1
+     */
+    public static boolean sample(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+    
+    /**
+     * Current wall-clock time in microseconds since the epoch
+     */
+    public static long wallMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+    }
+    
+    public long getTraceId() { return traceId; }
+    
+    public long getClientSendMicros() { return clientSendMicros; }
+    public void setClientSendMicros(long clientSendMicros) { this.clientSendMicros = clientSendMicros; }
+    
+    public long getServerReadMicros() { return serverReadMicros; }
+    public void setServerReadMicros(long serverReadMicros) { this.serverReadMicros = serverReadMicros; }
+    
+    public long getServerSendMicros() { return serverSendMicros; }
+    public void setServerSendMicros(long serverSendMicros) { this.serverSendMicros = serverSendMicros; }
+    
+    public long getClientReceiveMicros() { return clientReceiveMicros; }
+    public void setClientReceiveMicros(long clientReceiveMicros) { this.clientReceiveMicros = clientReceiveMicros; }
+    
+    public long getReadNanos() { return readNanos; }
+    public void setReadNanos(long readNanos) { this.readNanos = readNanos; }
+    
+    public long getVerifiedNanos() { return verifiedNanos; }
+    public void setVerifiedNanos(long verifiedNanos) { this.verifiedNanos = verifiedNanos; }
+    
+    public long getEncryptedNanos() { return encryptedNanos; }
+    public void setEncryptedNanos(long encryptedNanos) { this.encryptedNanos = encryptedNanos; }
+    
+    public long getEnqueuedNanos() { return enqueuedNanos; }
+    public void setEnqueuedNanos(long enqueuedNanos) { this.enqueuedNanos = enqueuedNanos; }
+}
@@ -0,0 +1,206 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * MetricsRegistry holds named counters, gauges and latency histograms and publishes
+ * them over JMX. Look a metric up once and keep the reference: updating a counter or
+ * histogram is then lock-free and allocation-free. Gauges are read only when asked for.
+ *
+ * Over JMX every counter and gauge is a long attribute; every histogram is a set of
+ * attributes named after it (name.count, name.p50Micros, name.p99Micros,
+ * name.p999Micros, name.maxMicros).
+ */
+public class MetricsRegistry implements DynamicMBean {
+    private static final String[] HISTOGRAM_FIELDS = {"count", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+    
+    // Sorted by name, so related metrics sit together in reports and JMX consoles
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    
+    private MetricsRegistry() {
+    }
+    
+    private static class Holder {
+        static final MetricsRegistry INSTANCE = new MetricsRegistry();
+    }
+    
+    public static MetricsRegistry getInstance() {
+        return Holder.INSTANCE;
+    }
+    
+    /**
+     * Get or create a counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+    
+    /**
+     * Get or create a latency histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+    
+    /**
+     * Register a gauge, replacing any previous one with the same name
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+    
+    /**
+     * Publish the registry on the platform MBean server; failures are logged, not fatal
+     */
+    public void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            Log.info("Metrics available over JMX as {}", objectName);
+        } catch (Exception e) {
+            Log.error("Could not register metrics MBean: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Multi-line report of every metric, histograms in microseconds
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            report.append(counter.getKey()).append(" = ").append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            report.append(gauge.getKey()).append(" = ").append(readGauge(gauge.getValue())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            if (histogram.getValue().getCount() > 0) {
+                report.append(histogram.getKey()).append(": ").append(histogram.getValue().getSummary()).append('\n');
+            }
+        }
+        return report.toString();
+    }
+    
+    /**
+     * Zero every counter and histogram (gauges read live state and are unaffected)
+     */
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(LatencyHistogram::reset);
+    }
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return readGauge(gauge);
+        }
+        
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot > 0 ? histograms.get(attribute.substring(0, dot)) : null;
+        if (histogram != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count": return histogram.getCount();
+                case "p50Micros": return histogram.getPercentileNanos(50) / 1000.0;
+                case "p99Micros": return histogram.getPercentileNanos(99) / 1000.0;
+                case "p999Micros": return histogram.getPercentileNanos(99.9) / 1000.0;
+                case "maxMicros": return histogram.getMaxNanos() / 1000.0;
+                default: break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Omitted, as the JMX contract allows
+            }
+        }
+        return list;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        switch (actionName) {
+            case "report":
+                return getReport();
+            case "reset":
+                reset();
+                return null;
+            default:
+                throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+        }
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // Built on each call, so metrics created after registration show up
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+        }
+        for (String name : histograms.keySet()) {
+            for (String field : HISTOGRAM_FIELDS) {
+                String type = field.equals("count") ? "long" : "double";
+                attributes.add(new MBeanAttributeInfo(name + "." + field, type, "Latency histogram", true, false, false));
+            }
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("report", "Text report of every metric", null, "java.lang.String", MBeanOperationInfo.INFO),
+            new MBeanOperationInfo("reset", "Zero counters and histograms", null, "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "Secure Chat metrics",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+    
+    private static long readGauge(LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * PayloadCodec compresses message payloads before they are encrypted. Codecs are registered
+ * with {@link Compression} under their name, which is what the two ends negotiate at JOIN,
+ * so both must register the same codec under the same name. Implementations must be thread-safe.
+ */
+public interface PayloadCodec {
+    
+    /**
+     * Name sent on the wire, e.g. "deflate"; must not contain a comma
+     */
+    String getName();
+    
+    /**
+     * Compress a payload
+     */
+    byte[] compress(byte[] data);
+    
+    /**
+     * Reverse {@link #compress(byte[])}, failing rather than producing more than maxBytes
+     */
+    byte[] decompress(byte[] data, int maxBytes) throws IOException;
+}
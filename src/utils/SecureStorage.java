@@ -0,0 +1,130 @@
+package utils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SecureStorage provides the at-rest key and secure deletion used by the on-disk stores.
+ *
+ * The key should come from outside the data directory: -Dsecurechat.storage.key or the
+ * SECURECHAT_STORAGE_KEY environment variable. Without one, a key is generated and written in
+ * plaintext as storage.key beside the data it encrypts. That only obfuscates the files: anyone
+ * who can read the directory can read the key, so it does not protect a copied disk or backup.
+ */
+public class SecureStorage {
+    private static final String KEY_FILE_NAME = "storage.key";
+    private static final String KEY_PROPERTY = "securechat.storage.key";
+    private static final String KEY_ENVIRONMENT = "SECURECHAT_STORAGE_KEY";
+    private static final int WIPE_CHUNK_SIZE = 64 * 1024;
+    
+    // One key per storage directory so every store under it can read the others' files
+    private static final Map<Path, SecretKey> storageKeys = new ConcurrentHashMap<>();
+    
+    /**
+     * Get the at-rest key for a storage directory. A configured key (Base64, from
+     * -Dsecurechat.storage.key or SECURECHAT_STORAGE_KEY) is used for every directory;
+     * otherwise the directory's own key file is read, or created on first use.
+     */
+    public static SecretKey getStorageKey(Path directory) throws IOException {
+        String configuredKey = System.getProperty(KEY_PROPERTY);
+        if (configuredKey == null || configuredKey.isEmpty()) {
+            configuredKey = System.getenv(KEY_ENVIRONMENT);
+        }
+        if (configuredKey != null && !configuredKey.isEmpty()) {
+            return EncryptionUtil.stringToKey(configuredKey);
+        }
+        
+        Path normalized = directory.toAbsolutePath().normalize();
+        SecretKey cached = storageKeys.get(normalized);
+        if (cached != null) {
+            return cached;
+        }
+        
+        synchronized (storageKeys) {
+            cached = storageKeys.get(normalized);
+            if (cached != null) {
+                return cached;
+            }
+            
+            Files.createDirectories(normalized);
+            Path keyFile = normalized.resolve(KEY_FILE_NAME);
+            Log.warn("No storage key configured; {} is encrypted under the key stored beside it in {}, "
+                + "which does not protect it from anyone who can read the directory", normalized, KEY_FILE_NAME);
+            SecretKey key;
+            if (Files.exists(keyFile)) {
+                String keyString = new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim();
+                key = EncryptionUtil.stringToKey(keyString);
+            } else {
+                try {
+                    key = EncryptionUtil.generateKey();
+                } catch (Exception e) {
+                    throw new IOException("Could not generate storage key: " + e.getMessage(), e);
+                }
+                Files.write(keyFile, EncryptionUtil.keyToString(key).getBytes(StandardCharsets.US_ASCII),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                restrictToOwner(keyFile);
+            }
+            
+            storageKeys.put(normalized, key);
+            return key;
+        }
+    }
+    
+    /**
+     * Overwrite a file with zeros, sync it and delete it
+     */
+    public static void secureDelete(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(WIPE_CHUNK_SIZE, Math.max(size, 1)));
+            long position = 0;
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+            channel.force(true);
+        }
+        Files.delete(file);
+    }
+    
+    /**
+     * Map a logical name (session ID, username) to a file-system-safe name that does not reveal it
+     */
+    public static String hashName(String name) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * Limit a file to owner read/write where the file system supports it
+     */
+    private static void restrictToOwner(Path file) {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Non-POSIX file system, rely on the directory permissions instead
+        }
+    }
+}
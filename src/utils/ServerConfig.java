@@ -0,0 +1,401 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.LongConsumer;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * ServerConfig holds the server's tunable settings: pool sizes, buffer sizes, queue limits,
+ * history caps and timer granularity, each a typed, range-checked value.
+ *
+ * A setting's value comes from, lowest priority first: its default, its key in
+ * config.properties, and -Dsecurechat.&lt;name&gt;. Sizes accept KB, MB and GB suffixes,
+ * durations ms, s, m and h, and switches true or false (held as 1 or 0). A malformed or
+ * out-of-range value is logged and the default kept.
+ *
+ * Live settings can be changed while the server runs, over JMX (securechat:type=Config)
+ * or with {@link Setting#set(long)}. Their users either read the value on each use or
+ * register a listener, as the thread pools do to resize themselves. The other settings
+ * are read once at startup and are read-only over JMX.
+ */
+public final class ServerConfig implements DynamicMBean {
+    private enum Unit { COUNT, BYTES, MILLIS, SECONDS, FLAG }
+    
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+    
+    // Every setting by name, in declaration order
+    private static final Map<String, Setting> settings = new LinkedHashMap<>();
+    
+    // Identity
+    public static final Setting NODE_ID = define("nodeId", "NODE_ID", Unit.COUNT, -1, -1, 1023, false,
+        "This server's node ID, embedded in every message ID it mints; unique per cluster node, -1 if unset");
+    
+    // Connections and thread pools
+    public static final Setting PORT = define("port", "SERVER_SOCKET_PORT", Unit.COUNT, 12345, 1, 65535, false,
+        "Socket port");
+    public static final Setting HANDLER_CORE_THREADS = define("handler.coreThreads", "THREAD_POOL_SIZE", Unit.COUNT, 10, 0, 100_000, true,
+        "Connection handler threads kept alive while idle");
+    public static final Setting MAX_CONNECTIONS = define("maxConnections", "MAX_CONNECTIONS", Unit.COUNT, 10_000, 1, 1_000_000, true,
+        "Connections served at once; more are turned away");
+    public static final Setting SOCKET_BUFFER_BYTES = define("socket.bufferBytes", "SOCKET_BUFFER_SIZE", Unit.BYTES, 64 * KB, KB, 16 * MB, true,
+        "Stream buffer per connection, for connections made after a change");
+    public static final Setting DELIVERY_THREADS = define("delivery.threads", "DELIVERY_THREADS", Unit.COUNT, CORES, 1, 1024, true,
+        "Threads draining outbound queues");
+    public static final Setting FANOUT_THREADS = define("fanout.threads", "FANOUT_THREADS", Unit.COUNT, CORES, 1, 1024, true,
+        "Threads encrypting room messages");
+    public static final Setting FANOUT_BATCH_SIZE = define("fanout.batchSize", "FANOUT_BATCH_SIZE", Unit.COUNT, 32, 1, 100_000, true,
+        "Room members encrypted per fanout task");
+    public static final Setting SCHEDULER_THREADS = define("session.schedulerThreads", "SESSION_SCHEDULER_THREADS", Unit.COUNT, 5, 1, 256, true,
+        "Threads for session timers and history flushes");
+    public static final Setting TIMER_THREADS = define("timer.threads", "TIMER_THREADS", Unit.COUNT, 2, 1, 256, true,
+        "Threads running destruction countdowns");
+    public static final Setting TIMER_TICK_SECONDS = define("timer.tickSeconds", "TIMER_TICK", Unit.SECONDS, 1, 1, 60, true,
+        "Seconds between countdown updates, for timers started after a change");
+    
+    // Limits and caps
+    public static final Setting MAX_FILE_BYTES = define("file.maxBytes", "MAX_FILE_SIZE", Unit.BYTES, 50 * MB, KB, GB, true,
+        "Largest file accepted for transfer");
+    public static final Setting MAX_TEXT_BYTES = define("text.maxBytes", "MAX_TEXT_SIZE", Unit.BYTES, 64 * KB, KB, 16 * MB, true,
+        "Largest chat message accepted, measured after decompression");
+    public static final Setting COMPRESSION_MIN_BYTES = define("compression.minBytes", "COMPRESSION_MIN_SIZE", Unit.BYTES, Compression.DEFAULT_MIN_BYTES, 0, GB, true,
+        "Smallest TEXT or FILE payload compressed for clients that negotiated a codec");
+    public static final Setting FILE_IO_THREADS = define("file.ioThreads", "FILE_IO_THREADS", Unit.COUNT, 2, 1, 256, true,
+        "Threads hashing and writing relayed files to the file store");
+    public static final Setting OFFLINE_MEMORY_MESSAGES = define("offline.memoryMessages", "OFFLINE_MEMORY_MESSAGES", Unit.COUNT, 100, 0, 1_000_000, true,
+        "Offline messages held in memory per recipient before spilling to disk");
+    public static final Setting OFFLINE_MEMORY_BYTES = define("offline.memoryBytes", "OFFLINE_MEMORY_SIZE", Unit.BYTES, MB, 0, 64 * GB, true,
+        "Offline message bytes held in memory per recipient before spilling to disk");
+    public static final Setting OFFLINE_TOTAL_MEMORY_BYTES = define("offline.totalMemoryBytes", "OFFLINE_TOTAL_MEMORY_SIZE", Unit.BYTES, 64 * MB, 0, 64 * GB, true,
+        "Offline message bytes held in memory across all recipients before spilling to disk");
+    public static final Setting OFFLINE_MAX_MESSAGES = define("offline.maxMessages", "OFFLINE_MAX_MESSAGES", Unit.COUNT, 1000, 1, 10_000_000, true,
+        "Offline messages queued per recipient");
+    public static final Setting OFFLINE_MAX_SPILL_BYTES = define("offline.maxSpillBytes", "OFFLINE_MAX_SPILL_SIZE", Unit.BYTES, 64 * MB, 0, 64 * GB, true,
+        "Spilled offline messages kept on disk per recipient");
+    public static final Setting OFFLINE_TOTAL_SPILL_BYTES = define("offline.totalSpillBytes", "OFFLINE_TOTAL_SPILL_SIZE", Unit.BYTES, GB, 0, 1024 * GB, true,
+        "Spilled offline messages kept on disk across all recipients");
+    public static final Setting OFFLINE_EXPIRY_SECONDS = define("offline.expirySeconds", "OFFLINE_EXPIRY", Unit.SECONDS, 24 * 60 * 60, 1, 365L * 24 * 60 * 60, true,
+        "How long an offline message waits before it is discarded");
+    public static final Setting HISTORY_REPLAY_COUNT = define("history.replayCount", "HISTORY_REPLAY_COUNT", Unit.COUNT, 50, 0, 100_000, true,
+        "Persisted messages replayed when a session reopens");
+    public static final Setting HISTORY_MAX_PAGE = define("history.maxPage", "HISTORY_MAX_PAGE", Unit.COUNT, 200, 1, 100_000, true,
+        "Largest history page a client may request");
+    public static final Setting HISTORY_PERSIST = define("history.persist", "HISTORY_PERSIST", Unit.FLAG, 0, 0, 1, false,
+        "Whether session history is kept on disk across reconnects and restarts");
+    public static final Setting HISTORY_SEGMENT_BYTES = define("history.segmentBytes", "HISTORY_SEGMENT_SIZE", Unit.BYTES, 4 * MB, 64 * KB, GB, false,
+        "Size of a persisted history segment file");
+    public static final Setting HISTORY_FSYNC_MILLIS = define("history.fsyncMillis", "HISTORY_FSYNC_INTERVAL", Unit.MILLIS, 200, 1, 60_000, false,
+        "Group commit interval for persisted history");
+    public static final Setting ROOM_MAX_MEMBERS = define("room.maxMembers", "MAX_ROOM_MEMBERS", Unit.COUNT, 500, 1, 1_000_000, true,
+        "Members allowed in one room");
+    public static final Setting PRESENCE_MAX_WATCHED = define("presence.maxWatched", "PRESENCE_MAX_WATCHED", Unit.COUNT, 500, 0, 1_000_000, true,
+        "Contacts one user may watch for presence");
+    public static final Setting PRESENCE_FLUSH_MILLIS = define("presence.flushMillis", "PRESENCE_FLUSH_INTERVAL", Unit.MILLIS, 250, 10, 60_000, false,
+        "How often batched presence changes are sent");
+    
+    // Keepalive and connection lifecycle
+    public static final Setting KEEPALIVE_INTERVAL_MILLIS = define("keepalive.intervalMillis", "HEARTBEAT_INTERVAL", Unit.MILLIS, 15_000, 100, 3_600_000, false,
+        "Silence after which a connection is pinged");
+    public static final Setting KEEPALIVE_MAX_MISSES = define("keepalive.maxMisses", "KEEPALIVE_MAX_MISSES", Unit.COUNT, 3, 1, 1000, true,
+        "Unanswered pings before a connection is evicted");
+    public static final Setting JOIN_TIMEOUT_MILLIS = define("keepalive.joinTimeoutMillis", "JOIN_TIMEOUT", Unit.MILLIS, 30_000, 100, 3_600_000, true,
+        "How long a new connection may take to send JOIN");
+    public static final Setting DRAIN_TIMEOUT_MILLIS = define("shutdown.drainMillis", "SHUTDOWN_DRAIN_TIMEOUT", Unit.MILLIS, 5_000, 0, 600_000, true,
+        "How long closing connections may spend flushing queued messages");
+    
+    private ServerConfig() {
+    }
+    
+    private static class Holder {
+        static final ServerConfig INSTANCE = new ServerConfig();
+    }
+    
+    public static ServerConfig getInstance() {
+        return Holder.INSTANCE;
+    }
+    
+    /**
+     * One setting. Reading it is a volatile read, cheap enough to do on every use.
+     */
+    public static final class Setting {
+        private final String name;
+        private final String key;
+        private final Unit unit;
+        private final long defaultValue;
+        private final long min;
+        private final long max;
+        private final boolean live;
+        private final String description;
+        private final List<LongConsumer> listeners = new CopyOnWriteArrayList<>();
+        private volatile long value;
+        
+        private Setting(String name, String key, Unit unit, long defaultValue, long min, long max,
+                        boolean live, String description) {
+            this.name = name;
+            this.key = key;
+            this.unit = unit;
+            this.defaultValue = defaultValue;
+            this.min = min;
+            this.max = max;
+            this.live = live;
+            this.description = description;
+            this.value = defaultValue;
+        }
+        
+        public long longValue() {
+            return value;
+        }
+        
+        public int intValue() {
+            return (int) Math.min(Integer.MAX_VALUE, value);
+        }
+        
+        public boolean booleanValue() {
+            return value != 0;
+        }
+        
+        /**
+         * Be told of every later change to a live setting, with the new value
+         */
+        public void onChange(LongConsumer listener) {
+            listeners.add(listener);
+        }
+        
+        /**
+         * Change a live setting; listeners run on the calling thread
+         */
+        public synchronized void set(long newValue) {
+            if (!live) {
+                throw new IllegalStateException(name + " can only be set at startup");
+            }
+            if (newValue < min || newValue > max) {
+                throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+            }
+            long oldValue = value;
+            value = newValue;
+            if (oldValue != newValue) {
+                Log.info("Config {} changed from {} to {}", name, oldValue, newValue);
+                for (LongConsumer listener : listeners) {
+                    listener.accept(newValue);
+                }
+            }
+        }
+        
+        public String getName() { return name; }
+        public String getKey() { return key; }
+        public long getDefaultValue() { return defaultValue; }
+        public boolean isLive() { return live; }
+        public String getDescription() { return description; }
+    }
+    
+    private static Setting define(String name, String key, Unit unit, long defaultValue, long min, long max,
+                                  boolean live, String description) {
+        Setting setting = new Setting(name, key, unit, defaultValue, min, max, live, description);
+        String property = System.getProperty("securechat." + name);
+        String configured = property != null ? property : ConfigFile.get(key);
+        if (configured != null && !configured.isEmpty()) {
+            try {
+                long parsed = parse(configured, unit);
+                if (parsed < min || parsed > max) {
+                    throw new IllegalArgumentException("must be between " + min + " and " + max);
+                }
+                setting.value = parsed;
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                Log.warn("Ignoring {}={} ({}), using {}", property != null ? "securechat." + name : key,
+                    configured, e.getMessage(), defaultValue);
+            }
+        }
+        settings.put(name, setting);
+        return setting;
+    }
+    
+    /**
+     * Parse a number in a setting's unit; sizes and durations may carry a suffix
+     */
+    private static long parse(String text, Unit unit) {
+        String value = text.trim().toUpperCase(Locale.ROOT);
+        if (unit == Unit.FLAG && (value.equals("TRUE") || value.equals("FALSE"))) {
+            return value.equals("TRUE") ? 1 : 0;
+        }
+        long scale = 1;
+        long divisor = 1;
+        if (unit == Unit.BYTES) {
+            String[] suffixes = {"GB", "MB", "KB", "B"};
+            long[] scales = {GB, MB, KB, 1};
+            for (int i = 0; i < suffixes.length; i++) {
+                if (value.endsWith(suffixes[i])) {
+                    value = value.substring(0, value.length() - suffixes[i].length());
+                    scale = scales[i];
+                    break;
+                }
+            }
+        } else if (unit == Unit.MILLIS || unit == Unit.SECONDS) {
+            String[] suffixes = {"MS", "S", "M", "H"};
+            long[] scales = {1, 1000, 60_000, 3_600_000};
+            for (int i = 0; i < suffixes.length; i++) {
+                if (value.endsWith(suffixes[i])) {
+                    value = value.substring(0, value.length() - suffixes[i].length());
+                    scale = scales[i];
+                    divisor = unit == Unit.SECONDS ? 1000 : 1;
+                    break;
+                }
+            }
+        }
+        return Math.multiplyExact(Long.parseLong(value.trim()), scale) / divisor;
+    }
+    
+    /**
+     * A directory setting: -Dsecurechat.&lt;name&gt;, else the key in config.properties
+     * (relative to that file), else the default (relative to the working directory)
+     */
+    public static Path path(String name, String key, String defaultPath) {
+        String property = System.getProperty("securechat." + name);
+        if (property != null) {
+            return Paths.get(property);
+        }
+        String configured = ConfigFile.get(key);
+        return configured != null && !configured.isEmpty() ? ConfigFile.resolve(configured) : Paths.get(defaultPath);
+    }
+    
+    public static Map<String, Setting> getSettings() {
+        return Collections.unmodifiableMap(settings);
+    }
+    
+    /**
+     * The settings that differ from their defaults, as name=value pairs
+     */
+    public static String describeOverrides() {
+        StringBuilder overrides = new StringBuilder();
+        for (Setting setting : settings.values()) {
+            if (setting.value != setting.defaultValue) {
+                overrides.append(overrides.length() == 0 ? "" : ", ").append(setting.name).append('=').append(setting.value);
+            }
+        }
+        return overrides.length() == 0 ? "none" : overrides.toString();
+    }
+    
+    /**
+     * Keep a pool's thread count equal to a live setting. A scheduled pool only has a core
+     * size; a plain pool is resized in the order that keeps core at or below maximum.
+     */
+    public static void bindPoolSize(Setting setting, ThreadPoolExecutor pool) {
+        setting.onChange(size -> {
+            int threads = (int) size;
+            if (pool instanceof ScheduledThreadPoolExecutor) {
+                pool.setCorePoolSize(threads);
+            } else if (threads >= pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        });
+    }
+    
+    /**
+     * Publish the settings on the platform MBean server; failures are logged, not fatal
+     */
+    public void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            Log.info("Configuration available over JMX as {} (overrides: {})", objectName, describeOverrides());
+        } catch (Exception e) {
+            Log.error("Could not register configuration MBean: {}", e.getMessage());
+        }
+    }
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Setting setting = settings.get(attribute);
+        if (setting == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return setting.value;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+        Setting setting = settings.get(attribute.getName());
+        if (setting == null) {
+            throw new AttributeNotFoundException(attribute.getName());
+        }
+        if (!(attribute.getValue() instanceof Number)) {
+            throw new InvalidAttributeValueException(attribute.getName() + " takes a number");
+        }
+        try {
+            setting.set(((Number) attribute.getValue()).longValue());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new InvalidAttributeValueException(e.getMessage());
+        }
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Setting setting = settings.get(attribute);
+            if (setting != null) {
+                list.add(new Attribute(attribute, setting.value));
+            }
+        }
+        return list;
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        AttributeList applied = new AttributeList();
+        for (Attribute attribute : attributes.asList()) {
+            try {
+                setAttribute(attribute);
+                applied.add(attribute);
+            } catch (Exception e) {
+                Log.warn("Rejected config change {}: {}", attribute.getName(), e.getMessage());
+            }
+        }
+        return applied;
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[settings.size()];
+        int i = 0;
+        for (Setting setting : settings.values()) {
+            attributes[i++] = new MBeanAttributeInfo(setting.name, "long",
+                setting.description + (setting.live ? "" : " (startup only)"), true, setting.live, false);
+        }
+        return new MBeanInfo(ServerConfig.class.getName(), "Secure Chat server configuration",
+            attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,469 @@
+package utils;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * SessionLog is a segmented, memory-mapped, append-only log of one session's messages.
+ * Each segment is a data file of encrypted records plus an index file of (sequence,
+ * timestamp, offset, length) entries, so a tail read jumps straight to the records it needs.
+ * Sequence numbers rise through the log, so a page before or after a cursor is found by a
+ * binary search over the index alone; only the records returned are decrypted.
+ */
+public class SessionLog implements Closeable {
+    private static final String DATA_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_ENTRY_BYTES = 24; // long sequence + long timestamp + int offset + int length
+    private static final int AVERAGE_RECORD_BYTES = 256; // sizing hint for the index file
+    private static final int MIN_INDEX_ENTRIES = 1024;
+    
+    // Releases a mapping when its segment closes rather than when the buffer is collected;
+    // null where the runtime does not offer it, leaving unmapping to the garbage collector
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.debug("Mapped history segments will be unmapped by the garbage collector: {}", e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+    
+    private final Path directory;
+    private final SecretKey key;
+    private final int segmentBytes;
+    private final List<Segment> segments;
+    private boolean dirty;
+    private boolean closed;
+    
+    public SessionLog(Path directory, SecretKey key, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.key = key;
+        this.segmentBytes = segmentBytes;
+        this.segments = new ArrayList<>();
+        
+        Files.createDirectories(directory);
+        openExistingSegments();
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(directory, 0, segmentBytes));
+        }
+    }
+    
+    /**
+     * Append a message; it becomes durable on the next {@link #force()}
+     */
+    public synchronized void append(Message message) throws IOException {
+        ensureOpen();
+        byte[] record = encrypt(serialize(message));
+        
+        Segment active = segments.get(segments.size() - 1);
+        if (!active.hasRoomFor(record.length)) {
+            active = Segment.create(directory, active.baseNumber + 1, Math.max(segmentBytes, record.length));
+            segments.add(active);
+        }
+        active.append(record, message.getSequence(), epochMillis(message.getTimestamp()));
+        dirty = true;
+    }
+    
+    /**
+     * Read the latest messages, oldest first, using only the index to locate them
+     */
+    public synchronized List<Message> readTail(int count) throws IOException {
+        ensureOpen();
+        LinkedList<Message> tail = new LinkedList<>();
+        for (int s = segments.size() - 1; s >= 0 && tail.size() < count; s--) {
+            Segment segment = segments.get(s);
+            for (int i = segment.entryCount - 1; i >= 0 && tail.size() < count; i--) {
+                Message message = decode(segment.read(i));
+                if (message != null) {
+                    tail.addFirst(message);
+                }
+            }
+        }
+        return new ArrayList<>(tail);
+    }
+    
+    /**
+     * Read up to count messages with a sequence number below beforeSeq, newest first
+     */
+    public synchronized List<Message> readBefore(long beforeSeq, int count) throws IOException {
+        ensureOpen();
+        List<Message> page = new ArrayList<>(Math.min(count, 64));
+        int s = startSegment(beforeSeq);
+        if (s < 0) {
+            return page;
+        }
+        int i = firstAtOrAfter(segments.get(s), beforeSeq) - 1;
+        while (s >= 0 && page.size() < count) {
+            Segment segment = segments.get(s);
+            for (; i >= 0 && page.size() < count; i--) {
+                Message message = segment.sequence(i) < beforeSeq ? decode(segment.read(i)) : null;
+                if (message != null) {
+                    page.add(message);
+                }
+            }
+            if (--s >= 0) {
+                i = segments.get(s).entryCount - 1;
+            }
+        }
+        return page;
+    }
+    
+    /**
+     * Read up to count messages with a sequence number after afterSeq, oldest first
+     */
+    public synchronized List<Message> readAfter(long afterSeq, int count) throws IOException {
+        ensureOpen();
+        List<Message> page = new ArrayList<>(Math.min(count, 64));
+        long from = afterSeq + 1;
+        int s = Math.max(startSegment(from), 0);
+        int i = s < segments.size() ? firstAtOrAfter(segments.get(s), from) : 0;
+        while (s < segments.size() && page.size() < count) {
+            Segment segment = segments.get(s);
+            for (; i < segment.entryCount && page.size() < count; i++) {
+                Message message = segment.sequence(i) > afterSeq ? decode(segment.read(i)) : null;
+                if (message != null) {
+                    page.add(message);
+                }
+            }
+            s++;
+            i = 0;
+        }
+        return page;
+    }
+    
+    /**
+     * Sync appended records to disk. Returns true if there was anything to sync.
+     */
+    public synchronized boolean force() {
+        if (!dirty || closed) {
+            return false;
+        }
+        for (Segment segment : segments) {
+            segment.force();
+        }
+        dirty = false;
+        return true;
+    }
+    
+    /**
+     * Wipe every record but keep the log usable
+     */
+    public synchronized void truncate() throws IOException {
+        ensureOpen();
+        long nextBase = segments.get(segments.size() - 1).baseNumber + 1;
+        wipeSegments();
+        segments.add(Segment.create(directory, nextBase, segmentBytes));
+        dirty = false;
+    }
+    
+    /**
+     * Wipe every record and remove the log directory
+     */
+    public synchronized void delete() throws IOException {
+        if (closed) {
+            return;
+        }
+        wipeSegments();
+        closed = true;
+        deleteFiles(directory);
+    }
+    
+    /**
+     * Securely delete the log in a directory that is not open, without mapping it
+     */
+    public static void deleteFiles(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                SecureStorage.secureDelete(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        closed = true;
+    }
+    
+    private void openExistingSegments() throws IOException {
+        List<Long> baseNumbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    baseNumbers.add(Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(baseNumbers);
+        for (long baseNumber : baseNumbers) {
+            segments.add(Segment.open(directory, baseNumber));
+        }
+    }
+    
+    /**
+     * Index of the newest segment whose first record is below seq, or -1 if none is
+     */
+    private int startSegment(long seq) {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            if (segment.entryCount > 0 && segment.sequence(0) < seq) {
+                return s;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Index of the first record in a segment with a sequence number of at least seq
+     */
+    private static int firstAtOrAfter(Segment segment, long seq) {
+        int low = 0;
+        int high = segment.entryCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segment.sequence(middle) >= seq) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+    
+    private static long epochMillis(LocalDateTime timestamp) {
+        return timestamp != null ? timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : 0;
+    }
+    
+    private void wipeSegments() throws IOException {
+        for (Segment segment : segments) {
+            segment.wipe();
+        }
+        segments.clear();
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Session log is closed: " + directory);
+        }
+    }
+    
+    private byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private byte[] encrypt(byte[] plain) throws IOException {
+        try {
+            return EncryptionUtil.encryptBytes(plain, key);
+        } catch (Exception e) {
+            throw new IOException("Could not encrypt history record: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Decrypt and deserialize a record; torn or foreign records are skipped
+     */
+    private Message decode(byte[] record) {
+        try {
+            byte[] plain = EncryptionUtil.decryptBytes(record, key);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(plain))) {
+                return (Message) in.readObject();
+            }
+        } catch (Exception e) {
+            Log.warn("Skipping unreadable history record in {}: {}", directory, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * One data file and its index, both mapped for their full preallocated size
+     */
+    private static class Segment {
+        private final long baseNumber;
+        private final Path dataPath;
+        private final Path indexPath;
+        private final FileChannel dataChannel;
+        private final FileChannel indexChannel;
+        private final MappedByteBuffer data;
+        private final MappedByteBuffer index;
+        private int entryCount;
+        private int writePosition;
+        
+        private Segment(long baseNumber, Path dataPath, Path indexPath,
+                        FileChannel dataChannel, FileChannel indexChannel,
+                        MappedByteBuffer data, MappedByteBuffer index) {
+            this.baseNumber = baseNumber;
+            this.dataPath = dataPath;
+            this.indexPath = indexPath;
+            this.dataChannel = dataChannel;
+            this.indexChannel = indexChannel;
+            this.data = data;
+            this.index = index;
+        }
+        
+        static Segment create(Path directory, long baseNumber, int dataBytes) throws IOException {
+            int indexEntries = Math.max(MIN_INDEX_ENTRIES, dataBytes / AVERAGE_RECORD_BYTES);
+            return map(directory, baseNumber, dataBytes, indexEntries * INDEX_ENTRY_BYTES);
+        }
+        
+        static Segment open(Path directory, long baseNumber) throws IOException {
+            Segment segment = map(directory, baseNumber, 0, 0);
+            
+            // Recover the write position from the index: entries are valid until the first zero length
+            int maxEntries = segment.index.capacity() / INDEX_ENTRY_BYTES;
+            while (segment.entryCount < maxEntries) {
+                int slot = segment.entryCount * INDEX_ENTRY_BYTES;
+                int offset = segment.index.getInt(slot + 16);
+                int length = segment.index.getInt(slot + 20);
+                if (length <= 0 || offset < 0 || offset + length > segment.data.capacity()) {
+                    break;
+                }
+                segment.entryCount++;
+                segment.writePosition = offset + length;
+            }
+            return segment;
+        }
+        
+        private static Segment map(Path directory, long baseNumber, int dataBytes, int indexBytes) throws IOException {
+            String name = String.format("%020d", baseNumber);
+            Path dataPath = directory.resolve(name + DATA_SUFFIX);
+            Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+            
+            FileChannel dataChannel = FileChannel.open(dataPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel indexChannel = FileChannel.open(indexPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            long dataSize = Math.max(dataChannel.size(), dataBytes);
+            long indexSize = Math.max(indexChannel.size(), indexBytes);
+            MappedByteBuffer data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, dataSize);
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+            
+            return new Segment(baseNumber, dataPath, indexPath, dataChannel, indexChannel, data, index);
+        }
+        
+        boolean hasRoomFor(int recordLength) {
+            return writePosition + recordLength <= data.capacity()
+                && (entryCount + 1) * INDEX_ENTRY_BYTES <= index.capacity();
+        }
+        
+        void append(byte[] record, long sequence, long timestamp) {
+            ByteBuffer target = data.duplicate();
+            target.position(writePosition);
+            target.put(record);
+            
+            // Length last: a zero length marks the end of the index on recovery
+            int slot = entryCount * INDEX_ENTRY_BYTES;
+            index.putLong(slot, sequence);
+            index.putLong(slot + 8, timestamp);
+            index.putInt(slot + 16, writePosition);
+            index.putInt(slot + 20, record.length);
+            
+            entryCount++;
+            writePosition += record.length;
+        }
+        
+        long sequence(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_BYTES);
+        }
+        
+        byte[] read(int entry) {
+            int slot = entry * INDEX_ENTRY_BYTES;
+            int offset = index.getInt(slot + 16);
+            int length = index.getInt(slot + 20);
+            
+            byte[] record = new byte[length];
+            ByteBuffer source = data.duplicate();
+            source.position(offset);
+            source.get(record);
+            return record;
+        }
+        
+        void force() {
+            data.force();
+            index.force();
+        }
+        
+        void wipe() throws IOException {
+            zero(data, writePosition);
+            zero(index, entryCount * INDEX_ENTRY_BYTES);
+            force();
+            close();
+            Files.deleteIfExists(dataPath);
+            Files.deleteIfExists(indexPath);
+        }
+        
+        /**
+         * Close the files and unmap both buffers; the segment must not be read again
+         */
+        void close() {
+            try {
+                dataChannel.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                Log.error("Error closing history segment {}: {}", dataPath, e.getMessage());
+            }
+            unmap(data);
+            unmap(index);
+        }
+        
+        private static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                Log.debug("Could not unmap history segment: {}", e.getMessage());
+            }
+        }
+        
+        private static void zero(MappedByteBuffer buffer, int length) {
+            byte[] zeros = new byte[Math.min(length, 64 * 1024)];
+            ByteBuffer target = buffer.duplicate();
+            target.position(0);
+            int remaining = length;
+            while (remaining > 0) {
+                int chunk = Math.min(remaining, zeros.length);
+                target.put(zeros, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+    }
+}
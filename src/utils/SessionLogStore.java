@@ -0,0 +1,195 @@
+package utils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionLogStore is the opt-in persistence mode for session history.
+ * Enable with HISTORY_PERSIST=true (-Dsecurechat.history.persist=true); appends go to one
+ * {@link SessionLog} per session and are synced to disk in groups every HISTORY_FSYNC_INTERVAL.
+ */
+public class SessionLogStore {
+    private static final String DEFAULT_DIRECTORY = "../history";
+    
+    private final Path baseDirectory;
+    private final SecretKey key;
+    private final int segmentBytes;
+    private final Map<String, SessionLog> openLogs;
+    
+    public SessionLogStore(ScheduledExecutorService scheduler) throws IOException {
+        this.baseDirectory = ServerConfig.path("history.dir", "HISTORY_DIRECTORY", DEFAULT_DIRECTORY);
+        this.segmentBytes = ServerConfig.HISTORY_SEGMENT_BYTES.intValue();
+        this.openLogs = new ConcurrentHashMap<>();
+        
+        Files.createDirectories(baseDirectory);
+        this.key = SecureStorage.getStorageKey(baseDirectory);
+        
+        // Group commit: one fsync per interval covers every append made since the last one
+        long fsyncMillis = ServerConfig.HISTORY_FSYNC_MILLIS.longValue();
+        scheduler.scheduleWithFixedDelay(this::flush, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+        
+        Log.info("Session history persistence enabled: {}", baseDirectory.toAbsolutePath());
+    }
+    
+    /**
+     * Check if persistence is configured for this process
+     */
+    public static boolean isEnabled() {
+        return ServerConfig.HISTORY_PERSIST.booleanValue();
+    }
+    
+    /**
+     * Append a message to the session's log
+     */
+    public void append(String sessionId, Message message) {
+        try {
+            openLog(sessionId).append(message);
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error persisting message for session {}: {}", sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Read the latest messages persisted for a session (oldest first)
+     */
+    public List<Message> readTail(String sessionId, int count) {
+        if (!openLogs.containsKey(sessionId) && !Files.isDirectory(directoryFor(sessionId))) {
+            return new ArrayList<>();
+        }
+        try {
+            return openLog(sessionId).readTail(count);
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error reading history for session {}: {}", sessionId, e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Read up to count persisted messages before a sequence number, newest first
+     */
+    public List<Message> readBefore(String sessionId, long beforeSeq, int count) {
+        if (!openLogs.containsKey(sessionId) && !Files.isDirectory(directoryFor(sessionId))) {
+            return new ArrayList<>();
+        }
+        try {
+            return openLog(sessionId).readBefore(beforeSeq, count);
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error reading history for session {}: {}", sessionId, e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Read up to count persisted messages after a sequence number, oldest first
+     */
+    public List<Message> readAfter(String sessionId, long afterSeq, int count) {
+        if (!openLogs.containsKey(sessionId) && !Files.isDirectory(directoryFor(sessionId))) {
+            return new ArrayList<>();
+        }
+        try {
+            return openLog(sessionId).readAfter(afterSeq, count);
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error reading history for session {}: {}", sessionId, e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Read the configured number of messages to replay when a session is re-established
+     */
+    public List<Message> readReplay(String sessionId) {
+        return readTail(sessionId, ServerConfig.HISTORY_REPLAY_COUNT.intValue());
+    }
+    
+    /**
+     * Wipe a session's history but keep its log open for new messages
+     */
+    public void truncate(String sessionId) {
+        SessionLog log = openLogs.get(sessionId);
+        if (log == null && !Files.isDirectory(directoryFor(sessionId))) {
+            return;
+        }
+        try {
+            openLog(sessionId).truncate();
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error truncating history for session {}: {}", sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Securely delete a session's history
+     */
+    public void delete(String sessionId) {
+        try {
+            SessionLog log = openLogs.remove(sessionId);
+            if (log != null) {
+                log.delete();
+            } else {
+                SessionLog.deleteFiles(directoryFor(sessionId));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error deleting history for session {}: {}", sessionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Close a session's log, keeping its history on disk for a later reconnect
+     */
+    public void release(String sessionId) {
+        SessionLog log = openLogs.remove(sessionId);
+        if (log != null) {
+            log.close();
+        }
+    }
+    
+    /**
+     * Sync every log that has unsynced appends
+     */
+    public void flush() {
+        for (Map.Entry<String, SessionLog> entry : openLogs.entrySet()) {
+            try {
+                entry.getValue().force();
+            } catch (RuntimeException e) {
+                Log.error("Error syncing history for session {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Sync and close every open log
+     */
+    public void close() {
+        for (String sessionId : new ArrayList<>(openLogs.keySet())) {
+            release(sessionId);
+        }
+    }
+    
+    public int getReplayCount() { return ServerConfig.HISTORY_REPLAY_COUNT.intValue(); }
+    
+    private SessionLog openLog(String sessionId) throws IOException {
+        try {
+            return openLogs.computeIfAbsent(sessionId, id -> {
+                try {
+                    return new SessionLog(directoryFor(id), key, segmentBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private Path directoryFor(String sessionId) {
+        return baseDirectory.resolve(SecureStorage.hashName(sessionId));
+    }
+}